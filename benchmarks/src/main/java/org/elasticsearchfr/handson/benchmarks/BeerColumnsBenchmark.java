@@ -0,0 +1,94 @@
+package org.elasticsearchfr.handson.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearchfr.handson.beans.Beer;
+import org.elasticsearchfr.handson.beans.BeerGenerator;
+import org.elasticsearchfr.handson.beans.Colour;
+import org.elasticsearchfr.handson.columnar.BeerColumns;
+import org.elasticsearchfr.handson.columnar.BeerColumns.Column;
+import org.elasticsearchfr.handson.columnar.BeerColumns.Stats;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Price stats by brand of pale beers, on a list of Beer objects and on {@link BeerColumns}.
+ * <br>Run with <code>-prof gc</code> to see heap used by both, and compare
+ * {@link BeerColumns#memoryBytes()} with the heap of the list.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class BeerColumnsBenchmark {
+
+	@Param({ "100000", "1000000" })
+	public int docs;
+
+	private List<Beer> beers;
+	private BeerColumns columns;
+
+	@Setup
+	public void setUp() {
+		BeerGenerator generator = BeerGenerator.builder(42).build();
+		beers = new ArrayList<Beer>(docs);
+		columns = new BeerColumns(docs);
+		for (int i = 0; i < docs; i++) {
+			// A new brand String per beer, like beers read from JSON
+			Beer beer = generator.beer(i);
+			beer.setBrand(new String(beer.getBrand()));
+			beers.add(beer);
+			columns.add(beer);
+		}
+	}
+
+	@Benchmark
+	public Map<String, double[]> objectsStatsByBrand() {
+		// count, sum, min, max
+		Map<String, double[]> stats = new HashMap<String, double[]>();
+		for (Beer beer : beers) {
+			if (beer.getColour() != Colour.PALE) continue;
+			double[] s = stats.get(beer.getBrand());
+			if (s == null) {
+				s = new double[] { 0, 0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+				stats.put(beer.getBrand(), s);
+			}
+			s[0]++;
+			s[1] += beer.getPrice();
+			s[2] = Math.min(s[2], beer.getPrice());
+			s[3] = Math.max(s[3], beer.getPrice());
+		}
+		return stats;
+	}
+
+	@Benchmark
+	public Map<String, Stats> columnsStatsByBrand() {
+		return columns.statsByBrand(Column.PRICE, columns.colour(Colour.PALE));
+	}
+
+	@Benchmark
+	public double objectsSumOfCheapLargeBeers() {
+		double sum = 0;
+		for (Beer beer : beers) {
+			if (beer.getPrice() < 3 && beer.getSize() >= 1) sum += beer.getPrice();
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public double columnsSumOfCheapLargeBeers() {
+		return columns.sum(Column.PRICE, columns.between(Column.PRICE, Double.NEGATIVE_INFINITY, 3)
+				.and(columns.between(Column.SIZE, 1, Double.POSITIVE_INFINITY)));
+	}
+}
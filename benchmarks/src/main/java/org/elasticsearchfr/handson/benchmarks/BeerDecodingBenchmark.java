@@ -0,0 +1,51 @@
+package org.elasticsearchfr.handson.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearchfr.handson.beans.Beer;
+import org.elasticsearchfr.handson.beans.BeerCodec;
+import org.elasticsearchfr.handson.beans.BeerHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * JSon to Beer: a new ObjectMapper per call (the old BeerHelper), from a String and from source bytes
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BeerDecodingBenchmark {
+
+	private BytesReference source;
+	private String json;
+
+	@Setup
+	public void setUp() throws IOException {
+		source = BeerCodec.encode(BeerHelper.generate());
+		json = source.toUtf8();
+	}
+
+	@Benchmark
+	public Beer newMapper() throws IOException {
+		return new ObjectMapper().readValue(json.getBytes(), Beer.class);
+	}
+
+	@Benchmark
+	public Beer fromString() throws IOException {
+		return BeerHelper.toBeer(json);
+	}
+
+	@Benchmark
+	public Beer fromBytes() throws IOException {
+		return BeerHelper.toBeer(source);
+	}
+}
@@ -0,0 +1,50 @@
+package org.elasticsearchfr.handson.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearchfr.handson.beans.Beer;
+import org.elasticsearchfr.handson.beans.BeerCodec;
+import org.elasticsearchfr.handson.beans.BeerHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Beer to JSon: Jackson String (what the lab does), Jackson bytes and {@link BeerCodec}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BeerEncodingBenchmark {
+
+	private final ObjectMapper mapper = new ObjectMapper();
+	private Beer beer;
+
+	@Setup
+	public void setUp() {
+		beer = BeerHelper.generate();
+	}
+
+	@Benchmark
+	public String jacksonString() throws IOException {
+		return mapper.writeValueAsString(beer);
+	}
+
+	@Benchmark
+	public byte[] jacksonBytes() throws IOException {
+		return mapper.writeValueAsBytes(beer);
+	}
+
+	@Benchmark
+	public BytesReference codec() throws IOException {
+		return BeerCodec.encode(beer);
+	}
+}
@@ -0,0 +1,54 @@
+package org.elasticsearchfr.handson.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearchfr.handson.beans.Beer;
+import org.elasticsearchfr.handson.beans.BeerGenerator;
+import org.elasticsearchfr.handson.beans.BeerHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Random beer generation, with one thread and with all cores
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BeerGenerateBenchmark {
+
+	private static final BeerGenerator generator = BeerGenerator.builder(42).build();
+
+	/**
+	 * Each thread reads its own part of the seeded stream
+	 */
+	@State(Scope.Thread)
+	public static class Position {
+		long n = System.identityHashCode(this) * 1000000000L;
+	}
+
+	@Benchmark
+	public Beer generate() {
+		return BeerHelper.generate();
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public Beer generateAllCores() {
+		return BeerHelper.generate();
+	}
+
+	@Benchmark
+	public Beer seeded(Position position) {
+		return generator.beer(position.n++);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public Beer seededAllCores(Position position) {
+		return generator.beer(position.n++);
+	}
+}
@@ -0,0 +1,67 @@
+package org.elasticsearchfr.handson.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearchfr.handson.beans.Beer;
+import org.elasticsearchfr.handson.beans.BeerCodec;
+import org.elasticsearchfr.handson.beans.BeerHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Building the bulk request of SearchTest.setUp for 1k, 100k and 1M beers.
+ * <br>We build the {@link BulkRequest} directly: a BulkRequestBuilder only adds a client to it.
+ * <br>Beers are generated in setup so we only measure serialization and request assembly.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class BulkAssemblyBenchmark {
+
+	@Param({ "1000", "100000", "1000000" })
+	public int docs;
+
+	private final ObjectMapper mapper = new ObjectMapper();
+	private Beer[] beers;
+
+	@Setup
+	public void setUp() {
+		beers = new Beer[docs];
+		for (int i = 0; i < docs; i++) {
+			beers[i] = BeerHelper.generate();
+		}
+	}
+
+	@Benchmark
+	public BulkRequest jacksonString() throws IOException {
+		BulkRequest bulk = new BulkRequest();
+		for (int i = 0; i < docs; i++) {
+			IndexRequest irq = new IndexRequest("meal", "beer", "beer_" + i);
+			irq.source(mapper.writeValueAsString(beers[i]));
+			bulk.add(irq);
+		}
+		return bulk;
+	}
+
+	@Benchmark
+	public BulkRequest codec() throws IOException {
+		BulkRequest bulk = new BulkRequest();
+		for (int i = 0; i < docs; i++) {
+			bulk.add(BeerCodec.source(new IndexRequest("meal", "beer", "beer_" + i), beers[i]));
+		}
+		return bulk;
+	}
+}
@@ -0,0 +1,45 @@
+package org.elasticsearchfr.handson;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Appends benchmark results to CSV files under target/, so runs can be compared in a spreadsheet.
+ * <br>Usage:
+ * <pre>
+ * BenchmarkCsv.append(new File("target/scaling/scaling.csv"), "nodes,shards,search_qps",
+ *         BenchmarkCsv.row("%d,%d,%.1f", nodes, shards, qps));
+ * </pre>
+ */
+public class BenchmarkCsv {
+
+	/**
+	 * Append rows to a CSV file. Parent directories are created if needed.
+	 * @param file CSV file
+	 * @param header Column names, written only if the file does not exist yet
+	 * @param rows Rows to append
+	 */
+	public static void append(File file, String header, String... rows) throws IOException {
+		boolean newFile = !file.exists();
+		if (file.getParentFile() != null) file.getParentFile().mkdirs();
+		PrintWriter writer = new PrintWriter(new FileWriter(file, true));
+		try {
+			if (newFile) writer.println(header);
+			for (String row : rows) {
+				writer.println(row);
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * @return a row formatted with {@link Locale#ROOT}, so decimals always use a dot
+	 */
+	public static String row(String format, Object... values) {
+		return String.format(Locale.ROOT, format, values);
+	}
+}
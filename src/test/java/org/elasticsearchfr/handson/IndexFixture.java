@@ -0,0 +1,110 @@
+package org.elasticsearchfr.handson;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.hppc.cursors.ObjectObjectCursor;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * Resets an index between tests: we drop it and create it again, empty, with the same
+ * settings and mappings.
+ * <br>Deleting documents one by one costs as many deletes as documents and leaves deleted docs
+ * in segments. Dropping the index costs the same with 1 000 or 10 000 000 documents.
+ * <br>Settings and mappings are read once from the cluster state, the first time we reset
+ * an index, and cached for next resets.
+ */
+public class IndexFixture {
+	private static final ESLogger logger = ESLoggerFactory.getLogger(IndexFixture.class.getName());
+
+	private static final ConcurrentMap<String, Template> templates = new ConcurrentHashMap<String, Template>();
+
+	private final Client client;
+	private final String index;
+
+	public IndexFixture(Client client, String index) {
+		this.client = client;
+		this.index = index;
+	}
+
+	/**
+	 * Drop the index and create it again with cached settings and mappings.
+	 * <br>If the index does not exist, nothing is created.
+	 * @return Time spent to reset the index
+	 */
+	public TimeValue reset() throws IOException {
+		long start = System.nanoTime();
+
+		Template template = templates.get(index);
+		if (template == null) {
+			template = readTemplate();
+			if (template == null) {
+				logger.debug("no index [{}] to reset", index);
+				return TimeValue.timeValueNanos(System.nanoTime() - start);
+			}
+			templates.put(index, template);
+		}
+
+		if (client.admin().indices().prepareExists(index).execute().actionGet().isExists()) {
+			client.admin().indices().prepareDelete(index).execute().actionGet();
+		}
+
+		CreateIndexRequestBuilder cirb = client.admin().indices().prepareCreate(index).setSettings(template.settings);
+		for (Map.Entry<String, Map<String, Object>> mapping : template.mappings.entrySet()) {
+			cirb.addMapping(mapping.getKey(), mapping.getValue());
+		}
+		cirb.execute().actionGet();
+
+		client.admin().cluster().prepareHealth(index).setWaitForYellowStatus().execute().actionGet();
+
+		TimeValue took = TimeValue.timeValueNanos(System.nanoTime() - start);
+		logger.debug("index [{}] reset in {}", index, took);
+		return took;
+	}
+
+	/**
+	 * Forget cached settings and mappings, for example after a mapping change
+	 */
+	public static void clearCache() {
+		templates.clear();
+	}
+
+	private Template readTemplate() throws IOException {
+		IndexMetaData metaData = client.admin().cluster().prepareState().setIndices(index).execute().actionGet()
+				.getState().getMetaData().index(index);
+		if (metaData == null) return null;
+
+		// We don't copy settings which are generated when the index is created
+		ImmutableSettings.Builder settings = ImmutableSettings.settingsBuilder().put(metaData.settings());
+		settings.remove(IndexMetaData.SETTING_UUID);
+		settings.remove(IndexMetaData.SETTING_VERSION_CREATED);
+
+		Map<String, Map<String, Object>> mappings = new HashMap<String, Map<String, Object>>();
+		for (ObjectObjectCursor<String, MappingMetaData> cursor : metaData.mappings()) {
+			mappings.put(cursor.key, cursor.value.sourceAsMap());
+		}
+
+		return new Template(settings.build(), mappings);
+	}
+
+	private static class Template {
+		final Settings settings;
+		final Map<String, Map<String, Object>> mappings;
+
+		Template(Settings settings, Map<String, Map<String, Object>> mappings) {
+			this.settings = settings;
+			this.mappings = mappings;
+		}
+	}
+}
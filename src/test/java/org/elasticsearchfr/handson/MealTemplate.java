@@ -0,0 +1,76 @@
+package org.elasticsearchfr.handson;
+
+import java.io.IOException;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+
+/**
+ * Explicit mapping for beers in the <code>meal</code> index, instead of the dynamic one:
+ * <ul>
+ * <li><code>brand</code> and <code>colour</code> are not analyzed, so term queries and facets see
+ * <code>Heineken</code> and not <code>heineken</code>. Full text search uses <code>brand.text</code>
+ * and <code>colour.text</code>.
+ * <li><code>brand</code>, <code>colour</code>, <code>price</code> and <code>size</code> use doc values:
+ * facets read them from disk (and the file system cache) instead of loading fielddata on the heap.
+ * <li><code>_all</code> is disabled: every value is not indexed twice.
+ * </ul>
+ * Exercises are written for the dynamic mapping (see <code>termSearch_not_working</code>), so
+ * {@link StartNode} only registers this template with <code>-Dtests.meal.template=true</code>.
+ */
+public class MealTemplate {
+
+	public static final String NAME = "meal";
+	public static final String TYPE = "beer";
+	public static final String PROPERTY = "tests.meal.template";
+
+	/**
+	 * @return true if system property {@link #PROPERTY} is set to true
+	 */
+	public static boolean enabled() {
+		return Boolean.getBoolean(PROPERTY);
+	}
+
+	/**
+	 * Register the template. It applies to <code>meal</code> when it is created, not to an existing index.
+	 */
+	public static void put(Client client) throws IOException {
+		client.admin().indices().preparePutTemplate(NAME)
+				.setTemplate(NAME)
+				.addMapping(TYPE, mapping())
+				.execute().actionGet();
+	}
+
+	/**
+	 * @return the <code>beer</code> mapping, to create another index with it
+	 */
+	public static XContentBuilder mapping() throws IOException {
+		XContentBuilder mapping = XContentFactory.jsonBuilder().startObject().startObject(TYPE)
+				.startObject("_all").field("enabled", false).endObject()
+				.startObject("properties");
+		keyword(mapping, "brand");
+		keyword(mapping, "colour");
+		number(mapping, "price");
+		number(mapping, "size");
+		return mapping.endObject().endObject().endObject();
+	}
+
+	private static void keyword(XContentBuilder mapping, String name) throws IOException {
+		mapping.startObject(name)
+				.field("type", "string")
+				.field("index", "not_analyzed")
+				.startObject("fielddata").field("format", "doc_values").endObject()
+				.startObject("fields")
+					.startObject("text").field("type", "string").field("index", "analyzed").endObject()
+				.endObject()
+			.endObject();
+	}
+
+	private static void number(XContentBuilder mapping, String name) throws IOException {
+		mapping.startObject(name)
+				.field("type", "double")
+				.startObject("fielddata").field("format", "doc_values").endObject()
+			.endObject();
+	}
+}
@@ -0,0 +1,70 @@
+package org.elasticsearchfr.handson;
+
+import java.util.Locale;
+
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * How {@link StartNode} starts its node. Settings are added on top of elasticsearch.yml.
+ * <br>Choose a profile with <code>-Dtests.node.profile=local</code> (default to <code>default</code>).
+ */
+public enum NodeProfile {
+
+	/**
+	 * elasticsearch.yml only: network transport, HTTP on port 9200, 5 shards and 1 replica.
+	 * <br>This is what you need to see your node from Marvel or from another node.
+	 */
+	DEFAULT,
+
+	/**
+	 * For fast test suites and embedded services. Nobody else can join or see this node:
+	 * <ul>
+	 * <li>local JVM transport and discovery, no network at all
+	 * <li>HTTP disabled
+	 * <li>new indices have 1 shard and 0 replica, so a single node is green
+	 * <li>refresh stays automatic: exercises search right after indexing, without refreshing
+	 * </ul>
+	 */
+	LOCAL {
+		@Override
+		public Settings settings() {
+			return ImmutableSettings.settingsBuilder()
+					.put("node.local", true)
+					.put("http.enabled", false)
+					.put("index.number_of_shards", 1)
+					.put("index.number_of_replicas", 0)
+					.build();
+		}
+	},
+
+	/**
+	 * Same as {@link #LOCAL}, but indices are stored in memory instead of on disk.
+	 * <br>It avoids disk IO but is not always faster than {@link #LOCAL}: measure it on your machine.
+	 */
+	MEMORY {
+		@Override
+		public Settings settings() {
+			return ImmutableSettings.settingsBuilder()
+					.put(LOCAL.settings())
+					.put("index.store.type", "memory")
+					.build();
+		}
+	};
+
+	public static final String PROPERTY = "tests.node.profile";
+
+	/**
+	 * @return Settings to add to elasticsearch.yml ones
+	 */
+	public Settings settings() {
+		return ImmutableSettings.EMPTY;
+	}
+
+	/**
+	 * @return the profile set in system property {@link #PROPERTY}, or {@link #DEFAULT}
+	 */
+	public static NodeProfile fromSystemProperties() {
+		return valueOf(System.getProperty(PROPERTY, DEFAULT.name()).toUpperCase(Locale.ROOT));
+	}
+}
@@ -0,0 +1,88 @@
+package org.elasticsearchfr.handson;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.ElasticsearchIllegalStateException;
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionFuture;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.client.AdminClient;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.internal.InternalClient;
+import org.elasticsearch.client.support.AbstractClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * A client which throws some actions back to the caller before sending them, like a closed client or
+ * a full thread pool would: the listener is never called.
+ * <br>Used to check that code counting requests in flight does not wait for them forever.
+ * Admin actions are always sent.
+ */
+public class RejectingClient extends AbstractClient {
+
+	private final InternalClient client;
+	private final int every;
+	private final AtomicLong executed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * @param client Client to send accepted actions to
+	 * @param every Reject one action out of <code>every</code>: 1 to reject all of them
+	 */
+	public RejectingClient(Client client, int every) {
+		this.client = (InternalClient) client;
+		this.every = every;
+	}
+
+	/**
+	 * @return number of actions thrown back
+	 */
+	public long rejected() {
+		return rejected.get();
+	}
+
+	@Override
+	public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> ActionFuture<Response> execute(
+			Action<Request, Response, RequestBuilder> action, Request request) {
+		PlainActionFuture<Response> future = PlainActionFuture.newFuture();
+		execute(action, request, future);
+		return future;
+	}
+
+	@Override
+	public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void execute(
+			Action<Request, Response, RequestBuilder> action, Request request, ActionListener<Response> listener) {
+		if (executed.incrementAndGet() % every == 0) {
+			rejected.incrementAndGet();
+			throw new ElasticsearchIllegalStateException("[" + action.name() + "] rejected");
+		}
+		client.execute(action, request, listener);
+	}
+
+	@Override
+	public ThreadPool threadPool() {
+		return client.threadPool();
+	}
+
+	@Override
+	public Settings settings() {
+		return client.settings();
+	}
+
+	@Override
+	public AdminClient admin() {
+		return client.admin();
+	}
+
+	/**
+	 * The wrapped client is not closed
+	 */
+	@Override
+	public void close() {
+	}
+}
@@ -3,21 +3,34 @@ package org.elasticsearchfr.handson;
 import java.io.File;
 
 import org.elasticsearch.common.io.FileSystemUtils;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
 import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.node.Node;
 import org.elasticsearch.node.NodeBuilder;
+import org.elasticsearchfr.handson.metrics.InstrumentedClient;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 
 public class StartNode {
-	
+	private static final ESLogger logger = ESLoggerFactory.getLogger(StartNode.class.getName());
 
 	/**
 	 * Elasticsearch node
 	 */
 	protected static Node node;
 
+	/**
+	 * Client of {@link #node} recording latency and throughput of each action, visible in JMX.
+	 * <br>Exercises index and search through it, so their actions show up in its metrics.
+	 * <br>Log its metrics periodically with <code>-Dtests.client.report=10s</code>.
+	 */
+	protected static InstrumentedClient client;
+
+	public static final String REPORT_PROPERTY = "tests.client.report";
+
 	@BeforeClass
 	public static void setUpBeforeClass() throws Exception {
 		if (node == null) {
@@ -25,11 +38,26 @@ public class StartNode {
 			removeOldDataDir();
 			
 			// Then we start our node for tests
-			node = NodeBuilder.nodeBuilder().node();
+			NodeProfile profile = NodeProfile.fromSystemProperties();
+			long start = System.nanoTime();
+			node = NodeBuilder.nodeBuilder().settings(profile.settings()).node();
+			long started = System.nanoTime();
 
 			// We wait now for the yellow (or green) status
 			node.client().admin().cluster().prepareHealth()
 					.setWaitForYellowStatus().execute().actionGet();
+			long ready = System.nanoTime();
+
+			if (MealTemplate.enabled()) {
+				MealTemplate.put(node.client());
+				logger.info("template [{}] registered", MealTemplate.NAME);
+			}
+
+			client = InstrumentedClient.builder(node.client()).name("node")
+					.reportEvery(TimeValue.parseTimeValue(System.getProperty(REPORT_PROPERTY), null)).build();
+
+			logger.info("node started with profile [{}] in {}, ready in {}", profile,
+					TimeValue.timeValueNanos(started - start), TimeValue.timeValueNanos(ready - start));
 
 			Assert.assertNotNull(node);
 			Assert.assertFalse(node.isClosed());
@@ -0,0 +1,308 @@
+package org.elasticsearchfr.handson.async;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.action.support.PlainListenableActionFuture;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.internal.InternalClient;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Sends requests without waiting for their responses, so one thread can keep hundreds
+ * of requests in flight instead of sitting idle during each <code>execute().actionGet()</code> round trip.
+ * <br>{@link #execute(ActionRequestBuilder)} returns a future at once. Requests can be chained
+ * with {@link #then(ListenableActionFuture, Step)} and fanned out with {@link #all(List)}.
+ * <br>At most <code>maxInFlight</code> requests are sent at the same time:
+ * <ul>
+ * <li>{@link #execute(ActionRequestBuilder)} blocks the caller until a request comes back, like a bulk processor does.
+ * <li>Chained requests never block: they are queued and sent as soon as a request comes back. So chains
+ * can't deadlock, even with <code>maxInFlight</code> set to 1.
+ * </ul>
+ * Listeners and steps run on Elasticsearch threads: they must not block.
+ * <br>Usage:
+ * <pre>
+ * AsyncClient async = AsyncClient.builder(node.client()).maxInFlight(200).build();
+ * ListenableActionFuture&lt;IndexResponse&gt; indexed = async.execute(client.prepareIndex("meal", "beer").setSource(json));
+ * ListenableActionFuture&lt;GetResponse&gt; got = async.then(indexed, new Step&lt;IndexResponse, GetResponse&gt;() {
+ * 	public ActionRequestBuilder&lt;?, GetResponse, ?&gt; next(IndexResponse response) {
+ * 		return client.prepareGet("meal", "beer", response.getId());
+ * 	}
+ * });
+ * </pre>
+ */
+public class AsyncClient {
+
+	private final Client client;
+	private final ThreadPool threadPool;
+	private final int maxInFlight;
+	private final Semaphore permits;
+	private final Queue<Runnable> pending = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger peak = new AtomicInteger();
+
+	private AsyncClient(Builder builder) {
+		this.client = builder.client;
+		this.threadPool = ((InternalClient) builder.client).threadPool();
+		this.maxInFlight = builder.maxInFlight;
+		this.permits = new Semaphore(builder.maxInFlight);
+	}
+
+	/**
+	 * @param client Client used to send requests
+	 */
+	public static Builder builder(Client client) {
+		return new Builder(client);
+	}
+
+	/**
+	 * @return the wrapped client, to prepare requests
+	 */
+	public Client client() {
+		return client;
+	}
+
+	/**
+	 * Send a request. Blocks only while <code>maxInFlight</code> requests are already in flight.
+	 * <br>If the calling thread is interrupted while waiting, the request is not sent and the future fails.
+	 * @return a future, completed when the response comes back
+	 */
+	public <Response extends ActionResponse> ListenableActionFuture<Response> execute(ActionRequestBuilder<?, Response, ?> request) {
+		PlainListenableActionFuture<Response> future = newFuture();
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			future.onFailure(e);
+			return future;
+		}
+		send(request, future);
+		return future;
+	}
+
+	/**
+	 * Send a request built from the response of a previous one, once it comes back.
+	 * <br>If the previous request or the step fails, the returned future fails and nothing is sent.
+	 * @return a future, completed when the response of the new request comes back
+	 */
+	public <Previous, Response extends ActionResponse> ListenableActionFuture<Response> then(
+			ListenableActionFuture<Previous> previous, final Step<? super Previous, Response> step) {
+		final PlainListenableActionFuture<Response> future = newFuture();
+		previous.addListener(new ActionListener<Previous>() {
+			@Override
+			public void onResponse(Previous response) {
+				ActionRequestBuilder<?, Response, ?> next;
+				try {
+					next = step.next(response);
+				} catch (Throwable t) {
+					future.onFailure(t);
+					return;
+				}
+				submit(next, future);
+			}
+
+			@Override
+			public void onFailure(Throwable e) {
+				future.onFailure(e);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Send all requests, for example searches on several indices or with several queries.
+	 * @return a future of all responses, in the order of requests. It fails as soon as one request fails.
+	 */
+	public <Response extends ActionResponse> ListenableActionFuture<List<Response>> all(
+			List<? extends ActionRequestBuilder<?, Response, ?>> requests) {
+		List<ListenableActionFuture<Response>> futures = new ArrayList<ListenableActionFuture<Response>>(requests.size());
+		for (ActionRequestBuilder<?, Response, ?> request : requests) {
+			futures.add(execute(request));
+		}
+		return allOf(futures);
+	}
+
+	/**
+	 * @return a future of all responses, in the order of futures. It fails as soon as one future fails.
+	 */
+	public <Response> ListenableActionFuture<List<Response>> allOf(List<ListenableActionFuture<Response>> futures) {
+		final PlainListenableActionFuture<List<Response>> all = newFuture();
+		final int size = futures.size();
+		if (size == 0) {
+			all.onResponse(new ArrayList<Response>());
+			return all;
+		}
+		final AtomicReferenceArray<Response> responses = new AtomicReferenceArray<Response>(size);
+		final AtomicInteger remaining = new AtomicInteger(size);
+		final AtomicBoolean failed = new AtomicBoolean();
+		for (int i = 0; i < size; i++) {
+			final int pos = i;
+			futures.get(i).addListener(new ActionListener<Response>() {
+				@Override
+				public void onResponse(Response response) {
+					responses.set(pos, response);
+					if (remaining.decrementAndGet() == 0) {
+						List<Response> list = new ArrayList<Response>(size);
+						for (int j = 0; j < size; j++) {
+							list.add(responses.get(j));
+						}
+						all.onResponse(list);
+					}
+				}
+
+				@Override
+				public void onFailure(Throwable e) {
+					if (failed.compareAndSet(false, true)) all.onFailure(e);
+				}
+			});
+		}
+		return all;
+	}
+
+	/**
+	 * @return number of requests sent and not yet back
+	 */
+	public int inFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * @return highest number of requests in flight at the same time
+	 */
+	public int peakInFlight() {
+		return peak.get();
+	}
+
+	/**
+	 * @return number of chained requests waiting for a request to come back
+	 */
+	public int pending() {
+		return pending.size();
+	}
+
+	/**
+	 * @return max number of requests in flight
+	 */
+	public int maxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * Send a request without blocking: now if we are under the limit, or later
+	 */
+	private <Response extends ActionResponse> void submit(final ActionRequestBuilder<?, Response, ?> request,
+			final ActionListener<Response> listener) {
+		if (permits.tryAcquire()) {
+			send(request, listener);
+			return;
+		}
+		pending.add(new Runnable() {
+			@Override
+			public void run() {
+				send(request, listener);
+			}
+		});
+		// A request may have come back while we were queueing
+		drain();
+	}
+
+	/**
+	 * Send queued requests while we have permits
+	 */
+	private void drain() {
+		while (!pending.isEmpty() && permits.tryAcquire()) {
+			Runnable next = pending.poll();
+			if (next == null) {
+				permits.release();
+			} else {
+				next.run();
+			}
+		}
+	}
+
+	/**
+	 * Send a request. We must hold a permit, released when the response comes back.
+	 */
+	private <Response extends ActionResponse> void send(ActionRequestBuilder<?, Response, ?> request,
+			final ActionListener<Response> listener) {
+		int current = inFlight.incrementAndGet();
+		while (true) {
+			int max = peak.get();
+			if (current <= max || peak.compareAndSet(max, current)) break;
+		}
+		final AtomicBoolean released = new AtomicBoolean();
+		try {
+			request.execute(new ActionListener<Response>() {
+				@Override
+				public void onResponse(Response response) {
+					// Release first, so the next step of a chain can be sent at once
+					if (released.compareAndSet(false, true)) release();
+					listener.onResponse(response);
+				}
+
+				@Override
+				public void onFailure(Throwable e) {
+					// Also called when onResponse throws: don't release twice
+					if (released.compareAndSet(false, true)) release();
+					listener.onFailure(e);
+				}
+			});
+		} catch (Throwable t) {
+			if (released.compareAndSet(false, true)) release();
+			listener.onFailure(t);
+		}
+	}
+
+	private void release() {
+		inFlight.decrementAndGet();
+		permits.release();
+		drain();
+	}
+
+	private <T> PlainListenableActionFuture<T> newFuture() {
+		return new PlainListenableActionFuture<T>(false, threadPool);
+	}
+
+	/**
+	 * Builds the next request of a chain from a response
+	 */
+	public static interface Step<Previous, Response extends ActionResponse> {
+		/**
+		 * Called on an Elasticsearch thread: must not block
+		 * @return the request to send
+		 */
+		ActionRequestBuilder<?, Response, ?> next(Previous response) throws Exception;
+	}
+
+	public static class Builder {
+		private final Client client;
+		private int maxInFlight = 100;
+
+		private Builder(Client client) {
+			this.client = client;
+		}
+
+		/**
+		 * @param maxInFlight Max number of requests sent and not yet back. Defaults to 100.
+		 */
+		public Builder maxInFlight(int maxInFlight) {
+			if (maxInFlight < 1) throw new IllegalArgumentException("maxInFlight must be at least 1");
+			this.maxInFlight = maxInFlight;
+			return this;
+		}
+
+		public AsyncClient build() {
+			return new AsyncClient(this);
+		}
+	}
+}
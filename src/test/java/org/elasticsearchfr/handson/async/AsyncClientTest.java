@@ -0,0 +1,157 @@
+package org.elasticsearchfr.handson.async;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearchfr.handson.StartNode;
+import org.elasticsearchfr.handson.beans.Beer;
+import org.elasticsearchfr.handson.beans.BeerCodec;
+import org.elasticsearchfr.handson.beans.BeerGenerator;
+import org.elasticsearchfr.handson.beans.BeerHelper;
+import org.elasticsearchfr.handson.beans.Colour;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * We send many requests from one thread, and chain index, get and delete like <code>IndexTest.indexOneBeer</code>
+ */
+public class AsyncClientTest extends StartNode {
+	private static final ESLogger logger = ESLoggerFactory.getLogger(AsyncClientTest.class.getName());
+
+	@After
+	public void tearDown() {
+		node.client().admin().indices().prepareDelete("async_test").execute().actionGet();
+	}
+
+	@Test
+	public void indexGetDeleteChain() throws Exception {
+		AsyncClient async = AsyncClient.builder(node.client()).build();
+		final Beer beer = new Beer("Heineken", Colour.PALE, 0.33, 3);
+
+		ListenableActionFuture<IndexResponse> indexed = async.execute(index(beer));
+		ListenableActionFuture<GetResponse> got = async.then(indexed, new AsyncClient.Step<IndexResponse, GetResponse>() {
+			@Override
+			public ActionRequestBuilder<?, GetResponse, ?> next(IndexResponse response) {
+				return node.client().prepareGet("async_test", "beer", response.getId());
+			}
+		});
+		ListenableActionFuture<DeleteResponse> deleted = async.then(got, new AsyncClient.Step<GetResponse, DeleteResponse>() {
+			@Override
+			public ActionRequestBuilder<?, DeleteResponse, ?> next(GetResponse response) {
+				return node.client().prepareDelete("async_test", "beer", response.getId());
+			}
+		});
+
+		Assert.assertTrue(deleted.actionGet().isFound());
+		Assert.assertEquals(indexed.actionGet().getId(), got.actionGet().getId());
+		Assert.assertEquals(beer, BeerHelper.toBeer(got.actionGet().getSourceAsBytesRef()));
+		Assert.assertEquals(0, async.inFlight());
+	}
+
+	@Test
+	public void oneThreadKeepsManyRequestsInFlight() throws Exception {
+		int docs = 1000;
+		BeerGenerator generator = BeerGenerator.builder(42).build();
+		List<Beer> beers = new ArrayList<Beer>();
+		for (int i = 0; i < 2 * docs; i++) {
+			beers.add(generator.beer(i));
+		}
+		// Create the index first, so we don't time index creation
+		index(beers.get(0)).execute().actionGet();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < docs; i++) {
+			index(beers.get(i)).execute().actionGet();
+		}
+		long sync = System.nanoTime() - start;
+
+		AsyncClient async = AsyncClient.builder(node.client()).maxInFlight(200).build();
+		List<IndexRequestBuilder> requests = new ArrayList<IndexRequestBuilder>();
+		for (int i = docs; i < 2 * docs; i++) {
+			requests.add(index(beers.get(i)));
+		}
+		start = System.nanoTime();
+		List<IndexResponse> responses = async.all(requests).actionGet();
+		long pipelined = System.nanoTime() - start;
+
+		logger.info("{} beers indexed in {}ms one by one, in {}ms with up to {} requests in flight",
+				docs, sync / 1000000, pipelined / 1000000, async.peakInFlight());
+		Assert.assertEquals(docs, responses.size());
+		for (IndexResponse response : responses) {
+			Assert.assertTrue(response.isCreated());
+		}
+		Assert.assertTrue(async.peakInFlight() <= 200);
+		Assert.assertTrue(async.peakInFlight() > 1);
+
+		// Fan out searches
+		node.client().admin().indices().prepareRefresh("async_test").execute().actionGet();
+		List<SearchRequestBuilder> searches = new ArrayList<SearchRequestBuilder>();
+		for (Colour colour : Colour.values()) {
+			searches.add(node.client().prepareSearch("async_test").setSize(0)
+					.setQuery(QueryBuilders.matchQuery("colour", colour.name())));
+		}
+		long total = 0;
+		for (SearchResponse response : async.all(searches).actionGet()) {
+			total += response.getHits().getTotalHits();
+		}
+		Assert.assertEquals(2 * docs + 1, total);
+	}
+
+	@Test
+	public void chainsDontDeadlockWithOneRequestInFlight() throws Exception {
+		AsyncClient async = AsyncClient.builder(node.client()).maxInFlight(1).build();
+		index(BeerHelper.generate()).execute().actionGet();
+
+		List<ListenableActionFuture<GetResponse>> gets = new ArrayList<ListenableActionFuture<GetResponse>>();
+		for (int i = 0; i < 50; i++) {
+			gets.add(async.then(async.execute(index(BeerHelper.generate())), new AsyncClient.Step<IndexResponse, GetResponse>() {
+				@Override
+				public ActionRequestBuilder<?, GetResponse, ?> next(IndexResponse response) {
+					return node.client().prepareGet("async_test", "beer", response.getId());
+				}
+			}));
+		}
+		for (GetResponse response : async.allOf(gets).actionGet()) {
+			Assert.assertTrue(response.isExists());
+		}
+		Assert.assertEquals(1, async.peakInFlight());
+		Assert.assertEquals(0, async.pending());
+	}
+
+	@Test
+	public void failureStopsTheChain() throws Exception {
+		AsyncClient async = AsyncClient.builder(node.client()).build();
+		index(BeerHelper.generate()).execute().actionGet();
+
+		ListenableActionFuture<GetResponse> got = async.execute(node.client().prepareGet("async_missing", "beer", "1"));
+		ListenableActionFuture<DeleteResponse> deleted = async.then(got, new AsyncClient.Step<GetResponse, DeleteResponse>() {
+			@Override
+			public ActionRequestBuilder<?, DeleteResponse, ?> next(GetResponse response) {
+				throw new AssertionError("should not be called");
+			}
+		});
+		try {
+			deleted.actionGet();
+			Assert.fail("the get should fail");
+		} catch (Exception e) {
+			// expected
+		}
+		Assert.assertEquals(0, async.inFlight());
+	}
+
+	private IndexRequestBuilder index(Beer beer) throws Exception {
+		return node.client().prepareIndex("async_test", "beer").setSource(BeerCodec.encode(beer));
+	}
+}
@@ -0,0 +1,316 @@
+package org.elasticsearchfr.handson.async;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.PlainListenableActionFuture;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.internal.InternalClient;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.metrics.MeanMetric;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Collects searches submitted by many threads and sends them as one multi search, so that under
+ * high load we pay one round trip for a whole batch instead of one per search.
+ * <br>A batch is sent when it reaches <code>maxBatchSize</code> searches, or <code>window</code> after its
+ * first search was submitted. A batch of one search is sent as a plain search.
+ * <br>Each caller gets its own response, or its own failure: one failed search does not fail the others.
+ * <br>Usage:
+ * <pre>
+ * SearchBatcher batcher = SearchBatcher.builder(client).maxBatchSize(50).window(TimeValue.timeValueMillis(5)).build();
+ * SearchResponse response = batcher.submit(client.prepareSearch("meal").setQuery(query)).actionGet();
+ * batcher.close();
+ * </pre>
+ */
+public class SearchBatcher {
+	private static final ESLogger logger = ESLoggerFactory.getLogger(SearchBatcher.class.getName());
+
+	private final Client client;
+	private final ThreadPool threadPool;
+	private final int maxBatchSize;
+	private final TimeValue window;
+	private final ScheduledExecutorService scheduler;
+	private final BatchStats stats = new BatchStats();
+
+	/**
+	 * Searches waiting to be sent. Guarded by this.
+	 */
+	private List<Pending> batch = new ArrayList<Pending>();
+	private boolean closed = false;
+
+	private SearchBatcher(Builder builder) {
+		this.client = builder.client;
+		this.threadPool = ((InternalClient) builder.client).threadPool();
+		this.maxBatchSize = builder.maxBatchSize;
+		this.window = builder.window;
+		this.scheduler = Executors.newScheduledThreadPool(1, EsExecutors.daemonThreadFactory("search_batcher"));
+	}
+
+	/**
+	 * @param client Client used to send multi searches
+	 * @return a builder with default settings (batches of 50 searches, 5ms window)
+	 */
+	public static Builder builder(Client client) {
+		return new Builder(client);
+	}
+
+	/**
+	 * Add a search to the current batch. Never blocks.
+	 * @return a future, completed with the response of this search
+	 */
+	public ListenableActionFuture<SearchResponse> submit(SearchRequestBuilder search) {
+		return submit(search.request());
+	}
+
+	/**
+	 * Add a search to the current batch. Never blocks.
+	 * @return a future, completed with the response of this search
+	 */
+	public ListenableActionFuture<SearchResponse> submit(SearchRequest search) {
+		PlainListenableActionFuture<SearchResponse> future = new PlainListenableActionFuture<SearchResponse>(false, threadPool);
+		List<Pending> full = null;
+		synchronized (this) {
+			if (closed) {
+				future.onFailure(new IllegalStateException("search batcher is closed"));
+				return future;
+			}
+			batch.add(new Pending(search, future));
+			if (batch.size() >= maxBatchSize) {
+				full = batch;
+				batch = new ArrayList<Pending>();
+			} else if (batch.size() == 1) {
+				final List<Pending> current = batch;
+				scheduler.schedule(new Runnable() {
+					@Override
+					public void run() {
+						flush(current);
+					}
+				}, window.nanos(), TimeUnit.NANOSECONDS);
+			}
+		}
+		if (full != null) send(full);
+		return future;
+	}
+
+	/**
+	 * Send the current batch now
+	 */
+	public void flush() {
+		List<Pending> current;
+		synchronized (this) {
+			current = batch;
+		}
+		flush(current);
+	}
+
+	/**
+	 * Send the remaining searches and stop accepting new ones. Responses may still come back after.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+		}
+		flush();
+		// Pending windows have nothing left to send
+		scheduler.shutdownNow();
+		logger.debug("search batcher closed: {}", stats);
+	}
+
+	/**
+	 * @return Statistics for this batcher
+	 */
+	public BatchStats stats() {
+		return stats;
+	}
+
+	/**
+	 * Send a batch if it was not already sent because it was full
+	 */
+	private void flush(List<Pending> expected) {
+		synchronized (this) {
+			if (batch != expected || batch.isEmpty()) return;
+			batch = new ArrayList<Pending>();
+		}
+		send(expected);
+	}
+
+	private void send(final List<Pending> searches) {
+		long now = System.nanoTime();
+		for (Pending pending : searches) {
+			stats.onQueued(now - pending.submitted);
+		}
+		stats.onBatch(searches.size());
+
+		if (searches.size() == 1) {
+			client.search(searches.get(0).request, searches.get(0).future);
+			return;
+		}
+
+		MultiSearchRequest multi = new MultiSearchRequest();
+		for (Pending pending : searches) {
+			multi.add(pending.request);
+		}
+		client.multiSearch(multi, new ActionListener<MultiSearchResponse>() {
+			@Override
+			public void onResponse(MultiSearchResponse response) {
+				MultiSearchResponse.Item[] items = response.getResponses();
+				for (int i = 0; i < searches.size(); i++) {
+					PlainListenableActionFuture<SearchResponse> future = searches.get(i).future;
+					if (items[i].isFailure()) {
+						future.onFailure(new ElasticsearchException(items[i].getFailureMessage()));
+					} else {
+						future.onResponse(items[i].getResponse());
+					}
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable e) {
+				for (Pending pending : searches) {
+					pending.future.onFailure(e);
+				}
+			}
+		});
+	}
+
+	private static class Pending {
+		final SearchRequest request;
+		final PlainListenableActionFuture<SearchResponse> future;
+		final long submitted = System.nanoTime();
+
+		Pending(SearchRequest request, PlainListenableActionFuture<SearchResponse> future) {
+			this.request = request;
+			this.future = future;
+		}
+	}
+
+	/**
+	 * Batch statistics: number of batches and searches, batch sizes and time spent waiting for a batch
+	 */
+	public static class BatchStats {
+		private final MeanMetric batchSize = new MeanMetric();
+		private final MeanMetric queueDelay = new MeanMetric();
+		private final CounterMetric singles = new CounterMetric();
+		private final AtomicLong maxBatchSize = new AtomicLong();
+		private final AtomicLong maxQueueDelay = new AtomicLong();
+
+		void onBatch(int size) {
+			batchSize.inc(size);
+			if (size == 1) singles.inc();
+			long max;
+			while (size > (max = maxBatchSize.get()) && !maxBatchSize.compareAndSet(max, size));
+		}
+
+		void onQueued(long delayNanos) {
+			queueDelay.inc(delayNanos);
+			long max;
+			while (delayNanos > (max = maxQueueDelay.get()) && !maxQueueDelay.compareAndSet(max, delayNanos));
+		}
+
+		/**
+		 * @return Number of batches sent, single searches included
+		 */
+		public long batches() {
+			return batchSize.count();
+		}
+
+		/**
+		 * @return Number of batches of one search, sent as a plain search
+		 */
+		public long singles() {
+			return singles.count();
+		}
+
+		/**
+		 * @return Number of searches sent
+		 */
+		public long searches() {
+			return batchSize.sum();
+		}
+
+		/**
+		 * @return Mean number of searches in a batch
+		 */
+		public double meanBatchSize() {
+			return batchSize.mean();
+		}
+
+		/**
+		 * @return Max number of searches in a batch
+		 */
+		public long maxBatchSize() {
+			return maxBatchSize.get();
+		}
+
+		/**
+		 * @return Mean time between a search submission and its batch being sent
+		 */
+		public TimeValue meanQueueDelay() {
+			return TimeValue.timeValueNanos((long) queueDelay.mean());
+		}
+
+		/**
+		 * @return Max time between a search submission and its batch being sent
+		 */
+		public TimeValue maxQueueDelay() {
+			return TimeValue.timeValueNanos(maxQueueDelay.get());
+		}
+
+		@Override
+		public String toString() {
+			return "batches [" + batches() + "], searches [" + searches() + "], mean batch size ["
+					+ String.format(Locale.ROOT, "%.1f", meanBatchSize()) + "], max batch size [" + maxBatchSize()
+					+ "], mean queue delay [" + meanQueueDelay() + "], max queue delay [" + maxQueueDelay() + "]";
+		}
+	}
+
+	public static class Builder {
+		private final Client client;
+		private int maxBatchSize = 50;
+		private TimeValue window = TimeValue.timeValueMillis(5);
+
+		private Builder(Client client) {
+			this.client = client;
+		}
+
+		/**
+		 * @param maxBatchSize A batch is sent as soon as it has this number of searches
+		 */
+		public Builder maxBatchSize(int maxBatchSize) {
+			if (maxBatchSize < 1) throw new IllegalArgumentException("maxBatchSize must be at least 1");
+			this.maxBatchSize = maxBatchSize;
+			return this;
+		}
+
+		/**
+		 * @param window Max time a search waits for other searches before its batch is sent.
+		 * It is added to the latency of searches when the load is low.
+		 */
+		public Builder window(TimeValue window) {
+			this.window = window;
+			return this;
+		}
+
+		public SearchBatcher build() {
+			return new SearchBatcher(this);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package org.elasticsearchfr.handson.async;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearchfr.handson.StartNode;
+import org.elasticsearchfr.handson.beans.BeerGenerator;
+import org.elasticsearchfr.handson.beans.Colour;
+import org.elasticsearchfr.handson.bulk.BeerBulkIndexer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Many threads search at the same time through a {@link SearchBatcher}
+ */
+public class SearchBatcherTest extends StartNode {
+	private static final ESLogger logger = ESLoggerFactory.getLogger(SearchBatcherTest.class.getName());
+
+	private final long[] expected = new long[Colour.values().length];
+
+	@Before
+	public void setUp() throws Exception {
+		BeerBulkIndexer indexer = BeerBulkIndexer.builder(node.client(), "batch_test", "beer").build();
+		indexer.addAll("beer_", BeerGenerator.builder(42).build().iterator(0, 500));
+		indexer.close();
+		node.client().admin().indices().prepareRefresh("batch_test").execute().actionGet();
+
+		for (Colour colour : Colour.values()) {
+			expected[colour.ordinal()] = search(colour).execute().actionGet().getHits().getTotalHits();
+		}
+	}
+
+	@After
+	public void tearDown() {
+		node.client().admin().indices().prepareDelete("batch_test").execute().actionGet();
+	}
+
+	@Test
+	public void concurrentSearchesAreBatched() throws Exception {
+		final SearchBatcher batcher = SearchBatcher.builder(node.client())
+				.maxBatchSize(32).window(TimeValue.timeValueMillis(10)).build();
+		ExecutorService executor = Executors.newFixedThreadPool(16);
+		List<Future<Integer>> threads = new ArrayList<Future<Integer>>();
+		for (int t = 0; t < 16; t++) {
+			threads.add(executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					for (int i = 0; i < 50; i++) {
+						Colour colour = Colour.values()[i % Colour.values().length];
+						SearchResponse response = batcher.submit(search(colour)).actionGet();
+						Assert.assertEquals(expected[colour.ordinal()], response.getHits().getTotalHits());
+					}
+					return 50;
+				}
+			}));
+		}
+		for (Future<Integer> thread : threads) {
+			Assert.assertEquals(Integer.valueOf(50), thread.get());
+		}
+		executor.shutdown();
+		batcher.close();
+
+		logger.info("batched searches: {}", batcher.stats());
+		Assert.assertEquals(800, batcher.stats().searches());
+		Assert.assertTrue(batcher.stats().batches() < 800);
+		Assert.assertTrue(batcher.stats().maxBatchSize() <= 32);
+		Assert.assertTrue(batcher.stats().meanBatchSize() > 1);
+	}
+
+	@Test
+	public void failuresAreNotShared() throws Exception {
+		SearchBatcher batcher = SearchBatcher.builder(node.client()).maxBatchSize(3).window(TimeValue.timeValueMinutes(1)).build();
+		ListenableActionFuture<SearchResponse> pale = batcher.submit(search(Colour.PALE));
+		ListenableActionFuture<SearchResponse> missing = batcher.submit(node.client().prepareSearch("batch_missing"));
+		ListenableActionFuture<SearchResponse> dark = batcher.submit(search(Colour.DARK));
+
+		Assert.assertEquals(expected[Colour.PALE.ordinal()], pale.actionGet().getHits().getTotalHits());
+		Assert.assertEquals(expected[Colour.DARK.ordinal()], dark.actionGet().getHits().getTotalHits());
+		try {
+			missing.actionGet();
+			Assert.fail("search on a missing index should fail");
+		} catch (Exception e) {
+			// expected
+		}
+		Assert.assertEquals(1, batcher.stats().batches());
+		batcher.close();
+	}
+
+	@Test
+	public void windowSendsIncompleteBatches() throws Exception {
+		SearchBatcher batcher = SearchBatcher.builder(node.client()).maxBatchSize(100).window(TimeValue.timeValueMillis(20)).build();
+		SearchResponse response = batcher.submit(search(Colour.WHITE)).actionGet(TimeValue.timeValueSeconds(10));
+		Assert.assertEquals(expected[Colour.WHITE.ordinal()], response.getHits().getTotalHits());
+		Assert.assertEquals(1, batcher.stats().singles());
+		Assert.assertTrue(batcher.stats().maxQueueDelay().millis() >= 15);
+		batcher.close();
+	}
+
+	private SearchRequestBuilder search(Colour colour) {
+		return node.client().prepareSearch("batch_test").setSize(0)
+				.setQuery(QueryBuilders.matchQuery("colour", colour.name()));
+	}
+}
@@ -0,0 +1,74 @@
+package org.elasticsearchfr.handson.beans;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+
+/**
+ * Writes a {@link Beer} as JSon bytes without building an intermediate String.
+ * <br>Fields (brand, colour, size, price) are written one by one with an {@link XContentBuilder}
+ * in a per thread buffer which is reused from one beer to another.
+ * <br>The produced JSon is the same as <code>new ObjectMapper().writeValueAsString(beer)</code>.
+ */
+public class BeerCodec {
+
+	/**
+	 * One reusable buffer per thread. A beer is about 80 bytes.
+	 */
+	private static final ThreadLocal<BytesStreamOutput> buffers = new ThreadLocal<BytesStreamOutput>() {
+		@Override
+		protected BytesStreamOutput initialValue() {
+			return new BytesStreamOutput(256);
+		}
+	};
+
+	/**
+	 * Write a beer to any output stream
+	 * @param beer Beer to write
+	 * @param out Where to write JSon. It won't be closed.
+	 * @throws IOException
+	 */
+	public static void writeTo(Beer beer, OutputStream out) throws IOException {
+		XContentBuilder builder = XContentFactory.jsonBuilder(out);
+		builder.startObject()
+				.field("brand", beer.getBrand())
+				.field("colour", beer.getColour() == null ? null : beer.getColour().name())
+				.field("size", beer.getSize())
+				.field("price", beer.getPrice())
+				.endObject();
+		// We don't close the builder as it would close the output stream
+		builder.flush();
+	}
+
+	/**
+	 * Encode a beer using the reusable buffer of the current thread.
+	 * <br>The returned bytes are a copy of the buffer, so it is safe to keep them
+	 * (for example in a bulk request) after another beer has been encoded.
+	 * @param beer Beer to encode
+	 * @return JSon bytes
+	 * @throws IOException
+	 */
+	public static BytesReference encode(Beer beer) throws IOException {
+		BytesStreamOutput buffer = buffers.get();
+		buffer.reset();
+		writeTo(beer, buffer);
+		return buffer.bytes().copyBytesArray();
+	}
+
+	/**
+	 * Set the beer as source of an index request
+	 * @param irq Index request
+	 * @param beer Beer to index
+	 * @return the index request
+	 * @throws IOException
+	 */
+	public static IndexRequest source(IndexRequest irq, Beer beer) throws IOException {
+		// We own these bytes, so they are not "unsafe" and won't be copied again
+		return irq.source(encode(beer), false);
+	}
+}
@@ -0,0 +1,41 @@
+package org.elasticsearchfr.handson.beans;
+
+import java.util.Map;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * We check that {@link BeerCodec} produces the same document as Jackson
+ */
+public class BeerCodecTest {
+
+	@Test
+	public void sameAsJackson() throws Exception {
+		ObjectMapper mapper = new ObjectMapper();
+
+		for (int i = 0; i < 100; i++) {
+			Beer beer = BeerHelper.generate();
+			BytesReference bytes = BeerCodec.encode(beer);
+
+			Assert.assertEquals(beer, BeerHelper.toBeer(bytes));
+
+			Map<String, Object> expected = XContentHelper.convertToMap(mapper.writeValueAsBytes(beer), false).v2();
+			Map<String, Object> actual = XContentHelper.convertToMap(bytes, false).v2();
+			Assert.assertEquals(expected, actual);
+		}
+	}
+
+	@Test
+	public void bytesAreNotShared() throws Exception {
+		Beer heineken = new Beer("Heineken", Colour.PALE, 0.33, 3);
+		BytesReference first = BeerCodec.encode(heineken);
+		BeerCodec.encode(new Beer("Kriek", Colour.DARK, 1, 7));
+
+		Assert.assertEquals(heineken, BeerHelper.toBeer(first));
+	}
+}
@@ -0,0 +1,236 @@
+package org.elasticsearchfr.handson.beans;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Generates reproducible beers from a seed.
+ * <br>The n-th beer only depends on the seed and on n: {@link #beer(long)} does not share any
+ * state, so threads never wait for each other and a stream can be split in as many
+ * parts as we want ({@link #split(long, long, int)}). Same seed, same beers.
+ * <br>Usage:
+ * <pre>
+ * BeerGenerator generator = BeerGenerator.builder(42).brands(Distribution.zipf(1.0)).build();
+ * Iterator&lt;Beer&gt; beers = generator.iterator(0, 1000000);
+ * </pre>
+ */
+public class BeerGenerator {
+
+	private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+	private final long seed;
+	private final String[] brands;
+	private final double[] brandCumulative;
+	private final Colour[] colours = Colour.values();
+	private final double[] colourCumulative;
+	private final double minSize;
+	private final double maxSize;
+	private final double minPrice;
+	private final double maxPrice;
+
+	private BeerGenerator(Builder builder) {
+		this.seed = builder.seed;
+		this.brands = builder.brands;
+		this.brandCumulative = builder.brandDistribution.cumulative(brands.length);
+		this.colourCumulative = builder.colourDistribution.cumulative(colours.length);
+		this.minSize = builder.minSize;
+		this.maxSize = builder.maxSize;
+		this.minPrice = builder.minPrice;
+		this.maxPrice = builder.maxPrice;
+	}
+
+	/**
+	 * @param seed Seed. Two generators with the same seed and settings produce the same beers.
+	 * @return a builder with lab defaults: Heineken, Grimbergen and Kriek, all colours,
+	 * uniform distributions, size from 0 to 2 L, price from 0 to 10 EUROS.
+	 */
+	public static Builder builder(long seed) {
+		return new Builder(seed);
+	}
+
+	/**
+	 * @param n Position of the beer in the stream
+	 * @return the n-th beer
+	 */
+	public Beer beer(long n) {
+		// Each beer draws from its own state: stepping seed + n * GOLDEN_GAMMA four times would
+		// walk into the draws of the next beers
+		long state = mix(seed + n * GOLDEN_GAMMA);
+		double brand = toDouble(mix(state += GOLDEN_GAMMA));
+		double colour = toDouble(mix(state += GOLDEN_GAMMA));
+		double size = toDouble(mix(state += GOLDEN_GAMMA));
+		double price = toDouble(mix(state + GOLDEN_GAMMA));
+
+		return new Beer(brands[pick(brandCumulative, brand)],
+				colours[pick(colourCumulative, colour)],
+				minSize + size * (maxSize - minSize),
+				minPrice + price * (maxPrice - minPrice));
+	}
+
+	/**
+	 * @param from First beer (included)
+	 * @param to Last beer (excluded)
+	 * @return an iterator on beers [from, to)
+	 */
+	public Iterator<Beer> iterator(final long from, final long to) {
+		return new Iterator<Beer>() {
+			private long n = from;
+
+			@Override
+			public boolean hasNext() {
+				return n < to;
+			}
+
+			@Override
+			public Beer next() {
+				if (n >= to) throw new NoSuchElementException();
+				return beer(n++);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Split beers [from, to) in parts of the same size, for example one per thread.
+	 * <br>Reading all parts gives exactly the same beers as {@link #iterator(long, long)}.
+	 * @param from First beer (included)
+	 * @param to Last beer (excluded)
+	 * @param parts Number of parts
+	 * @return one iterator per part
+	 */
+	public List<Iterator<Beer>> split(long from, long to, int parts) {
+		List<Iterator<Beer>> iterators = new ArrayList<Iterator<Beer>>(parts);
+		long count = to - from;
+		for (int i = 0; i < parts; i++) {
+			iterators.add(iterator(from + count * i / parts, from + count * (i + 1) / parts));
+		}
+		return iterators;
+	}
+
+	/**
+	 * SplitMix64 finalizer: spreads the bits of a counter on all 64 bits
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * @return a double in [0, 1) built from the 53 high bits
+	 */
+	private static double toDouble(long bits) {
+		return (bits >>> 11) * 0x1.0p-53;
+	}
+
+	private static int pick(double[] cumulative, double u) {
+		int pos = Arrays.binarySearch(cumulative, u);
+		// Not found gives -(insertion point) - 1. Found means u is the upper bound of this bucket.
+		pos = pos < 0 ? -pos - 1 : pos + 1;
+		return Math.min(pos, cumulative.length - 1);
+	}
+
+	/**
+	 * How often each value (brand or colour) appears
+	 */
+	public static abstract class Distribution {
+
+		/**
+		 * Every value has the same probability
+		 */
+		public static final Distribution UNIFORM = zipf(0);
+
+		/**
+		 * The k-th value has a weight of 1/k^exponent. The first value is the most frequent one.
+		 * @param exponent 0 means uniform. 1 is the classic Zipf law.
+		 */
+		public static Distribution zipf(final double exponent) {
+			return new Distribution() {
+				@Override
+				double weight(int k) {
+					return 1 / Math.pow(k + 1, exponent);
+				}
+			};
+		}
+
+		/**
+		 * Fixed weights, one per value
+		 */
+		public static Distribution weights(final double... weights) {
+			return new Distribution() {
+				@Override
+				double weight(int k) {
+					return weights[k];
+				}
+			};
+		}
+
+		abstract double weight(int k);
+
+		double[] cumulative(int size) {
+			double[] cumulative = new double[size];
+			double total = 0;
+			for (int k = 0; k < size; k++) {
+				total += weight(k);
+				cumulative[k] = total;
+			}
+			for (int k = 0; k < size; k++) {
+				cumulative[k] /= total;
+			}
+			return cumulative;
+		}
+	}
+
+	public static class Builder {
+		private final long seed;
+		private String[] brands = { "Heineken", "Grimbergen", "Kriek" };
+		private Distribution brandDistribution = Distribution.UNIFORM;
+		private Distribution colourDistribution = Distribution.UNIFORM;
+		private double minSize = 0;
+		private double maxSize = 2;
+		private double minPrice = 0;
+		private double maxPrice = 10;
+
+		private Builder(long seed) {
+			this.seed = seed;
+		}
+
+		public Builder brands(String... brands) {
+			this.brands = brands;
+			return this;
+		}
+
+		public Builder brands(Distribution distribution) {
+			this.brandDistribution = distribution;
+			return this;
+		}
+
+		public Builder colours(Distribution distribution) {
+			this.colourDistribution = distribution;
+			return this;
+		}
+
+		public Builder size(double min, double max) {
+			this.minSize = min;
+			this.maxSize = max;
+			return this;
+		}
+
+		public Builder price(double min, double max) {
+			this.minPrice = min;
+			this.maxPrice = max;
+			return this;
+		}
+
+		public BeerGenerator build() {
+			return new BeerGenerator(this);
+		}
+	}
+}
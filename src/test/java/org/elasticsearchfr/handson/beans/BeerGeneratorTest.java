@@ -0,0 +1,138 @@
+package org.elasticsearchfr.handson.beans;
+
+import java.util.Iterator;
+import java.util.List;
+
+import org.elasticsearchfr.handson.beans.BeerGenerator.Distribution;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * We check that generated beers are reproducible and follow the asked distributions
+ */
+public class BeerGeneratorTest {
+
+	@Test
+	public void sameSeedSameBeers() {
+		BeerGenerator first = BeerGenerator.builder(42).build();
+		BeerGenerator second = BeerGenerator.builder(42).build();
+		BeerGenerator other = BeerGenerator.builder(43).build();
+
+		int different = 0;
+		for (long n = 0; n < 1000; n++) {
+			Assert.assertEquals(first.beer(n), second.beer(n));
+			if (!first.beer(n).equals(other.beer(n))) different++;
+		}
+		Assert.assertTrue(different > 900);
+	}
+
+	@Test
+	public void splitGivesSameStream() {
+		BeerGenerator generator = BeerGenerator.builder(42).build();
+
+		Iterator<Beer> all = generator.iterator(10, 1010);
+		List<Iterator<Beer>> parts = generator.split(10, 1010, 7);
+		Assert.assertEquals(7, parts.size());
+
+		for (Iterator<Beer> part : parts) {
+			while (part.hasNext()) {
+				Assert.assertEquals(all.next(), part.next());
+			}
+		}
+		Assert.assertFalse(all.hasNext());
+	}
+
+	@Test
+	public void uniformBrands() {
+		int[] counts = countBrands(BeerGenerator.builder(42).build(), 30000);
+
+		// Each brand should get about 10000 beers
+		for (int count : counts) {
+			Assert.assertTrue("unbalanced brands: " + count, Math.abs(count - 10000) < 500);
+		}
+	}
+
+	@Test
+	public void zipfBrands() {
+		int[] counts = countBrands(BeerGenerator.builder(42).brands(Distribution.zipf(1)).build(), 30000);
+
+		// Weights are 1, 1/2 and 1/3
+		Assert.assertTrue(counts[0] > counts[1]);
+		Assert.assertTrue(counts[1] > counts[2]);
+		Assert.assertEquals(2.0, (double) counts[0] / counts[1], 0.2);
+	}
+
+	@Test
+	public void ranges() {
+		BeerGenerator generator = BeerGenerator.builder(42).size(0.25, 0.5).price(2, 3).build();
+		for (long n = 0; n < 1000; n++) {
+			Beer beer = generator.beer(n);
+			Assert.assertTrue(beer.getSize() >= 0.25 && beer.getSize() < 0.5);
+			Assert.assertTrue(beer.getPrice() >= 2 && beer.getPrice() < 3);
+			Assert.assertNotNull(beer.getColour());
+		}
+	}
+
+	@Test
+	public void adjacentBeersAreIndependent() {
+		BeerGenerator generator = BeerGenerator.builder(42).build();
+		int nb = 20000;
+		double[] sizes = new double[nb + 1];
+		double[] prices = new double[nb + 1];
+		double[] colours = new double[nb + 1];
+		double[] brands = new double[nb + 1];
+		for (int n = 0; n <= nb; n++) {
+			Beer beer = generator.beer(n);
+			sizes[n] = beer.getSize();
+			prices[n] = beer.getPrice();
+			colours[n] = beer.getColour().ordinal();
+			brands[n] = beer.getBrand().hashCode();
+		}
+
+		int same = 0;
+		for (int n = 0; n < nb; n++) {
+			if (prices[n] / 10 == sizes[n + 1] / 2) same++;
+		}
+		Assert.assertEquals(0, same);
+
+		// Fields of beer n against fields of beer n + 1
+		double[][] fields = { brands, colours, sizes, prices };
+		for (double[] x : fields) {
+			for (double[] y : fields) {
+				double r = correlation(x, 0, y, 1, nb);
+				Assert.assertTrue("correlated fields: " + r, Math.abs(r) < 0.05);
+			}
+		}
+	}
+
+	/**
+	 * Pearson correlation of x[xFrom..xFrom + nb) and y[yFrom..yFrom + nb)
+	 */
+	private static double correlation(double[] x, int xFrom, double[] y, int yFrom, int nb) {
+		double mx = 0, my = 0;
+		for (int i = 0; i < nb; i++) {
+			mx += x[xFrom + i] / nb;
+			my += y[yFrom + i] / nb;
+		}
+		double sxy = 0, sxx = 0, syy = 0;
+		for (int i = 0; i < nb; i++) {
+			double dx = x[xFrom + i] - mx, dy = y[yFrom + i] - my;
+			sxy += dx * dy;
+			sxx += dx * dx;
+			syy += dy * dy;
+		}
+		return sxy / Math.sqrt(sxx * syy);
+	}
+
+	private int[] countBrands(BeerGenerator generator, int nb) {
+		int[] counts = new int[3];
+		for (long n = 0; n < nb; n++) {
+			String brand = generator.beer(n).getBrand();
+			if ("Heineken".equals(brand)) counts[0]++;
+			if ("Grimbergen".equals(brand)) counts[1]++;
+			if ("Kriek".equals(brand)) counts[2]++;
+		}
+		Assert.assertEquals(nb, counts[0] + counts[1] + counts[2]);
+		return counts;
+	}
+}
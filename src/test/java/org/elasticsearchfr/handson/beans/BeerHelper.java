@@ -1,64 +1,75 @@
 package org.elasticsearchfr.handson.beans;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
 
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 
 
 public class BeerHelper {
 
-	public static Beer generate() {
-
-		return new Beer(generateBrand(), generateColour(), Math.random()*2, Math.random()*10);
-		
-	}
+	/**
+	 * Beers are picked at random positions of a {@link BeerGenerator} seeded with the current time.
+	 * <br>Each thread has its own {@link Random}, so threads never wait for each other.
+	 * Use {@link BeerGenerator} directly to get reproducible beers.
+	 */
+	private static final BeerGenerator generator = BeerGenerator.builder(System.nanoTime()).build();
 
-	private static String generateBrand() {
-
-		Long result = Math.round(Math.random() * 2);
-
-		switch (result.intValue()) {
-		case 0:
-			return "Heineken";
-		case 1:
-			return "Grimbergen";
-		case 2:
-			return "Kriek";
-		default:
-			break;
+	private static final ThreadLocal<Random> random = new ThreadLocal<Random>() {
+		@Override
+		protected Random initialValue() {
+			return new Random();
 		}
+	};
 
-		return null;
+	public static Beer generate() {
+		return generator.beer(random.get().nextLong());
 	}
-	
-	
-	private static Colour generateColour() {
 
-		Long result = Math.round(Math.random() * 2);
+	/**
+	 * Jackson readers are immutable and thread safe, so we create it once
+	 */
+	private static final ObjectReader reader = new ObjectMapper().reader(Beer.class);
 
-		switch (result.intValue()) {
-		case 0:
-			return Colour.DARK;
-		case 1:
-			return Colour.PALE;
-		case 2:
-			return Colour.WHITE;
-		default:
-			break;
+	public static Beer toBeer(String json) throws JsonParseException, JsonMappingException, IOException {
+		return reader.readValue(json);
+	}
+
+	/**
+	 * Read a beer directly from the source bytes, without building a String
+	 * @param source JSon source, for example {@link SearchHit#sourceRef()}
+	 */
+	public static Beer toBeer(BytesReference source) throws JsonParseException, JsonMappingException, IOException {
+		if (source.hasArray()) {
+			return reader.readValue(source.array(), source.arrayOffset(), source.length());
 		}
+		return reader.readValue(source.streamInput());
+	}
 
-		return null;
+	public static Beer toBeer(SearchHit hit) throws JsonParseException, JsonMappingException, IOException {
+		return toBeer(hit.sourceRef());
 	}
-	
-	
-	
-	public static Beer toBeer(String json) throws JsonParseException, JsonMappingException, IOException {
-		// instance a json mapper
-		ObjectMapper mapper = new ObjectMapper(); // create once, reuse
-		Beer beer = mapper.readValue(json.getBytes(), Beer.class);
-		return beer;
 
+	/**
+	 * Read all beers of a search response page
+	 * @param hits Search hits
+	 * @return Beers, in the same order as hits
+	 */
+	public static List<Beer> toBeers(SearchHits hits) throws JsonParseException, JsonMappingException, IOException {
+		SearchHit[] array = hits.hits();
+		List<Beer> beers = new ArrayList<Beer>(array.length);
+		for (SearchHit hit : array) {
+			beers.add(toBeer(hit));
+		}
+		return beers;
 	}
 }
@@ -0,0 +1,368 @@
+package org.elasticsearchfr.handson.bitmap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.WAH8DocIdSet;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearchfr.handson.beans.Beer;
+import org.elasticsearchfr.handson.bulk.BeerBulkIndexer;
+
+/**
+ * An in-process bitmap index on beers, to answer {@link BeerFilter} combinations and their counts
+ * with bitwise operations, without asking Elasticsearch.
+ * <ul>
+ * <li>Each beer gets an ordinal, in the order beers are indexed.
+ * <li>Each brand and colour has a bitmap of ordinals.
+ * <li>Prices and sizes are quantized in buckets of <code>priceStep</code> and <code>sizeStep</code>, each bucket
+ * having a bitmap. A range uses whole buckets, and only checks the value of beers in its first and last buckets.
+ * <li>Ordinals are split in blocks of 65536 beers. Full blocks are sealed: their bitmaps are compressed
+ * ({@link WAH8DocIdSet}) and AND / OR run on compressed words. The last block stays uncompressed so we can add beers.
+ * <li>Deleted and overwritten beers are marked in a deleted bitmap, like Lucene live docs.
+ * </ul>
+ * It is built as a {@link BeerBulkIndexer.Listener}, or with {@link #add(String, Beer)}.
+ * Methods are synchronized: one writer or reader at a time.
+ */
+public class BeerBitmapIndex implements BeerBulkIndexer.Listener {
+	private static final ESLogger logger = ESLoggerFactory.getLogger(BeerBitmapIndex.class.getName());
+
+	static final String BRAND = "brand";
+	static final String COLOUR = "colour";
+	static final String PRICE = "price";
+	static final String SIZE = "size";
+
+	private final int blockShift;
+	private final double priceStep;
+	private final double sizeStep;
+
+	private final List<Block> blocks = new ArrayList<Block>();
+	private final Map<String, Integer> ordinals = new HashMap<String, Integer>();
+	private final List<String> ids = new ArrayList<String>();
+	private double[] prices = new double[1024];
+	private double[] sizes = new double[1024];
+	private int numDocs = 0;
+	private boolean stale = false;
+
+	/**
+	 * Price buckets of 1 and size buckets of 0.25
+	 */
+	public BeerBitmapIndex() {
+		this(1, 0.25);
+	}
+
+	/**
+	 * @param priceStep Width of price buckets. Ranges on bucket bounds are the fastest.
+	 * @param sizeStep Width of size buckets
+	 */
+	public BeerBitmapIndex(double priceStep, double sizeStep) {
+		this(16, priceStep, sizeStep);
+	}
+
+	BeerBitmapIndex(int blockShift, double priceStep, double sizeStep) {
+		this.blockShift = blockShift;
+		this.priceStep = priceStep;
+		this.sizeStep = sizeStep;
+	}
+
+	/**
+	 * Add a beer. If a beer has the same id, it is replaced.
+	 * @return ordinal of the beer
+	 */
+	public synchronized int add(String id, Beer beer) {
+		delete(id);
+
+		int ordinal = ids.size();
+		int blockSize = 1 << blockShift;
+		if ((ordinal & (blockSize - 1)) == 0) {
+			if (!blocks.isEmpty()) blocks.get(blocks.size() - 1).seal();
+			blocks.add(new Block(ordinal, blockSize));
+		}
+		if (ordinal == prices.length) {
+			prices = Arrays.copyOf(prices, ordinal * 2);
+			sizes = Arrays.copyOf(sizes, ordinal * 2);
+		}
+
+		ids.add(id);
+		prices[ordinal] = beer.getPrice();
+		sizes[ordinal] = beer.getSize();
+		if (id != null) ordinals.put(id, ordinal);
+		numDocs++;
+
+		Block block = blocks.get(blocks.size() - 1);
+		int doc = ordinal - block.base;
+		if (beer.getBrand() != null) block.addTerm(BRAND, beer.getBrand(), doc);
+		if (beer.getColour() != null) block.addTerm(COLOUR, beer.getColour().name(), doc);
+		block.addBucket(PRICE, (long) Math.floor(beer.getPrice() / priceStep), doc);
+		block.addBucket(SIZE, (long) Math.floor(beer.getSize() / sizeStep), doc);
+		return ordinal;
+	}
+
+	/**
+	 * @return true if a beer with this id was deleted
+	 */
+	public synchronized boolean delete(String id) {
+		if (id == null) return false;
+		Integer ordinal = ordinals.remove(id);
+		if (ordinal == null) return false;
+		blocks.get(ordinal >>> blockShift).delete(ordinal & ((1 << blockShift) - 1));
+		numDocs--;
+		return true;
+	}
+
+	@Override
+	public void onIndexed(String id, Beer beer, boolean created) {
+		add(id, beer);
+	}
+
+	@Override
+	public void onDeleted(String id, Beer beer, boolean found) {
+		delete(id);
+	}
+
+	@Override
+	public synchronized void onUnknownChange(String reason) {
+		if (!stale) logger.debug("bitmap index is stale: {}", reason);
+		stale = true;
+	}
+
+	/**
+	 * @return true if the index changed without us knowing how
+	 */
+	public synchronized boolean stale() {
+		return stale;
+	}
+
+	/**
+	 * @return number of live beers
+	 */
+	public synchronized int numDocs() {
+		return numDocs;
+	}
+
+	/**
+	 * @return number of beers matching a filter
+	 */
+	public synchronized int count(BeerFilter filter) {
+		int count = 0;
+		for (Block block : blocks) {
+			WAH8DocIdSet docs = filter.docs(block);
+			if (docs == null) continue;
+			if (block.deletes == 0) {
+				count += docs.cardinality();
+			} else {
+				DocIdSetIterator it = docs.iterator();
+				for (int doc = next(it); doc != DocIdSetIterator.NO_MORE_DOCS; doc = next(it)) {
+					if (!block.deleted(doc)) count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return ids of beers matching a filter, in ordinal order
+	 */
+	public synchronized List<String> ids(BeerFilter filter) {
+		List<String> matching = new ArrayList<String>();
+		for (Block block : blocks) {
+			WAH8DocIdSet docs = filter.docs(block);
+			if (docs == null) continue;
+			DocIdSetIterator it = docs.iterator();
+			for (int doc = next(it); doc != DocIdSetIterator.NO_MORE_DOCS; doc = next(it)) {
+				if (!block.deleted(doc)) matching.add(ids.get(block.base + doc));
+			}
+		}
+		return matching;
+	}
+
+	/**
+	 * @return approximate heap used by bitmaps and values
+	 */
+	public synchronized long ramBytesUsed() {
+		long bytes = prices.length * 16L + ids.size() * 64L;
+		for (Block block : blocks) {
+			bytes += block.ramBytesUsed();
+		}
+		return bytes;
+	}
+
+	static WAH8DocIdSet union(List<WAH8DocIdSet> sets) {
+		if (sets.isEmpty()) return null;
+		if (sets.size() == 1) return sets.get(0);
+		return WAH8DocIdSet.union(sets);
+	}
+
+	private static int next(DocIdSetIterator it) {
+		try {
+			return it.nextDoc();
+		} catch (IOException e) {
+			// In memory sets don't throw IOException
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Bitmaps of a block of ordinals. Docs are ordinals minus {@link #base}.
+	 */
+	class Block {
+		final int base;
+		final int capacity;
+		private final Map<String, Map<String, Postings>> terms = new HashMap<String, Map<String, Postings>>();
+		private final Map<String, TreeMap<Long, Postings>> buckets = new HashMap<String, TreeMap<Long, Postings>>();
+		private final long[] deletedBits;
+		int deletes = 0;
+
+		Block(int base, int capacity) {
+			this.base = base;
+			this.capacity = capacity;
+			this.deletedBits = new long[capacity >>> 6];
+			terms.put(BRAND, new HashMap<String, Postings>());
+			terms.put(COLOUR, new HashMap<String, Postings>());
+			buckets.put(PRICE, new TreeMap<Long, Postings>());
+			buckets.put(SIZE, new TreeMap<Long, Postings>());
+		}
+
+		void addTerm(String field, String value, int doc) {
+			add(terms.get(field), value, doc);
+		}
+
+		void addBucket(String field, long bucket, int doc) {
+			add(buckets.get(field), bucket, doc);
+		}
+
+		private <K> void add(Map<K, Postings> values, K key, int doc) {
+			Postings postings = values.get(key);
+			if (postings == null) {
+				postings = new Postings(capacity);
+				values.put(key, postings);
+			}
+			postings.add(doc);
+		}
+
+		void delete(int doc) {
+			deletedBits[doc >>> 6] |= 1L << doc;
+			deletes++;
+		}
+
+		boolean deleted(int doc) {
+			return (deletedBits[doc >>> 6] & (1L << doc)) != 0;
+		}
+
+		/**
+		 * Compress all bitmaps: no beer will be added to this block anymore
+		 */
+		void seal() {
+			for (Postings postings : allPostings()) {
+				postings.seal();
+			}
+		}
+
+		WAH8DocIdSet term(String field, String value) {
+			Postings postings = terms.get(field).get(value);
+			return postings == null ? null : postings.docs();
+		}
+
+		WAH8DocIdSet range(String field, double from, double to) {
+			double step = PRICE.equals(field) ? priceStep : sizeStep;
+			double[] values = PRICE.equals(field) ? prices : sizes;
+			NavigableMap<Long, Postings> candidates = buckets.get(field);
+			if (!Double.isInfinite(from)) candidates = candidates.tailMap((long) Math.floor(from / step), true);
+			if (!Double.isInfinite(to)) candidates = candidates.headMap((long) Math.floor(to / step), true);
+
+			List<WAH8DocIdSet> sets = new ArrayList<WAH8DocIdSet>();
+			for (Map.Entry<Long, Postings> bucket : candidates.entrySet()) {
+				long key = bucket.getKey();
+				WAH8DocIdSet docs = bucket.getValue().docs();
+				if (key * step >= from && (key + 1) * step <= to) {
+					// The whole bucket is in the range
+					sets.add(docs);
+				} else {
+					// First or last bucket: we check values
+					WAH8DocIdSet.Builder builder = new WAH8DocIdSet.Builder();
+					DocIdSetIterator it = docs.iterator();
+					boolean any = false;
+					for (int doc = next(it); doc != DocIdSetIterator.NO_MORE_DOCS; doc = next(it)) {
+						double value = values[base + doc];
+						if (value >= from && value < to) {
+							builder.add(doc);
+							any = true;
+						}
+					}
+					if (any) sets.add(builder.build());
+				}
+			}
+			return union(sets);
+		}
+
+		long ramBytesUsed() {
+			long bytes = deletedBits.length * 8L;
+			for (Postings postings : allPostings()) {
+				bytes += postings.ramBytesUsed();
+			}
+			return bytes;
+		}
+
+		private List<Postings> allPostings() {
+			List<Postings> all = new ArrayList<Postings>();
+			for (Map<String, Postings> values : terms.values()) {
+				all.addAll(values.values());
+			}
+			for (Map<Long, Postings> values : buckets.values()) {
+				all.addAll(values.values());
+			}
+			return all;
+		}
+	}
+
+	/**
+	 * Docs having a value: uncompressed bits while the block is open, compressed once sealed
+	 */
+	private static class Postings {
+		private long[] bits;
+		private int maxDoc = 0;
+		private WAH8DocIdSet sealed;
+
+		Postings(int capacity) {
+			this.bits = new long[capacity >>> 6];
+		}
+
+		void add(int doc) {
+			bits[doc >>> 6] |= 1L << doc;
+			maxDoc = doc + 1;
+		}
+
+		void seal() {
+			sealed = compress();
+			bits = null;
+		}
+
+		WAH8DocIdSet docs() {
+			return sealed != null ? sealed : compress();
+		}
+
+		private WAH8DocIdSet compress() {
+			WAH8DocIdSet.Builder builder = new WAH8DocIdSet.Builder();
+			int words = (maxDoc + 63) >>> 6;
+			for (int w = 0; w < words; w++) {
+				long word = bits[w];
+				while (word != 0) {
+					builder.add((w << 6) + Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			return builder.build();
+		}
+
+		long ramBytesUsed() {
+			return sealed != null ? sealed.ramBytesUsed() : bits.length * 8L;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package org.elasticsearchfr.handson.bitmap;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearchfr.handson.MealTemplate;
+import org.elasticsearchfr.handson.StartNode;
+import org.elasticsearchfr.handson.beans.Beer;
+import org.elasticsearchfr.handson.beans.BeerGenerator;
+import org.elasticsearchfr.handson.beans.Colour;
+import org.elasticsearchfr.handson.bulk.BeerBulkIndexer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * We index, overwrite and delete beers while maintaining a bitmap index, and compare
+ * its counts with the same filters run by Elasticsearch
+ */
+public class BeerBitmapIndexTest extends StartNode {
+	private static final ESLogger logger = ESLoggerFactory.getLogger(BeerBitmapIndexTest.class.getName());
+
+	// Blocks of 256 beers, so that most blocks are sealed
+	private final BeerBitmapIndex index = new BeerBitmapIndex(8, 1, 0.25);
+	private final List<Beer> beers = new ArrayList<Beer>();
+
+	@Before
+	public void setUp() throws Exception {
+		// Term filters need not analyzed brands and colours
+		node.client().admin().indices().prepareCreate("bitmap_test")
+				.addMapping(MealTemplate.TYPE, MealTemplate.mapping()).execute().actionGet();
+
+		Iterator<Beer> generated = BeerGenerator.builder(42).build().iterator(0, 2000);
+		while (generated.hasNext()) {
+			beers.add(generated.next());
+		}
+
+		BeerBulkIndexer indexer = BeerBulkIndexer.builder(node.client(), "bitmap_test", "beer")
+				.bulkActions(100).listener(index).build();
+		for (int i = 0; i < beers.size(); i++) {
+			indexer.add("beer_" + i, beers.get(i));
+		}
+		for (int i = 0; i < 2000; i += 7) {
+			indexer.delete("beer_" + i, beers.get(i));
+		}
+		// Overwrite a beer of a sealed block
+		indexer.add("beer_10", new Beer("Heineken", Colour.DARK, 0.33, 4.5));
+		indexer.close();
+		Assert.assertEquals(0, indexer.stats().failures());
+
+		node.client().admin().indices().prepareRefresh("bitmap_test").execute().actionGet();
+	}
+
+	@After
+	public void tearDown() {
+		node.client().admin().indices().prepareDelete("bitmap_test").execute().actionGet();
+	}
+
+	@Test
+	public void countsMatchElasticsearch() {
+		Assert.assertFalse(index.stale());
+		Assert.assertEquals(esCount(BeerFilter.price(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY)), index.numDocs());
+
+		List<BeerFilter> filters = new ArrayList<BeerFilter>();
+		filters.add(BeerFilter.brand("Heineken"));
+		filters.add(BeerFilter.brand("Unknown"));
+		filters.add(BeerFilter.colour(Colour.PALE));
+		filters.add(BeerFilter.price(3, 6));
+		filters.add(BeerFilter.price(2.5, 7.25));
+		filters.add(BeerFilter.price(Double.NEGATIVE_INFINITY, 4.2));
+		filters.add(BeerFilter.size(0.8, Double.POSITIVE_INFINITY));
+		filters.add(BeerFilter.and(BeerFilter.brand("Heineken"), BeerFilter.colour(Colour.DARK)));
+		filters.add(BeerFilter.and(BeerFilter.colour(Colour.WHITE), BeerFilter.price(5.5, 9), BeerFilter.size(0.3, 1.1)));
+		filters.add(BeerFilter.or(BeerFilter.brand("Heineken"), BeerFilter.brand("Grimbergen")));
+		filters.add(BeerFilter.and(BeerFilter.or(BeerFilter.colour(Colour.PALE), BeerFilter.colour(Colour.DARK)),
+				BeerFilter.price(4, 8)));
+
+		for (BeerFilter filter : filters) {
+			Assert.assertEquals(filter.toString(), esCount(filter), index.count(filter));
+			Assert.assertEquals(filter.toString(), index.count(filter), index.ids(filter).size());
+		}
+	}
+
+	@Test
+	public void deletedAndOverwrittenBeers() {
+		List<String> heineken = index.ids(BeerFilter.and(BeerFilter.brand("Heineken"), BeerFilter.price(4.5, 4.51)));
+		Assert.assertTrue(heineken.contains("beer_10"));
+		Assert.assertFalse(index.ids(BeerFilter.brand(beers.get(7).getBrand())).contains("beer_7"));
+
+		Assert.assertTrue(index.delete("beer_10"));
+		Assert.assertFalse(index.delete("beer_10"));
+		Assert.assertFalse(index.ids(BeerFilter.brand("Heineken")).contains("beer_10"));
+	}
+
+	@Test
+	public void sealedBlocksAreSmaller() {
+		BeerBitmapIndex open = new BeerBitmapIndex(16, 1, 0.25);
+		BeerBitmapIndex sealed = new BeerBitmapIndex(8, 1, 0.25);
+		for (int i = 0; i < beers.size(); i++) {
+			open.add("beer_" + i, beers.get(i));
+			sealed.add("beer_" + i, beers.get(i));
+		}
+		logger.info("bitmap index: {} bytes with one open block, {} bytes with sealed blocks",
+				open.ramBytesUsed(), sealed.ramBytesUsed());
+		Assert.assertTrue(sealed.ramBytesUsed() < open.ramBytesUsed());
+		Assert.assertEquals(open.count(BeerFilter.price(3, 6)), sealed.count(BeerFilter.price(3, 6)));
+	}
+
+	private long esCount(BeerFilter filter) {
+		return node.client().prepareCount("bitmap_test")
+				.setQuery(QueryBuilders.filteredQuery(QueryBuilders.matchAllQuery(), filter.toFilterBuilder()))
+				.execute().actionGet().getCount();
+	}
+}
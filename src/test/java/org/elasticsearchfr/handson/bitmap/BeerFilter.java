@@ -0,0 +1,199 @@
+package org.elasticsearchfr.handson.bitmap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.util.WAH8DocIdSet;
+import org.elasticsearch.index.query.FilterBuilder;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.index.query.RangeFilterBuilder;
+import org.elasticsearchfr.handson.beans.Colour;
+
+/**
+ * A filter on beers, evaluated by {@link BeerBitmapIndex} with bitmap operations, or sent
+ * to Elasticsearch with {@link #toFilterBuilder()} to compare both.
+ * <br>Usage:
+ * <pre>
+ * BeerFilter filter = BeerFilter.and(BeerFilter.brand("Heineken"), BeerFilter.price(5, 10));
+ * int count = index.count(filter);
+ * </pre>
+ */
+public abstract class BeerFilter {
+
+	/**
+	 * Beers of a brand. Case sensitive, like a not analyzed field.
+	 */
+	public static BeerFilter brand(String brand) {
+		return new Term(BeerBitmapIndex.BRAND, brand);
+	}
+
+	/**
+	 * Beers of a colour
+	 */
+	public static BeerFilter colour(Colour colour) {
+		return new Term(BeerBitmapIndex.COLOUR, colour.name());
+	}
+
+	/**
+	 * Beers with <code>from &lt;= price &lt; to</code>. Use infinity for an unbounded range.
+	 */
+	public static BeerFilter price(double from, double to) {
+		return new Range(BeerBitmapIndex.PRICE, from, to);
+	}
+
+	/**
+	 * Beers with <code>from &lt;= size &lt; to</code>. Use infinity for an unbounded range.
+	 */
+	public static BeerFilter size(double from, double to) {
+		return new Range(BeerBitmapIndex.SIZE, from, to);
+	}
+
+	/**
+	 * Beers matching all filters
+	 */
+	public static BeerFilter and(BeerFilter... filters) {
+		return new And(filters);
+	}
+
+	/**
+	 * Beers matching at least one filter
+	 */
+	public static BeerFilter or(BeerFilter... filters) {
+		return new Or(filters);
+	}
+
+	/**
+	 * @return the same filter for Elasticsearch. <code>brand</code> and <code>colour</code> must be
+	 * not analyzed, as with {@link org.elasticsearchfr.handson.MealTemplate}.
+	 */
+	public abstract FilterBuilder toFilterBuilder();
+
+	/**
+	 * @return matching docs of a block, deleted ones included, or null if none
+	 */
+	abstract WAH8DocIdSet docs(BeerBitmapIndex.Block block);
+
+	static class Term extends BeerFilter {
+		final String field;
+		final String value;
+
+		Term(String field, String value) {
+			this.field = field;
+			this.value = value;
+		}
+
+		@Override
+		WAH8DocIdSet docs(BeerBitmapIndex.Block block) {
+			return block.term(field, value);
+		}
+
+		@Override
+		public FilterBuilder toFilterBuilder() {
+			return FilterBuilders.termFilter(field, value);
+		}
+
+		@Override
+		public String toString() {
+			return field + ":" + value;
+		}
+	}
+
+	static class Range extends BeerFilter {
+		final String field;
+		final double from;
+		final double to;
+
+		Range(String field, double from, double to) {
+			this.field = field;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		WAH8DocIdSet docs(BeerBitmapIndex.Block block) {
+			return block.range(field, from, to);
+		}
+
+		@Override
+		public FilterBuilder toFilterBuilder() {
+			RangeFilterBuilder range = FilterBuilders.rangeFilter(field);
+			if (!Double.isInfinite(from)) range.gte(from);
+			if (!Double.isInfinite(to)) range.lt(to);
+			return range;
+		}
+
+		@Override
+		public String toString() {
+			return field + ":[" + from + " TO " + to + "[";
+		}
+	}
+
+	static class And extends BeerFilter {
+		final List<BeerFilter> filters;
+
+		And(BeerFilter... filters) {
+			this.filters = Arrays.asList(filters);
+		}
+
+		@Override
+		WAH8DocIdSet docs(BeerBitmapIndex.Block block) {
+			List<WAH8DocIdSet> sets = new ArrayList<WAH8DocIdSet>(filters.size());
+			for (BeerFilter filter : filters) {
+				WAH8DocIdSet set = filter.docs(block);
+				// Nothing can match
+				if (set == null) return null;
+				sets.add(set);
+			}
+			if (sets.isEmpty()) return null;
+			WAH8DocIdSet docs = WAH8DocIdSet.intersect(sets);
+			return docs.cardinality() == 0 ? null : docs;
+		}
+
+		@Override
+		public FilterBuilder toFilterBuilder() {
+			FilterBuilder[] builders = new FilterBuilder[filters.size()];
+			for (int i = 0; i < builders.length; i++) {
+				builders[i] = filters.get(i).toFilterBuilder();
+			}
+			return FilterBuilders.andFilter(builders);
+		}
+
+		@Override
+		public String toString() {
+			return "and" + filters;
+		}
+	}
+
+	static class Or extends BeerFilter {
+		final List<BeerFilter> filters;
+
+		Or(BeerFilter... filters) {
+			this.filters = Arrays.asList(filters);
+		}
+
+		@Override
+		WAH8DocIdSet docs(BeerBitmapIndex.Block block) {
+			List<WAH8DocIdSet> sets = new ArrayList<WAH8DocIdSet>(filters.size());
+			for (BeerFilter filter : filters) {
+				WAH8DocIdSet set = filter.docs(block);
+				if (set != null) sets.add(set);
+			}
+			return BeerBitmapIndex.union(sets);
+		}
+
+		@Override
+		public FilterBuilder toFilterBuilder() {
+			FilterBuilder[] builders = new FilterBuilder[filters.size()];
+			for (int i = 0; i < builders.length; i++) {
+				builders[i] = filters.get(i).toFilterBuilder();
+			}
+			return FilterBuilders.orFilter(builders);
+		}
+
+		@Override
+		public String toString() {
+			return "or" + filters;
+		}
+	}
+}
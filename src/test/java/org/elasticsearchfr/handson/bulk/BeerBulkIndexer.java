@@ -0,0 +1,449 @@
+package org.elasticsearchfr.handson.bulk;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.metrics.MeanMetric;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearchfr.handson.beans.Beer;
+import org.elasticsearchfr.handson.beans.BeerCodec;
+import org.elasticsearchfr.handson.routing.BrandRouting;
+
+/**
+ * Streams beers to Elasticsearch using a {@link BulkProcessor}.
+ * <br>A bulk is sent as soon as we reach a number of actions, a payload size
+ * or a flush interval.
+ * <br>Up to <code>concurrentRequests</code> bulks can be in flight. When this limit
+ * is reached, {@link #add(String, Beer)} blocks the producer until one bulk comes back.
+ * <br>{@link Listener}s are told about each beer successfully indexed or deleted, for example to maintain
+ * {@link org.elasticsearchfr.handson.facet.BeerFacetCounters}.
+ * <br>With <code>routeByBrand</code>, beers are routed by brand (see {@link BrandRouting}): searches on one
+ * brand can then ask one shard, for example through a {@link org.elasticsearchfr.handson.routing.RoutingClient}.
+ * Gets, updates and deletes of these beers need the same routing.
+ * <br>The routing comes from the brand: re-adding an id with another brand indexes the new beer on another
+ * shard, and the old one stays where it was. The id is then found twice. Delete the old beer first.
+ * <br>Usage:
+ * <pre>
+ * BeerBulkIndexer indexer = BeerBulkIndexer.builder(client, "meal", "beer").bulkActions(1000).build();
+ * for (...) indexer.add("beer_" + i, beer);
+ * indexer.close();
+ * </pre>
+ */
+public class BeerBulkIndexer {
+	private static final ESLogger logger = ESLoggerFactory.getLogger(BeerBulkIndexer.class.getName());
+
+	private final String index;
+	private final String type;
+	private final BulkProcessor processor;
+	private final BulkStats stats = new BulkStats();
+	private final List<Listener> listeners;
+	private final boolean routeByBrand;
+
+	/**
+	 * Beers of requests in flight, when we have listeners
+	 */
+	private final Map<ActionRequest, Beer> beers = Collections.synchronizedMap(new IdentityHashMap<ActionRequest, Beer>());
+
+	/**
+	 * Start time of each bulk in flight, by execution id
+	 */
+	private final ConcurrentMap<Long, Long> inFlight = new ConcurrentHashMap<Long, Long>();
+
+	private BeerBulkIndexer(Builder builder) {
+		this.index = builder.index;
+		this.type = builder.type;
+		this.listeners = new ArrayList<Listener>(builder.listeners);
+		this.routeByBrand = builder.routeByBrand;
+		this.processor = BulkProcessor.builder(builder.client, new StatsListener())
+				.setName(builder.name)
+				.setBulkActions(builder.bulkActions)
+				.setBulkSize(builder.bulkSize)
+				.setFlushInterval(builder.flushInterval)
+				.setConcurrentRequests(builder.concurrentRequests)
+				.build();
+	}
+
+	/**
+	 * @param client Client to use
+	 * @param index Index name, for example "meal"
+	 * @param type Type name, for example "beer"
+	 * @return a builder with default settings (1000 actions, 5mb, no flush interval, 1 concurrent bulk)
+	 */
+	public static Builder builder(Client client, String index, String type) {
+		return new Builder(client, index, type);
+	}
+
+	/**
+	 * Add a beer with a given id. Might block if too many bulks are in flight.
+	 * @param id Document id. If null, Elasticsearch will generate it.
+	 * @param beer Beer to index. With <code>routeByBrand</code>, an existing id must keep its brand:
+	 * see {@link BeerBulkIndexer}.
+	 * @throws IOException if beer can not be serialized
+	 */
+	public void add(String id, Beer beer) throws IOException {
+		IndexRequest irq = BeerCodec.source(new IndexRequest(index, type, id), beer);
+		if (routeByBrand) irq.routing(BrandRouting.routing(beer));
+		if (!listeners.isEmpty()) beers.put(irq, beer);
+		processor.add(irq);
+	}
+
+	/**
+	 * Delete a beer. Might block if too many bulks are in flight.
+	 * @param id Document id
+	 * @param beer Beer we delete, given to listeners. Can be null if listeners don't need it,
+	 * and beers are not routed by brand.
+	 */
+	public void delete(String id, Beer beer) {
+		DeleteRequest drq = new DeleteRequest(index, type, id);
+		if (routeByBrand) {
+			// Without routing, the delete would go to the shard of the id, and find nothing
+			if (beer == null) throw new IllegalArgumentException("beers are routed by brand: can not delete [" + id + "] without its beer");
+			drq.routing(BrandRouting.routing(beer));
+		}
+		if (!listeners.isEmpty()) beers.put(drq, beer);
+		processor.add(drq);
+	}
+
+	/**
+	 * Add an already built index request. Might block if too many bulks are in flight.
+	 * <br>We don't know which beer it is: listeners are told about an unknown change.
+	 * @param irq Request to add to the current bulk
+	 */
+	public void add(IndexRequest irq) {
+		for (Listener listener : listeners) {
+			listener.onUnknownChange("raw index request");
+		}
+		processor.add(irq);
+	}
+
+	/**
+	 * Add all beers coming from an iterator. Ids are generated as <code>idPrefix + n</code>.
+	 * @param idPrefix Prefix for ids. If null, Elasticsearch will generate ids.
+	 * @param beers Beers to index
+	 * @return the number of beers added
+	 * @throws IOException if a beer can not be serialized
+	 */
+	public long addAll(String idPrefix, Iterator<Beer> beers) throws IOException {
+		long n = 0;
+		while (beers.hasNext()) {
+			add(idPrefix == null ? null : idPrefix + n, beers.next());
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Send the remaining actions and wait for all bulks in flight to come back.
+	 * @param timeout Max time to wait
+	 * @param unit Time unit
+	 * @return true if all bulks came back before the timeout
+	 * @throws InterruptedException
+	 */
+	public boolean awaitClose(long timeout, TimeUnit unit) throws InterruptedException {
+		processor.close();
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized (inFlight) {
+			while (!inFlight.isEmpty()) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) return false;
+				TimeUnit.NANOSECONDS.timedWait(inFlight, remaining);
+			}
+		}
+		logger.debug("bulk indexer closed: {}", stats);
+		return true;
+	}
+
+	/**
+	 * Send the remaining actions and wait (up to one minute) for all bulks in flight to come back.
+	 * <br>Use {@link #awaitClose(long, TimeUnit)} to choose what to do when bulks are still running.
+	 * @throws InterruptedException
+	 * @throws IllegalStateException if some bulks are still running after one minute: their beers may not be indexed
+	 */
+	public void close() throws InterruptedException {
+		if (!awaitClose(1, TimeUnit.MINUTES)) {
+			throw new IllegalStateException("some bulks are still running after 1 minute: " + stats);
+		}
+	}
+
+	/**
+	 * @return Statistics for this indexer
+	 */
+	public BulkStats stats() {
+		return stats;
+	}
+
+	/**
+	 * Told about each action of a bulk when it comes back, from the bulk thread
+	 */
+	public static interface Listener {
+		/**
+		 * A beer was indexed
+		 * @param created false if it replaced a document with the same id
+		 */
+		void onIndexed(String id, Beer beer, boolean created);
+
+		/**
+		 * A beer was deleted
+		 * @param beer Beer given to {@link BeerBulkIndexer#delete(String, Beer)}, may be null
+		 * @param found false if there was no document with this id
+		 */
+		void onDeleted(String id, Beer beer, boolean found);
+
+		/**
+		 * The index changed and we don't know how: raw index request, failed bulk...
+		 */
+		void onUnknownChange(String reason);
+	}
+
+	private class StatsListener implements BulkProcessor.Listener {
+		@Override
+		public void beforeBulk(long executionId, BulkRequest request) {
+			inFlight.put(executionId, System.nanoTime());
+		}
+
+		@Override
+		public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+			long tookNanos = took(executionId);
+			int failures = 0;
+			for (BulkItemResponse item : response) {
+				if (item.isFailed()) failures++;
+			}
+			stats.onBulk(request.numberOfActions(), request.estimatedSizeInBytes(), failures, tookNanos);
+			if (!listeners.isEmpty()) notifyListeners(request.requests(), response);
+			if (failures > 0) {
+				logger.warn("bulk [{}] has {} failures: {}", executionId, failures, response.buildFailureMessage());
+			}
+			logger.trace("bulk [{}] of {} actions took {} ms", executionId, request.numberOfActions(), TimeUnit.NANOSECONDS.toMillis(tookNanos));
+			done(executionId);
+		}
+
+		@Override
+		public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+			long tookNanos = took(executionId);
+			stats.onBulk(request.numberOfActions(), request.estimatedSizeInBytes(), request.numberOfActions(), tookNanos);
+			if (!listeners.isEmpty()) {
+				// Some actions may have been executed anyway
+				for (ActionRequest action : request.requests()) {
+					beers.remove(action);
+				}
+				for (Listener listener : listeners) {
+					listener.onUnknownChange("bulk failure");
+				}
+			}
+			logger.warn("bulk [{}] of {} actions failed", failure, executionId, request.numberOfActions());
+			done(executionId);
+		}
+
+		private void notifyListeners(List<ActionRequest> actions, BulkResponse response) {
+			BulkItemResponse[] items = response.getItems();
+			for (int i = 0; i < items.length; i++) {
+				Beer beer = beers.remove(actions.get(i));
+				if (items[i].isFailed()) continue;
+				for (Listener listener : listeners) {
+					if (items[i].getResponse() instanceof DeleteResponse) {
+						listener.onDeleted(items[i].getId(), beer, ((DeleteResponse) items[i].getResponse()).isFound());
+					} else if (beer != null) {
+						// Raw index requests were already notified as unknown changes
+						listener.onIndexed(items[i].getId(), beer, ((IndexResponse) items[i].getResponse()).isCreated());
+					}
+				}
+			}
+		}
+
+		private long took(long executionId) {
+			Long start = inFlight.get(executionId);
+			return start == null ? 0 : System.nanoTime() - start;
+		}
+
+		/**
+		 * Stats must be updated before calling this, as it wakes up {@link BeerBulkIndexer#awaitClose(long, TimeUnit)}
+		 */
+		private void done(long executionId) {
+			synchronized (inFlight) {
+				inFlight.remove(executionId);
+				inFlight.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Bulk statistics: number of bulks, actions, bytes, failures, latency and throughput
+	 */
+	public static class BulkStats {
+		private final long startNanos = System.nanoTime();
+		private final MeanMetric latency = new MeanMetric();
+		private final CounterMetric actions = new CounterMetric();
+		private final CounterMetric bytes = new CounterMetric();
+		private final CounterMetric failures = new CounterMetric();
+		private final AtomicLong maxLatency = new AtomicLong();
+
+		void onBulk(int nbActions, long nbBytes, int nbFailures, long tookNanos) {
+			latency.inc(tookNanos);
+			actions.inc(nbActions);
+			bytes.inc(nbBytes);
+			failures.inc(nbFailures);
+			long max;
+			while (tookNanos > (max = maxLatency.get()) && !maxLatency.compareAndSet(max, tookNanos));
+		}
+
+		/**
+		 * @return Number of bulks executed
+		 */
+		public long bulks() {
+			return latency.count();
+		}
+
+		/**
+		 * @return Number of actions sent
+		 */
+		public long actions() {
+			return actions.count();
+		}
+
+		/**
+		 * @return Estimated number of bytes sent
+		 */
+		public long bytes() {
+			return bytes.count();
+		}
+
+		/**
+		 * @return Number of failed actions
+		 */
+		public long failures() {
+			return failures.count();
+		}
+
+		/**
+		 * @return Mean latency of a bulk
+		 */
+		public TimeValue meanLatency() {
+			return TimeValue.timeValueNanos((long) latency.mean());
+		}
+
+		/**
+		 * @return Max latency of a bulk
+		 */
+		public TimeValue maxLatency() {
+			return TimeValue.timeValueNanos(maxLatency.get());
+		}
+
+		/**
+		 * @return Number of actions per second since the indexer was created
+		 */
+		public double actionsPerSecond() {
+			long elapsed = System.nanoTime() - startNanos;
+			return elapsed == 0 ? 0 : actions() * 1e9 / elapsed;
+		}
+
+		@Override
+		public String toString() {
+			return "bulks [" + bulks() + "], actions [" + actions() + "], failures [" + failures()
+					+ "], size [" + new ByteSizeValue(bytes()) + "], mean latency [" + meanLatency()
+					+ "], max latency [" + maxLatency() + "], throughput [" + Math.round(actionsPerSecond()) + " actions/s]";
+		}
+	}
+
+	public static class Builder {
+		private final Client client;
+		private final String index;
+		private final String type;
+		private String name = "beers";
+		private int bulkActions = 1000;
+		private ByteSizeValue bulkSize = new ByteSizeValue(5, ByteSizeUnit.MB);
+		private TimeValue flushInterval = null;
+		private int concurrentRequests = 1;
+		private final List<Listener> listeners = new ArrayList<Listener>();
+		private boolean routeByBrand = false;
+
+		private Builder(Client client, String index, String type) {
+			this.client = client;
+			this.index = index;
+			this.type = type;
+		}
+
+		/**
+		 * @param name Name of the bulk processor
+		 */
+		public Builder name(String name) {
+			this.name = name;
+			return this;
+		}
+
+		/**
+		 * @param bulkActions Flush when we reach this number of actions. -1 to disable.
+		 */
+		public Builder bulkActions(int bulkActions) {
+			this.bulkActions = bulkActions;
+			return this;
+		}
+
+		/**
+		 * @param bulkSize Flush when we reach this payload size. -1 to disable.
+		 */
+		public Builder bulkSize(ByteSizeValue bulkSize) {
+			this.bulkSize = bulkSize;
+			return this;
+		}
+
+		/**
+		 * @param flushInterval Flush every flushInterval. null to disable.
+		 */
+		public Builder flushInterval(TimeValue flushInterval) {
+			this.flushInterval = flushInterval;
+			return this;
+		}
+
+		/**
+		 * @param concurrentRequests Number of bulks allowed in flight. 0 means synchronous bulks.
+		 */
+		public Builder concurrentRequests(int concurrentRequests) {
+			this.concurrentRequests = concurrentRequests;
+			return this;
+		}
+
+		/**
+		 * @param listener Told about indexed and deleted beers. Can be called several times.
+		 */
+		public Builder listener(Listener listener) {
+			this.listeners.add(listener);
+			return this;
+		}
+
+		/**
+		 * @param routeByBrand true to route beers by brand. Raw index requests are sent as they are.
+		 */
+		public Builder routeByBrand(boolean routeByBrand) {
+			this.routeByBrand = routeByBrand;
+			return this;
+		}
+
+		public BeerBulkIndexer build() {
+			return new BeerBulkIndexer(this);
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package org.elasticsearchfr.handson.bulk;
+
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.count.CountResponse;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearchfr.handson.StartNode;
+import org.elasticsearchfr.handson.beans.BeerHelper;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * We check that the bulk indexer sends all beers, whatever the flush rule is.
+ */
+public class BeerBulkIndexerTest extends StartNode {
+
+	@After
+	public void tearDown() {
+		if (node.client().admin().indices().prepareExists("bulk_test").execute().actionGet().isExists()) {
+			node.client().admin().indices().prepareDelete("bulk_test").execute().actionGet();
+		}
+	}
+
+	/**
+	 * We index 10000 beers with 100 actions per bulk and 4 bulks in flight
+	 */
+	@Test
+	public void flushOnActions() throws Exception {
+		BeerBulkIndexer indexer = BeerBulkIndexer.builder(node.client(), "bulk_test", "beer")
+				.bulkActions(100).concurrentRequests(4).build();
+
+		for (int i = 0; i < 10000; i++) {
+			indexer.add("beer_" + i, BeerHelper.generate());
+		}
+		Assert.assertTrue(indexer.awaitClose(1, TimeUnit.MINUTES));
+
+		Assert.assertTrue(indexer.stats().bulks() >= 99);
+		Assert.assertEquals(10000, indexer.stats().actions());
+		Assert.assertEquals(0, indexer.stats().failures());
+		Assert.assertEquals(10000, count());
+	}
+
+	/**
+	 * We index 1000 beers with a 10kb payload limit and a flush interval
+	 */
+	@Test
+	public void flushOnSize() throws Exception {
+		BeerBulkIndexer indexer = BeerBulkIndexer.builder(node.client(), "bulk_test", "beer")
+				.bulkActions(-1).bulkSize(new ByteSizeValue(10, ByteSizeUnit.KB))
+				.flushInterval(TimeValue.timeValueMillis(100)).concurrentRequests(0).build();
+
+		for (int i = 0; i < 1000; i++) {
+			indexer.add("beer_" + i, BeerHelper.generate());
+		}
+		indexer.close();
+
+		Assert.assertTrue(indexer.stats().bulks() > 1);
+		Assert.assertEquals(1000, indexer.stats().actions());
+		Assert.assertEquals(1000, count());
+	}
+
+	private long count() {
+		node.client().admin().indices().prepareRefresh("bulk_test").execute().actionGet();
+		CountResponse cr = node.client().prepareCount("bulk_test").execute().actionGet();
+		return cr.getCount();
+	}
+}
@@ -0,0 +1,234 @@
+package org.elasticsearchfr.handson.bulk;
+
+import java.util.concurrent.Callable;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * Prepares an index for a big load, and puts it back as it was when the load is done.
+ * <br>During the session:
+ * <ul>
+ * <li>no refresh (<code>refresh_interval: -1</code>): we don't build segments nobody searches, only to merge them away
+ * <li>no replica: documents are indexed once. Replicas are rebuilt from the final segments when they come back.
+ * <li>higher translog flush thresholds: fewer Lucene commits
+ * </ul>
+ * When the session is closed, the index is refreshed, and if <code>maxSegments</code> is set, optimized down
+ * to that number of segments. Then settings are restored, even if the load failed.
+ * <br>Documents indexed during the session are not searchable before {@link #close()}, and are lost
+ * if the node dies before replicas come back.
+ * <br>Usage:
+ * <pre>
+ * BulkIngestSession session = BulkIngestSession.builder(client, "meal").maxSegments(1).build();
+ * session.start();
+ * try {
+ *     indexer.addAll("beer_", beers);
+ *     indexer.close();
+ * } finally {
+ *     session.close();
+ * }
+ * </pre>
+ */
+public class BulkIngestSession {
+	private static final ESLogger logger = ESLoggerFactory.getLogger(BulkIngestSession.class.getName());
+
+	public static final String REFRESH_INTERVAL = "index.refresh_interval";
+	public static final String NUMBER_OF_REPLICAS = "index.number_of_replicas";
+	public static final String FLUSH_THRESHOLD_OPS = "index.translog.flush_threshold_ops";
+	public static final String FLUSH_THRESHOLD_SIZE = "index.translog.flush_threshold_size";
+	public static final String FLUSH_THRESHOLD_PERIOD = "index.translog.flush_threshold_period";
+
+	/**
+	 * Elasticsearch 1.0 defaults, restored when the index had no value
+	 */
+	public static final Settings DEFAULTS = ImmutableSettings.settingsBuilder()
+			.put(REFRESH_INTERVAL, "1s")
+			.put(FLUSH_THRESHOLD_OPS, 5000)
+			.put(FLUSH_THRESHOLD_SIZE, "200mb")
+			.put(FLUSH_THRESHOLD_PERIOD, "30m")
+			.build();
+
+	private final Client client;
+	private final String index;
+	private final Settings ingestSettings;
+	private final Settings restore;
+	private final int maxSegments;
+
+	private Settings previous = null;
+	private boolean failed = false;
+	private long start;
+	private TimeValue took = null;
+
+	private BulkIngestSession(Builder builder) {
+		this.client = builder.client;
+		this.index = builder.index;
+		this.maxSegments = builder.maxSegments;
+		this.restore = builder.restore;
+		this.ingestSettings = ImmutableSettings.settingsBuilder()
+				.put(REFRESH_INTERVAL, -1)
+				.put(NUMBER_OF_REPLICAS, 0)
+				.put(FLUSH_THRESHOLD_OPS, builder.flushThresholdOps)
+				.put(FLUSH_THRESHOLD_SIZE, builder.flushThresholdSize.toString())
+				.put(FLUSH_THRESHOLD_PERIOD, builder.flushThresholdPeriod.toString())
+				.build();
+	}
+
+	/**
+	 * @param client Client to use
+	 * @param index Index to load. It must exist before the session starts.
+	 * @return a builder with default settings (translog flushed every 500mb or 1 hour, no optimize)
+	 */
+	public static Builder builder(Client client, String index) {
+		return new Builder(client, index);
+	}
+
+	/**
+	 * Remember current settings, and switch the index to ingest settings
+	 */
+	public synchronized void start() {
+		if (previous != null) throw new IllegalStateException("ingest session on [" + index + "] already started");
+		Settings current = client.admin().indices().prepareGetSettings(index).execute().actionGet().getIndexToSettings().get(index);
+		if (current == null) throw new IllegalArgumentException("index [" + index + "] does not exist");
+
+		ImmutableSettings.Builder values = ImmutableSettings.settingsBuilder();
+		for (String key : ingestSettings.getAsMap().keySet()) {
+			String value = restore.get(key, current.get(key, DEFAULTS.get(key)));
+			if (value != null) values.put(key, value);
+		}
+		previous = values.build();
+		start = System.nanoTime();
+		updateSettings(ingestSettings);
+		logger.debug("ingest session on [{}] started, settings to restore: {}", index, previous.getAsMap());
+	}
+
+	/**
+	 * Tell the session the load failed: {@link #close()} restores settings but does not optimize
+	 */
+	public synchronized void failed() {
+		failed = true;
+	}
+
+	/**
+	 * Refresh, optimize if the load did not fail, then restore settings.
+	 * <br>Replicas come back last, so they copy the merged segments instead of merging again on every copy.
+	 * Settings are restored even if the refresh or the optimize fail.
+	 */
+	public synchronized void close() {
+		if (previous == null) return;
+		try {
+			client.admin().indices().prepareRefresh(index).execute().actionGet();
+			if (maxSegments > 0 && !failed) {
+				client.admin().indices().prepareOptimize(index).setMaxNumSegments(maxSegments).setWaitForMerge(true).execute().actionGet();
+			}
+		} finally {
+			try {
+				updateSettings(previous);
+				logger.debug("settings of [{}] restored", index);
+			} finally {
+				previous = null;
+			}
+		}
+		took = TimeValue.timeValueNanos(System.nanoTime() - start);
+		logger.debug("ingest session on [{}] closed in {}", index, took);
+	}
+
+	/**
+	 * Run a load within a session: start, run, close, whatever happens
+	 * @return what the load returns
+	 */
+	public <T> T run(Callable<T> load) throws Exception {
+		start();
+		try {
+			return load.call();
+		} catch (Exception e) {
+			failed();
+			throw e;
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * @return true while settings are changed
+	 */
+	public synchronized boolean started() {
+		return previous != null;
+	}
+
+	/**
+	 * @return time from start to the end of close (optimize included), null if the session was not closed
+	 */
+	public synchronized TimeValue took() {
+		return took;
+	}
+
+	private void updateSettings(Settings settings) {
+		client.admin().indices().prepareUpdateSettings(index).setSettings(settings).execute().actionGet();
+	}
+
+	public static class Builder {
+		private final Client client;
+		private final String index;
+		private int flushThresholdOps = Integer.MAX_VALUE;
+		private ByteSizeValue flushThresholdSize = new ByteSizeValue(500, ByteSizeUnit.MB);
+		private TimeValue flushThresholdPeriod = TimeValue.timeValueHours(1);
+		private int maxSegments = -1;
+		private Settings restore = ImmutableSettings.EMPTY;
+
+		private Builder(Client client, String index) {
+			this.client = client;
+			this.index = index;
+		}
+
+		/**
+		 * @param flushThresholdOps Flush the translog after this number of operations
+		 */
+		public Builder flushThresholdOps(int flushThresholdOps) {
+			this.flushThresholdOps = flushThresholdOps;
+			return this;
+		}
+
+		/**
+		 * @param flushThresholdSize Flush the translog when it reaches this size
+		 */
+		public Builder flushThresholdSize(ByteSizeValue flushThresholdSize) {
+			this.flushThresholdSize = flushThresholdSize;
+			return this;
+		}
+
+		/**
+		 * @param flushThresholdPeriod Flush the translog at least this often
+		 */
+		public Builder flushThresholdPeriod(TimeValue flushThresholdPeriod) {
+			this.flushThresholdPeriod = flushThresholdPeriod;
+			return this;
+		}
+
+		/**
+		 * @param maxSegments Optimize down to this number of segments per shard when the session is closed. -1 for no optimize.
+		 */
+		public Builder maxSegments(int maxSegments) {
+			this.maxSegments = maxSegments;
+			return this;
+		}
+
+		/**
+		 * @param restore Values to put back when the session is closed, instead of the values the index has
+		 * when the session starts. Useful if a previous session was never closed. Missing settings are read from the index.
+		 */
+		public Builder restore(Settings restore) {
+			this.restore = restore;
+			return this;
+		}
+
+		public BulkIngestSession build() {
+			return new BulkIngestSession(this);
+		}
+	}
+}
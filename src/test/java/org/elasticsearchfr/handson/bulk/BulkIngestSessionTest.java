@@ -0,0 +1,159 @@
+package org.elasticsearchfr.handson.bulk;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearchfr.handson.BenchmarkCsv;
+import org.elasticsearchfr.handson.StartNode;
+import org.elasticsearchfr.handson.beans.BeerGenerator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * We load the same beers with and without an ingest session, and check that settings always come back.
+ * <br>{@link #ingestVersusNormalMode()} writes throughput in target/ingest/ingest.csv, with and without
+ * the final optimize. A first load warms up the node, then each round changes which mode loads first.
+ * <br>On a single node, replicas are unassigned anyway: the gain measured comes from the refresh interval
+ * and translog flushes, not from dropping replicas.
+ * You can change the runs with system properties:
+ * <ul>
+ * <li>ingest.docs: beers loaded in each mode (default to 20000)
+ * <li>ingest.rounds: loads of each mode (default to 2)
+ * </ul>
+ */
+public class BulkIngestSessionTest extends StartNode {
+	private static final ESLogger logger = ESLoggerFactory.getLogger(BulkIngestSessionTest.class.getName());
+
+	@Before
+	public void setUp() {
+		create("ingest_normal");
+		create("ingest_session");
+	}
+
+	@After
+	public void tearDown() {
+		for (String index : new String[] { "ingest_normal", "ingest_session", "ingest_warmup" }) {
+			if (node.client().admin().indices().prepareExists(index).execute().actionGet().isExists()) {
+				node.client().admin().indices().prepareDelete(index).execute().actionGet();
+			}
+		}
+	}
+
+	@Test
+	public void settingsAreRestoredOnFailure() throws Exception {
+		final BulkIngestSession session = BulkIngestSession.builder(node.client(), "ingest_session").maxSegments(1).build();
+		try {
+			session.run(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					Settings during = settings("ingest_session");
+					Assert.assertEquals("-1", during.get(BulkIngestSession.REFRESH_INTERVAL));
+					Assert.assertEquals("0", during.get(BulkIngestSession.NUMBER_OF_REPLICAS));
+					Assert.assertEquals(String.valueOf(Integer.MAX_VALUE), during.get(BulkIngestSession.FLUSH_THRESHOLD_OPS));
+					throw new IllegalStateException("load failed");
+				}
+			});
+			Assert.fail("the load failure should be thrown");
+		} catch (IllegalStateException e) {
+			Assert.assertEquals("load failed", e.getMessage());
+		}
+
+		Assert.assertFalse(session.started());
+		Settings after = settings("ingest_session");
+		Assert.assertEquals("2s", after.get(BulkIngestSession.REFRESH_INTERVAL));
+		Assert.assertEquals("1", after.get(BulkIngestSession.NUMBER_OF_REPLICAS));
+		// Values the index did not have come back to Elasticsearch defaults
+		Assert.assertEquals("5000", after.get(BulkIngestSession.FLUSH_THRESHOLD_OPS));
+		Assert.assertEquals("200mb", after.get(BulkIngestSession.FLUSH_THRESHOLD_SIZE));
+	}
+
+	@Test
+	public void ingestVersusNormalMode() throws Exception {
+		int docs = Integer.parseInt(System.getProperty("ingest.docs", "20000"));
+		int rounds = Integer.parseInt(System.getProperty("ingest.rounds", "2"));
+
+		// Warm up JIT and bulk thread pools, so the first measured mode does not pay for them
+		create("ingest_warmup");
+		load("ingest_warmup", docs);
+		node.client().admin().indices().prepareDelete("ingest_warmup").execute().actionGet();
+
+		for (int round = 0; round < rounds; round++) {
+			if (round > 0) {
+				tearDown();
+				setUp();
+			}
+			// Odd rounds load the ingest session first, so neither mode always comes second
+			double[] ingest = round % 2 == 1 ? session(docs) : null;
+			double normal = normal(docs);
+			if (ingest == null) ingest = session(docs);
+
+			logger.info("[{}] beers, round [{}]: normal mode [{} docs/s], ingest session [{} docs/s], [{} docs/s] with restore and optimize",
+					docs, round, String.format(Locale.ROOT, "%.0f", normal), String.format(Locale.ROOT, "%.0f", ingest[0]),
+					String.format(Locale.ROOT, "%.0f", ingest[1]));
+			BenchmarkCsv.append(new File("target/ingest/ingest.csv"),
+					"docs,round,normal_docs_per_s,ingest_docs_per_s,ingest_with_optimize_docs_per_s,speedup",
+					BenchmarkCsv.row("%d,%d,%.0f,%.0f,%.0f,%.2f", docs, round, normal, ingest[0], ingest[1], ingest[0] / normal));
+
+			Assert.assertEquals(docs, node.client().prepareCount("ingest_normal").execute().actionGet().getCount());
+			Assert.assertEquals(docs, node.client().prepareCount("ingest_session").execute().actionGet().getCount());
+			long segments = node.client().admin().indices().prepareStats("ingest_session").clear().setSegments(true).execute().actionGet()
+					.getPrimaries().getSegments().getCount();
+			Assert.assertTrue("segments: " + segments, segments <= 5);
+			Assert.assertEquals("2s", settings("ingest_session").get(BulkIngestSession.REFRESH_INTERVAL));
+		}
+	}
+
+	/**
+	 * @return docs/s loading ingest_normal with its own settings, until searchable
+	 */
+	private double normal(int docs) throws Exception {
+		long start = System.nanoTime();
+		load("ingest_normal", docs);
+		node.client().admin().indices().prepareRefresh("ingest_normal").execute().actionGet();
+		return docs * 1000000000.0 / (System.nanoTime() - start);
+	}
+
+	/**
+	 * @return docs/s loading ingest_session in an ingest session until searchable, then with optimize and restore
+	 */
+	private double[] session(int docs) throws Exception {
+		BulkIngestSession session = BulkIngestSession.builder(node.client(), "ingest_session").maxSegments(1).build();
+		long start = System.nanoTime();
+		long loaded;
+		session.start();
+		try {
+			load("ingest_session", docs);
+			// Searchable, like the normal mode measure
+			node.client().admin().indices().prepareRefresh("ingest_session").execute().actionGet();
+			loaded = System.nanoTime();
+		} catch (Exception e) {
+			session.failed();
+			throw e;
+		} finally {
+			session.close();
+		}
+		return new double[] { docs * 1000000000.0 / (loaded - start), docs * 1000000000.0 / (System.nanoTime() - start) };
+	}
+
+	private void create(String index) {
+		node.client().admin().indices().prepareCreate(index).setSettings("index.refresh_interval", "2s").execute().actionGet();
+		node.client().admin().cluster().prepareHealth(index).setWaitForYellowStatus().execute().actionGet();
+	}
+
+	private void load(String index, int docs) throws Exception {
+		BeerBulkIndexer indexer = BeerBulkIndexer.builder(node.client(), index, "beer").concurrentRequests(2).build();
+		indexer.addAll("beer_", BeerGenerator.builder(42).build().iterator(0, docs));
+		indexer.close();
+		Assert.assertEquals(0, indexer.stats().failures());
+	}
+
+	private Settings settings(String index) {
+		return node.client().admin().indices().prepareGetSettings(index).execute().actionGet().getIndexToSettings().get(index);
+	}
+}
@@ -0,0 +1,312 @@
+package org.elasticsearchfr.handson.bulk;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * Executes a bulk and resends only its failed items, when they failed because the cluster is
+ * busy (rejected by a full bulk queue, shard not available), instead of failing or resending the whole bulk.
+ * <br>Retries wait for an exponential backoff with full jitter: attempt <code>n</code> waits a random time
+ * between 0 and <code>min(maxBackoff, initialBackoff * 2^n)</code>, so that clients rejected together
+ * don't come back together.
+ * <br>We give up after <code>maxRetries</code> attempts, or when the next wait would exceed the backoff
+ * <code>budget</code>. Items still failing are dropped: they stay failed in the returned response.
+ * <br>Other failures (mapping errors, version conflicts...) are never retried.
+ * <br>Usage:
+ * <pre>
+ * BulkRetrier retrier = BulkRetrier.builder(client).maxRetries(5).build();
+ * BulkResponse response = retrier.execute(client.prepareBulk().add(...));
+ * </pre>
+ * Thread safe: one retrier can be shared by many threads.
+ */
+public class BulkRetrier {
+	private static final ESLogger logger = ESLoggerFactory.getLogger(BulkRetrier.class.getName());
+
+	private final Client client;
+	private final TimeValue initialBackoff;
+	private final TimeValue maxBackoff;
+	private final int maxRetries;
+	private final TimeValue budget;
+	private final Random random;
+	private final RetryStats stats = new RetryStats();
+
+	private BulkRetrier(Builder builder) {
+		this.client = builder.client;
+		this.initialBackoff = builder.initialBackoff;
+		this.maxBackoff = builder.maxBackoff;
+		this.maxRetries = builder.maxRetries;
+		this.budget = builder.budget;
+		this.random = new Random(builder.seed);
+	}
+
+	/**
+	 * @param client Client to use
+	 * @return a builder with default settings (50ms initial backoff, 5s max backoff, 8 retries, 30s budget)
+	 */
+	public static Builder builder(Client client) {
+		return new Builder(client);
+	}
+
+	/**
+	 * Execute a bulk, retrying failed items. Blocks while waiting between retries.
+	 * @return one item per action, in the order of the request, with its last response or failure
+	 * @throws InterruptedException if we are interrupted while waiting
+	 */
+	public BulkResponse execute(BulkRequestBuilder bulk) throws InterruptedException {
+		return execute(bulk.request());
+	}
+
+	/**
+	 * Execute a bulk, retrying failed items. Blocks while waiting between retries.
+	 * @return one item per action, in the order of the request, with its last response or failure
+	 * @throws InterruptedException if we are interrupted while waiting
+	 */
+	public BulkResponse execute(BulkRequest request) throws InterruptedException {
+		long start = System.nanoTime();
+		List<ActionRequest> actions = request.requests();
+		BulkItemResponse[] items = new BulkItemResponse[actions.size()];
+
+		// Positions in the original request of the actions we (re)send
+		List<Integer> pending = new ArrayList<Integer>(actions.size());
+		for (int i = 0; i < actions.size(); i++) {
+			pending.add(i);
+		}
+
+		long backedOffNanos = 0;
+		for (int attempt = 0; ; attempt++) {
+			BulkRequest bulk = attempt == 0 ? request : subset(request, actions, pending);
+			List<Integer> failed = new ArrayList<Integer>();
+			try {
+				BulkItemResponse[] responses = client.bulk(bulk).actionGet().getItems();
+				for (int i = 0; i < responses.length; i++) {
+					int pos = pending.get(i);
+					items[pos] = renumber(pos, responses[i]);
+					if (responses[i].isFailed() && retryable(responses[i].getFailure().getStatus())) failed.add(pos);
+				}
+			} catch (Exception e) {
+				// The whole bulk was rejected
+				if (!retryable(ExceptionsHelper.status(e))) throw ExceptionsHelper.convertToRuntime(e);
+				for (int pos : pending) {
+					items[pos] = failure(pos, actions.get(pos), e);
+				}
+				failed.addAll(pending);
+			}
+			if (failed.isEmpty()) break;
+
+			long backoff = backoffNanos(attempt);
+			if (attempt >= maxRetries || backedOffNanos + backoff > budget.nanos()) {
+				stats.onDropped(failed.size());
+				logger.warn("giving up after {} retries: {} items dropped, first failure: {}", attempt, failed.size(),
+						items[failed.get(0)].getFailureMessage());
+				break;
+			}
+			logger.debug("retrying {} rejected items of {} in {}", failed.size(), actions.size(), TimeValue.timeValueNanos(backoff));
+			TimeUnit.NANOSECONDS.sleep(backoff);
+			backedOffNanos += backoff;
+			stats.onRetry(failed.size(), backoff);
+			pending = failed;
+		}
+		stats.onBulk();
+		return new BulkResponse(items, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+	}
+
+	/**
+	 * @return Statistics for this retrier
+	 */
+	public RetryStats stats() {
+		return stats;
+	}
+
+	/**
+	 * @return random wait before retry <code>attempt</code> (0 for the first retry)
+	 */
+	long backoffNanos(int attempt) {
+		// Avoid overflowing after 62 doublings
+		long ceiling = attempt >= 30 ? maxBackoff.nanos() : Math.min(maxBackoff.nanos(), initialBackoff.nanos() << attempt);
+		double jitter;
+		synchronized (random) {
+			jitter = random.nextDouble();
+		}
+		return (long) (ceiling * jitter);
+	}
+
+	/**
+	 * Busy node: thread pool queue full, or shard not available yet.
+	 * <br>Elasticsearch 1.0 reports rejected executions as 503, like unavailable shards.
+	 */
+	static boolean retryable(RestStatus status) {
+		return status == RestStatus.SERVICE_UNAVAILABLE;
+	}
+
+	private static BulkRequest subset(BulkRequest request, List<ActionRequest> actions, List<Integer> positions) {
+		BulkRequest bulk = new BulkRequest();
+		bulk.consistencyLevel(request.consistencyLevel());
+		bulk.replicationType(request.replicationType());
+		bulk.refresh(request.refresh());
+		bulk.timeout(request.timeout());
+		for (int pos : positions) {
+			bulk.add(actions.get(pos));
+		}
+		return bulk;
+	}
+
+	private static BulkItemResponse renumber(int pos, BulkItemResponse item) {
+		if (item.getItemId() == pos) return item;
+		if (item.isFailed()) return new BulkItemResponse(pos, item.getOpType(), item.getFailure());
+		return new BulkItemResponse(pos, item.getOpType(), item.getResponse());
+	}
+
+	private static BulkItemResponse failure(int pos, ActionRequest action, Throwable e) {
+		if (action instanceof IndexRequest) {
+			IndexRequest irq = (IndexRequest) action;
+			return new BulkItemResponse(pos, irq.opType().lowercase(), new BulkItemResponse.Failure(irq.index(), irq.type(), irq.id(), e));
+		}
+		if (action instanceof DeleteRequest) {
+			DeleteRequest drq = (DeleteRequest) action;
+			return new BulkItemResponse(pos, "delete", new BulkItemResponse.Failure(drq.index(), drq.type(), drq.id(), e));
+		}
+		UpdateRequest urq = (UpdateRequest) action;
+		return new BulkItemResponse(pos, "update", new BulkItemResponse.Failure(urq.index(), urq.type(), urq.id(), e));
+	}
+
+	/**
+	 * Retry statistics: items resent, time spent backing off and items dropped
+	 */
+	public static class RetryStats {
+		private final CounterMetric bulks = new CounterMetric();
+		private final CounterMetric retries = new CounterMetric();
+		private final CounterMetric retriedItems = new CounterMetric();
+		private final CounterMetric backoffNanos = new CounterMetric();
+		private final CounterMetric dropped = new CounterMetric();
+
+		void onBulk() {
+			bulks.inc();
+		}
+
+		void onRetry(int items, long backoff) {
+			retries.inc();
+			retriedItems.inc(items);
+			backoffNanos.inc(backoff);
+		}
+
+		void onDropped(int items) {
+			dropped.inc(items);
+		}
+
+		/**
+		 * @return Number of bulks executed, retries not included
+		 */
+		public long bulks() {
+			return bulks.count();
+		}
+
+		/**
+		 * @return Number of bulks sent again with failed items
+		 */
+		public long retries() {
+			return retries.count();
+		}
+
+		/**
+		 * @return Number of items sent again. An item retried twice counts twice.
+		 */
+		public long retriedItems() {
+			return retriedItems.count();
+		}
+
+		/**
+		 * @return Time spent waiting before retries
+		 */
+		public TimeValue backoff() {
+			return TimeValue.timeValueNanos(backoffNanos.count());
+		}
+
+		/**
+		 * @return Number of items still failing when we gave up
+		 */
+		public long dropped() {
+			return dropped.count();
+		}
+
+		@Override
+		public String toString() {
+			return "bulks [" + bulks() + "], retries [" + retries() + "], retried items [" + retriedItems()
+					+ "], backoff [" + backoff() + "], dropped [" + dropped() + "]";
+		}
+	}
+
+	public static class Builder {
+		private final Client client;
+		private TimeValue initialBackoff = TimeValue.timeValueMillis(50);
+		private TimeValue maxBackoff = TimeValue.timeValueSeconds(5);
+		private int maxRetries = 8;
+		private TimeValue budget = TimeValue.timeValueSeconds(30);
+		private long seed = System.nanoTime();
+
+		private Builder(Client client) {
+			this.client = client;
+		}
+
+		/**
+		 * @param initialBackoff Max wait before the first retry. It doubles for each retry.
+		 */
+		public Builder initialBackoff(TimeValue initialBackoff) {
+			this.initialBackoff = initialBackoff;
+			return this;
+		}
+
+		/**
+		 * @param maxBackoff Max wait before one retry
+		 */
+		public Builder maxBackoff(TimeValue maxBackoff) {
+			this.maxBackoff = maxBackoff;
+			return this;
+		}
+
+		/**
+		 * @param maxRetries Max number of retries of one bulk
+		 */
+		public Builder maxRetries(int maxRetries) {
+			this.maxRetries = maxRetries;
+			return this;
+		}
+
+		/**
+		 * @param budget Max total wait for one bulk
+		 */
+		public Builder budget(TimeValue budget) {
+			this.budget = budget;
+			return this;
+		}
+
+		/**
+		 * @param seed Seed of the jitter, for repeatable tests
+		 */
+		public Builder seed(long seed) {
+			this.seed = seed;
+			return this;
+		}
+
+		public BulkRetrier build() {
+			return new BulkRetrier(this);
+		}
+	}
+}
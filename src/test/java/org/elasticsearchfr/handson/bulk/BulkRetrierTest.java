@@ -0,0 +1,154 @@
+package org.elasticsearchfr.handson.bulk;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearchfr.handson.MealTemplate;
+import org.elasticsearchfr.handson.beans.BeerCodec;
+import org.elasticsearchfr.handson.beans.BeerGenerator;
+import org.elasticsearchfr.handson.cluster.InJvmCluster;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * We saturate a node having a tiny bulk thread pool, so that some shard bulks are rejected,
+ * and check that only rejected items are sent again
+ */
+public class BulkRetrierTest {
+	private static final ESLogger logger = ESLoggerFactory.getLogger(BulkRetrierTest.class.getName());
+
+	private final InJvmCluster cluster = new InJvmCluster("handson-retry", ImmutableSettings.settingsBuilder()
+			.put("threadpool.bulk.size", 1)
+			.put("threadpool.bulk.queue_size", 1)
+			.build());
+	private final BeerGenerator generator = BeerGenerator.builder(42).build();
+
+	@Before
+	public void setUp() throws Exception {
+		cluster.startNode();
+		createIndex();
+	}
+
+	@After
+	public void tearDown() {
+		cluster.close();
+	}
+
+	@Test
+	public void rejectedItemsAreRetried() throws Exception {
+		// Without retries, we see rejections and give up at once
+		BulkRetrier noRetry = BulkRetrier.builder(cluster.client()).maxRetries(0).seed(1).build();
+		long rejected = saturate(noRetry);
+		logger.info("without retries: {}", noRetry.stats());
+		Assert.assertTrue("no bulk was rejected", rejected > 0);
+		Assert.assertEquals(rejected, noRetry.stats().dropped());
+		Assert.assertEquals(0, noRetry.stats().retries());
+
+		cluster.client().admin().indices().prepareDelete("retry_test").execute().actionGet();
+		createIndex();
+		// A queue of 1 is very small: we need many short retries
+		BulkRetrier retrier = BulkRetrier.builder(cluster.client()).initialBackoff(TimeValue.timeValueMillis(10))
+				.maxBackoff(TimeValue.timeValueMillis(500)).maxRetries(50).seed(1).build();
+		long failures = saturate(retrier);
+		logger.info("with retries: {}", retrier.stats());
+		Assert.assertEquals(0, failures);
+		Assert.assertEquals(0, retrier.stats().dropped());
+		Assert.assertTrue(retrier.stats().retries() > 0);
+		// We only resent failed items, not whole bulks
+		Assert.assertTrue(retrier.stats().retriedItems() < retrier.stats().retries() * 200);
+
+		cluster.client().admin().indices().prepareRefresh("retry_test").execute().actionGet();
+		long count = cluster.client().prepareCount("retry_test").execute().actionGet().getCount();
+		Assert.assertEquals(8 * 10 * 200, count);
+	}
+
+	@Test
+	public void otherFailuresAreNotRetried() throws Exception {
+		BulkRetrier retrier = BulkRetrier.builder(cluster.client()).seed(1).build();
+		Client client = cluster.client();
+		BulkRequestBuilder bulk = client.prepareBulk();
+		bulk.add(client.prepareIndex("retry_test", "beer", "good").setSource(BeerCodec.encode(generator.beer(0))));
+		bulk.add(client.prepareIndex("retry_test", "beer", "bad").setSource("price", "not a number"));
+		bulk.add(client.prepareDelete("retry_test", "beer", "good"));
+
+		BulkResponse response = retrier.execute(bulk);
+		Assert.assertFalse(response.getItems()[0].isFailed());
+		Assert.assertTrue(response.getItems()[1].isFailed());
+		Assert.assertFalse(response.getItems()[2].isFailed());
+		Assert.assertEquals(0, retrier.stats().retries());
+		Assert.assertEquals(0, retrier.stats().dropped());
+	}
+
+	@Test
+	public void backoffIsBoundedAndJittered() {
+		BulkRetrier retrier = BulkRetrier.builder(cluster.client())
+				.initialBackoff(TimeValue.timeValueMillis(10)).maxBackoff(TimeValue.timeValueMillis(200)).seed(1).build();
+		long sum = 0;
+		for (int attempt = 0; attempt < 100; attempt++) {
+			long backoff = retrier.backoffNanos(attempt);
+			long ceiling = Math.min(TimeValue.timeValueMillis(200).nanos(), TimeValue.timeValueMillis(10).nanos() << Math.min(attempt, 30));
+			Assert.assertTrue(backoff >= 0 && backoff <= ceiling);
+			sum += backoff;
+		}
+		// Random waits: not all at the ceiling
+		Assert.assertTrue(sum < 100 * TimeValue.timeValueMillis(200).nanos());
+	}
+
+	/**
+	 * 8 threads send 10 bulks of 200 beers each
+	 * @return number of failed items
+	 */
+	private long saturate(final BulkRetrier retrier) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<Long>> threads = new ArrayList<Future<Long>>();
+		for (int t = 0; t < 8; t++) {
+			final int thread = t;
+			threads.add(executor.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					long failures = 0;
+					for (int b = 0; b < 10; b++) {
+						BulkRequestBuilder bulk = cluster.client().prepareBulk();
+						for (int i = 0; i < 200; i++) {
+							int id = (thread * 10 + b) * 200 + i;
+							bulk.add(cluster.client().prepareIndex("retry_test", "beer", "beer_" + id)
+									.setSource(BeerCodec.encode(generator.beer(id))));
+						}
+						for (BulkItemResponse item : retrier.execute(bulk)) {
+							if (item.isFailed()) failures++;
+						}
+					}
+					return failures;
+				}
+			}));
+		}
+		long failures = 0;
+		for (Future<Long> thread : threads) {
+			failures += thread.get();
+		}
+		executor.shutdown();
+		return failures;
+	}
+
+	private void createIndex() throws Exception {
+		cluster.client().admin().indices().prepareCreate("retry_test")
+				.setSettings("index.number_of_shards", 5)
+				.addMapping(MealTemplate.TYPE, MealTemplate.mapping())
+				.execute().actionGet();
+		cluster.ensureGreen();
+	}
+}
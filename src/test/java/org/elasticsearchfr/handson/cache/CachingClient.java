@@ -0,0 +1,378 @@
+package org.elasticsearchfr.handson.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionFuture;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.admin.indices.IndicesAction;
+import org.elasticsearch.action.admin.indices.close.CloseIndexAction;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexAction;
+import org.elasticsearch.action.admin.indices.refresh.RefreshAction;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.delete.DeleteAction;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.deletebyquery.DeleteByQueryAction;
+import org.elasticsearch.action.deletebyquery.DeleteByQueryRequest;
+import org.elasticsearch.action.index.IndexAction;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.action.update.UpdateAction;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.AdminClient;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.ClusterAdminClient;
+import org.elasticsearch.client.IndicesAdminClient;
+import org.elasticsearch.client.internal.InternalClient;
+import org.elasticsearch.client.internal.InternalIndicesAdminClient;
+import org.elasticsearch.client.support.AbstractClient;
+import org.elasticsearch.client.support.AbstractIndicesAdminClient;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.CacheStats;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * A {@link Client} which keeps search responses in memory, so the same search sent twice
+ * between two index changes never leaves the JVM.
+ * <br>The cache key is the search request (indices, types, routing, preference, search type and source)
+ * plus a generation of each searched index. The generation is incremented when a write (index, delete,
+ * update, bulk, delete by query) or a refresh sent through this client comes back, so older entries
+ * are never hit again and are evicted by size or TTL.
+ * <br>Changes made by other clients, or made visible by the automatic refresh, are not seen:
+ * set the TTL to what your users accept, for example the index <code>refresh_interval</code>.
+ * <br>Aliases are not resolved: search concrete indices, or call {@link #invalidate(String...)}.
+ * <br>Cached responses are shared between callers: don't modify them.
+ * <br>Usage:
+ * <pre>
+ * CachingClient client = CachingClient.builder(node.client()).maxSize(1000).ttl(TimeValue.timeValueSeconds(1)).build();
+ * client.prepareSearch("meal").setQuery(QueryBuilders.matchAllQuery()).execute().actionGet();
+ * client.stats().hitCount();
+ * </pre>
+ */
+public class CachingClient extends AbstractClient {
+	private static final ESLogger logger = ESLoggerFactory.getLogger(CachingClient.class.getName());
+
+	private final InternalClient client;
+	private final Cache<String, SearchResponse> cache;
+	private final ConcurrentMap<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+	// Used by searches on all indices or on wildcards
+	private final AtomicLong globalGeneration = new AtomicLong();
+	private final AdminClient admin;
+
+	private CachingClient(Builder builder) {
+		this.client = (InternalClient) builder.client;
+		this.cache = CacheBuilder.newBuilder()
+				.maximumSize(builder.maxSize)
+				.expireAfterWrite(builder.ttl.millis(), TimeUnit.MILLISECONDS)
+				.recordStats()
+				.build();
+		this.admin = new CachingAdminClient(client.admin());
+	}
+
+	/**
+	 * @param client Client to wrap. Clients from a node or a TransportClient can be wrapped.
+	 */
+	public static Builder builder(Client client) {
+		return new Builder(client);
+	}
+
+	/**
+	 * @return hit, miss and eviction counters
+	 */
+	public CacheStats stats() {
+		return cache.stats();
+	}
+
+	/**
+	 * @return number of cached responses
+	 */
+	public long size() {
+		return cache.size();
+	}
+
+	/**
+	 * Forget cached responses of some indices.
+	 * @param indices Index names. No index, <code>_all</code> or a wildcard forget all responses.
+	 */
+	public void invalidate(String... indices) {
+		if (indices == null || indices.length == 0) {
+			invalidateAll();
+			return;
+		}
+		for (String index : indices) {
+			if (index == null || "_all".equals(index) || index.indexOf('*') >= 0) {
+				invalidateAll();
+				return;
+			}
+		}
+		for (String index : indices) {
+			AtomicLong generation = generations.get(index);
+			if (generation == null) {
+				generation = new AtomicLong();
+				AtomicLong previous = generations.putIfAbsent(index, generation);
+				if (previous != null) generation = previous;
+			}
+			generation.incrementAndGet();
+		}
+		globalGeneration.incrementAndGet();
+	}
+
+	/**
+	 * Forget all cached responses
+	 */
+	public void invalidateAll() {
+		globalGeneration.incrementAndGet();
+		cache.invalidateAll();
+	}
+
+	@Override
+	public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> ActionFuture<Response> execute(
+			Action<Request, Response, RequestBuilder> action, Request request) {
+		PlainActionFuture<Response> future = PlainActionFuture.newFuture();
+		execute(action, request, future);
+		return future;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void execute(
+			Action<Request, Response, RequestBuilder> action, Request request, final ActionListener<Response> listener) {
+		if (action == SearchAction.INSTANCE) {
+			cachedSearch((SearchRequest) request, (ActionListener<SearchResponse>) listener);
+		} else if (action == IndexAction.INSTANCE || action == DeleteAction.INSTANCE || action == UpdateAction.INSTANCE
+				|| action == BulkAction.INSTANCE || action == DeleteByQueryAction.INSTANCE) {
+			client.execute(action, request, new InvalidatingListener<Response>(listener, writtenIndices(request)));
+		} else {
+			client.execute(action, request, listener);
+		}
+	}
+
+	private void cachedSearch(SearchRequest request, final ActionListener<SearchResponse> listener) {
+		if (request.scroll() != null || request.searchType() == SearchType.SCAN) {
+			client.search(request, listener);
+			return;
+		}
+
+		final String key = key(request);
+		SearchResponse cached = cache.getIfPresent(key);
+		if (cached != null) {
+			listener.onResponse(cached);
+			return;
+		}
+
+		client.search(request, new ActionListener<SearchResponse>() {
+			@Override
+			public void onResponse(SearchResponse response) {
+				// We don't keep partial results
+				if (response.getFailedShards() == 0) {
+					cache.put(key, response);
+				}
+				listener.onResponse(response);
+			}
+
+			@Override
+			public void onFailure(Throwable e) {
+				listener.onFailure(e);
+			}
+		});
+	}
+
+	private String key(SearchRequest request) {
+		StringBuilder key = new StringBuilder();
+		String[] indices = request.indices();
+		boolean global = indices == null || indices.length == 0;
+		if (indices != null) {
+			for (String index : indices) {
+				AtomicLong generation = generations.get(index);
+				key.append(index).append('@').append(generation == null ? 0 : generation.get()).append(',');
+				if ("_all".equals(index) || index.indexOf('*') >= 0) global = true;
+			}
+		}
+		if (global) key.append("_global@").append(globalGeneration.get());
+		key.append('/');
+		if (request.types() != null) {
+			for (String type : request.types()) {
+				key.append(type).append(',');
+			}
+		}
+		key.append('/').append(request.searchType())
+				.append('/').append(request.routing())
+				.append('/').append(request.preference())
+				.append('/').append(request.source() == null ? "" : request.source().toUtf8())
+				.append('/').append(request.extraSource() == null ? "" : request.extraSource().toUtf8());
+		return key.toString();
+	}
+
+	/**
+	 * @return indices changed by a write request, or null if we don't know
+	 */
+	private static String[] writtenIndices(ActionRequest request) {
+		if (request instanceof IndexRequest) return new String[] { ((IndexRequest) request).index() };
+		if (request instanceof DeleteRequest) return new String[] { ((DeleteRequest) request).index() };
+		if (request instanceof UpdateRequest) return new String[] { ((UpdateRequest) request).index() };
+		if (request instanceof DeleteByQueryRequest) return ((DeleteByQueryRequest) request).indices();
+		if (request instanceof BulkRequest) {
+			BulkRequest bulk = (BulkRequest) request;
+			String[] indices = new String[bulk.requests().size()];
+			for (int i = 0; i < indices.length; i++) {
+				String[] written = writtenIndices(bulk.requests().get(i));
+				if (written == null || written.length != 1) return null;
+				indices[i] = written[0];
+			}
+			return indices;
+		}
+		return null;
+	}
+
+	@Override
+	public ThreadPool threadPool() {
+		return client.threadPool();
+	}
+
+	@Override
+	public Settings settings() {
+		return client.settings();
+	}
+
+	@Override
+	public AdminClient admin() {
+		return admin;
+	}
+
+	/**
+	 * Forget cached responses. The wrapped client is not closed.
+	 */
+	@Override
+	public void close() {
+		cache.invalidateAll();
+	}
+
+	/**
+	 * Invalidates indices when the request comes back, whether it worked or not
+	 */
+	private class InvalidatingListener<Response> implements ActionListener<Response> {
+		private final ActionListener<Response> listener;
+		private final String[] indices;
+
+		InvalidatingListener(ActionListener<Response> listener, String[] indices) {
+			this.listener = listener;
+			this.indices = indices;
+		}
+
+		@Override
+		public void onResponse(Response response) {
+			invalidate(indices);
+			listener.onResponse(response);
+		}
+
+		@Override
+		public void onFailure(Throwable e) {
+			invalidate(indices);
+			listener.onFailure(e);
+		}
+	}
+
+	private class CachingAdminClient implements AdminClient {
+		private final ClusterAdminClient cluster;
+		private final IndicesAdminClient indices;
+
+		CachingAdminClient(AdminClient admin) {
+			this.cluster = admin.cluster();
+			this.indices = new CachingIndicesAdminClient((InternalIndicesAdminClient) admin.indices());
+		}
+
+		@Override
+		public ClusterAdminClient cluster() {
+			return cluster;
+		}
+
+		@Override
+		public IndicesAdminClient indices() {
+			return indices;
+		}
+	}
+
+	/**
+	 * Invalidates indices after a refresh, and all indices when an index is deleted or closed
+	 */
+	private class CachingIndicesAdminClient extends AbstractIndicesAdminClient {
+		private final InternalIndicesAdminClient indices;
+
+		CachingIndicesAdminClient(InternalIndicesAdminClient indices) {
+			this.indices = indices;
+		}
+
+		@Override
+		public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> ActionFuture<Response> execute(
+				IndicesAction<Request, Response, RequestBuilder> action, Request request) {
+			PlainActionFuture<Response> future = PlainActionFuture.newFuture();
+			execute(action, request, future);
+			return future;
+		}
+
+		@Override
+		public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void execute(
+				IndicesAction<Request, Response, RequestBuilder> action, Request request, ActionListener<Response> listener) {
+			if (action == RefreshAction.INSTANCE) {
+				indices.execute(action, request, new InvalidatingListener<Response>(listener, ((RefreshRequest) request).indices()));
+			} else if (action == DeleteIndexAction.INSTANCE || action == CloseIndexAction.INSTANCE) {
+				logger.debug("[{}] invalidates all cached responses", action.name());
+				indices.execute(action, request, new InvalidatingListener<Response>(listener, null));
+			} else {
+				indices.execute(action, request, listener);
+			}
+		}
+
+		@Override
+		public ThreadPool threadPool() {
+			return indices.threadPool();
+		}
+	}
+
+	public static class Builder {
+		private final Client client;
+		private long maxSize = 1000;
+		private TimeValue ttl = TimeValue.timeValueSeconds(1);
+
+		private Builder(Client client) {
+			this.client = client;
+		}
+
+		/**
+		 * @param maxSize Max number of cached responses. Least recently used ones are evicted first.
+		 */
+		public Builder maxSize(long maxSize) {
+			this.maxSize = maxSize;
+			return this;
+		}
+
+		/**
+		 * @param ttl How long a response is kept after it was cached
+		 */
+		public Builder ttl(TimeValue ttl) {
+			this.ttl = ttl;
+			return this;
+		}
+
+		public CachingClient build() {
+			return new CachingClient(this);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package org.elasticsearchfr.handson.cache;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearchfr.handson.StartNode;
+import org.elasticsearchfr.handson.beans.BeerCodec;
+import org.elasticsearchfr.handson.beans.BeerHelper;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * We send the same searches several times through a {@link CachingClient}
+ */
+public class CachingClientTest extends StartNode {
+
+	private CachingClient client;
+
+	@Before
+	public void setUp() throws Exception {
+		client = CachingClient.builder(node.client()).maxSize(10).ttl(TimeValue.timeValueMinutes(1)).build();
+		for (int i = 0; i < 10; i++) {
+			index("beer_" + i);
+		}
+		client.admin().indices().prepareRefresh("cache_test").execute().actionGet();
+	}
+
+	@After
+	public void tearDown() {
+		node.client().admin().indices().prepareDelete("cache_test").execute().actionGet();
+	}
+
+	@Test
+	public void sameSearchIsCached() {
+		SearchResponse first = matchAll();
+		SearchResponse second = matchAll();
+
+		Assert.assertSame(first, second);
+		Assert.assertEquals(1, client.stats().missCount());
+		Assert.assertEquals(1, client.stats().hitCount());
+
+		// Another query is another entry
+		client.prepareSearch("cache_test").setQuery(QueryBuilders.termQuery("brand", "heineken")).execute().actionGet();
+		Assert.assertEquals(2, client.stats().missCount());
+		Assert.assertEquals(2, client.size());
+	}
+
+	@Test
+	public void writeAndRefreshInvalidate() throws Exception {
+		Assert.assertEquals(10, matchAll().getHits().getTotalHits());
+
+		index("beer_10");
+		client.admin().indices().prepareRefresh("cache_test").execute().actionGet();
+
+		Assert.assertEquals(11, matchAll().getHits().getTotalHits());
+		Assert.assertEquals(0, client.stats().hitCount());
+		Assert.assertEquals(2, client.stats().missCount());
+	}
+
+	@Test
+	public void evictBySize() {
+		CachingClient small = CachingClient.builder(node.client()).maxSize(1).build();
+		small.prepareSearch("cache_test").setQuery(QueryBuilders.matchAllQuery()).execute().actionGet();
+		small.prepareSearch("cache_test").setQuery(QueryBuilders.termQuery("brand", "heineken")).execute().actionGet();
+
+		Assert.assertEquals(1, small.size());
+		Assert.assertEquals(1, small.stats().evictionCount());
+	}
+
+	@Test
+	public void evictByTtl() throws Exception {
+		CachingClient shortLived = CachingClient.builder(node.client()).ttl(TimeValue.timeValueMillis(10)).build();
+		shortLived.prepareSearch("cache_test").execute().actionGet();
+		Thread.sleep(50);
+		shortLived.prepareSearch("cache_test").execute().actionGet();
+
+		Assert.assertEquals(0, shortLived.stats().hitCount());
+		Assert.assertEquals(2, shortLived.stats().missCount());
+	}
+
+	private SearchResponse matchAll() {
+		return client.prepareSearch("cache_test").setQuery(QueryBuilders.matchAllQuery()).execute().actionGet();
+	}
+
+	private void index(String id) throws Exception {
+		client.prepareIndex("cache_test", "beer", id).setSource(BeerCodec.encode(BeerHelper.generate()), false)
+				.execute().actionGet();
+	}
+}
@@ -0,0 +1,92 @@
+package org.elasticsearchfr.handson.cluster;
+
+import java.io.File;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearchfr.handson.BenchmarkCsv;
+import org.elasticsearchfr.handson.beans.BeerHelper;
+import org.elasticsearchfr.handson.bulk.BeerBulkIndexer;
+import org.elasticsearchfr.handson.load.SearchLoadDriver;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * We measure indexing and search throughput for each number of nodes and shards,
+ * and write one line per combination in target/scaling/scaling.csv
+ * <br>You can change the runs with system properties:
+ * <ul>
+ * <li>scaling.nodes: comma separated node counts (default to 1,2)
+ * <li>scaling.shards: comma separated shard counts (default to 1,2)
+ * <li>scaling.docs: beers indexed for each run (default to 2000)
+ * <li>scaling.duration: search load duration for each run (default to 2s)
+ * <li>scaling.concurrency: search threads (default to 8)
+ * </ul>
+ * Defaults are small to keep the test suite fast. Real curves need more docs, for example
+ * <code>-Dscaling.nodes=1,2,3,4 -Dscaling.shards=1,2,4,8 -Dscaling.docs=200000 -Dscaling.duration=30s</code>
+ */
+public class ClusterScalingTest {
+	private static final ESLogger logger = ESLoggerFactory.getLogger(ClusterScalingTest.class.getName());
+
+	private final InJvmCluster cluster = new InJvmCluster("handson-scaling");
+
+	@After
+	public void tearDown() {
+		cluster.close();
+	}
+
+	@Test
+	public void scaling() throws Exception {
+		int docs = Integer.parseInt(System.getProperty("scaling.docs", "2000"));
+		TimeValue duration = TimeValue.parseTimeValue(System.getProperty("scaling.duration"), TimeValue.timeValueSeconds(2));
+		int concurrency = Integer.parseInt(System.getProperty("scaling.concurrency", "8"));
+		File file = new File("target/scaling/scaling.csv");
+
+		for (int nodes : counts("scaling.nodes", "1,2")) {
+			cluster.startNodes(nodes);
+			for (int shards : counts("scaling.shards", "1,2")) {
+				cluster.client().admin().indices().prepareCreate("scaling")
+						.setSettings("index.number_of_shards", shards, "index.number_of_replicas", 0)
+						.execute().actionGet();
+				cluster.ensureGreen();
+
+				long start = System.nanoTime();
+				BeerBulkIndexer indexer = BeerBulkIndexer.builder(cluster.client(), "scaling", "beer").build();
+				for (int i = 0; i < docs; i++) {
+					indexer.add("beer_" + i, BeerHelper.generate());
+				}
+				indexer.close();
+				double indexRate = docs * 1e9 / (System.nanoTime() - start);
+				Assert.assertEquals(0, indexer.stats().failures());
+
+				cluster.client().admin().indices().prepareRefresh("scaling").execute().actionGet();
+
+				SearchLoadDriver.Result result = SearchLoadDriver.builder(cluster.client(), "scaling")
+						.rate(0)
+						.concurrency(concurrency)
+						.duration(duration)
+						.build().run();
+				Assert.assertEquals(0, result.errors());
+				double qps = result.all().count() / (duration.millis() / 1000.0);
+
+				logger.info("[{}] nodes, [{}] shards: {} docs/s, {} searches/s, p99 [{}] ms",
+						nodes, shards, (long) indexRate, (long) qps, result.all().percentileMillis(99));
+				BenchmarkCsv.append(file, "nodes,shards,docs,index_docs_per_s,search_qps,search_p99_ms",
+						BenchmarkCsv.row("%d,%d,%d,%.1f,%.1f,%.3f", nodes, shards, docs, indexRate, qps, result.all().percentileMillis(99)));
+
+				cluster.client().admin().indices().prepareDelete("scaling").execute().actionGet();
+			}
+		}
+	}
+
+	private static int[] counts(String property, String defaultValue) {
+		String[] values = System.getProperty(property, defaultValue).split(",");
+		int[] counts = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			counts[i] = Integer.parseInt(values[i].trim());
+		}
+		return counts;
+	}
+}
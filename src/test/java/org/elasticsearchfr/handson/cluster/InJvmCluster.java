@@ -0,0 +1,156 @@
+package org.elasticsearchfr.handson.cluster;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.io.FileSystemUtils;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+
+/**
+ * Several nodes in the same JVM, talking to each other with the local transport and discovery.
+ * <br>Each node has its own data, work and logs directories under <code>target/es/&lt;cluster name&gt;/&lt;node name&gt;</code>.
+ * <br>Nodes can be added and removed while tests are running, to see shards moving around.
+ * <br>Usage:
+ * <pre>
+ * InJvmCluster cluster = new InJvmCluster("scaling");
+ * cluster.startNodes(3);
+ * cluster.client().prepareIndex(...)
+ * cluster.stopNode();
+ * cluster.close();
+ * </pre>
+ */
+public class InJvmCluster {
+	private static final ESLogger logger = ESLoggerFactory.getLogger(InJvmCluster.class.getName());
+
+	private final String clusterName;
+	private final Settings settings;
+	private final File home;
+	private final List<Node> nodes = new ArrayList<Node>();
+	private int nextId = 0;
+
+	/**
+	 * @param clusterName Name of the cluster. Don't use the same name as {@link org.elasticsearchfr.handson.StartNode}
+	 * node or our nodes could join it.
+	 */
+	public InJvmCluster(String clusterName) {
+		this(clusterName, ImmutableSettings.EMPTY);
+	}
+
+	/**
+	 * @param clusterName Name of the cluster
+	 * @param settings Settings added to every node
+	 */
+	public InJvmCluster(String clusterName, Settings settings) {
+		this.clusterName = clusterName;
+		this.settings = settings;
+		this.home = new File("target/es", clusterName);
+		if (home.exists()) {
+			FileSystemUtils.deleteRecursively(home, true);
+		}
+	}
+
+	/**
+	 * Start a new node and wait for the cluster to see it
+	 * @return the new node
+	 */
+	public synchronized Node startNode() {
+		String name = "node_" + nextId++;
+		File path = new File(home, name);
+		Node node = NodeBuilder.nodeBuilder()
+				.settings(ImmutableSettings.settingsBuilder()
+						.put("node.name", name)
+						.put("path.data", new File(path, "data").getPath())
+						.put("path.work", new File(path, "work").getPath())
+						.put("path.logs", new File(path, "logs").getPath())
+						.put("http.enabled", false)
+						.put("index.number_of_replicas", 0)
+						.put(settings))
+				.clusterName(clusterName)
+				.local(true)
+				// elasticsearch.yml (unicast discovery, paths...) is for StartNode only
+				.loadConfigSettings(false)
+				.node();
+		nodes.add(node);
+		waitForNodes();
+		logger.info("[{}] started, cluster [{}] has {} nodes", name, clusterName, nodes.size());
+		return node;
+	}
+
+	/**
+	 * Start nodes until we have <code>count</code> nodes
+	 */
+	public synchronized void startNodes(int count) {
+		while (nodes.size() < count) {
+			startNode();
+		}
+	}
+
+	/**
+	 * Stop the last started node and wait for the cluster to see it is gone
+	 */
+	public synchronized void stopNode() {
+		stopNode(nodes.size() - 1);
+	}
+
+	/**
+	 * Stop a node and wait for the cluster to see it is gone
+	 * @param pos Position of the node, in start order, among running nodes
+	 */
+	public synchronized void stopNode(int pos) {
+		Node node = nodes.remove(pos);
+		String name = node.settings().get("node.name");
+		node.close();
+		if (!nodes.isEmpty()) waitForNodes();
+		logger.info("[{}] stopped, cluster [{}] has {} nodes", name, clusterName, nodes.size());
+	}
+
+	public synchronized int size() {
+		return nodes.size();
+	}
+
+	/**
+	 * @return a client of the first running node
+	 */
+	public synchronized Client client() {
+		return nodes.get(0).client();
+	}
+
+	/**
+	 * @return a client of a given node, to spread requests on nodes
+	 */
+	public synchronized Client client(int pos) {
+		return nodes.get(pos).client();
+	}
+
+	/**
+	 * Wait for all shards of all indices to be allocated.
+	 * <br>Never returns green if a primary was on a stopped node and had no replica.
+	 */
+	public ClusterHealthResponse ensureGreen() {
+		return client().admin().cluster().prepareHealth().setWaitForGreenStatus()
+				.setWaitForNodes(String.valueOf(size())).setWaitForRelocatingShards(0)
+				.execute().actionGet();
+	}
+
+	/**
+	 * Stop all nodes
+	 */
+	public synchronized void close() {
+		while (!nodes.isEmpty()) {
+			nodes.remove(nodes.size() - 1).close();
+		}
+	}
+
+	private void waitForNodes() {
+		client().admin().cluster().prepareHealth().setWaitForNodes(String.valueOf(nodes.size()))
+				.execute().actionGet();
+	}
+}
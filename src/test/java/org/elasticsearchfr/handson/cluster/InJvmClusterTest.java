@@ -0,0 +1,47 @@
+package org.elasticsearchfr.handson.cluster;
+
+import org.elasticsearchfr.handson.beans.BeerHelper;
+import org.elasticsearchfr.handson.bulk.BeerBulkIndexer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * We start a cluster of 2 nodes, add a third one and remove one
+ */
+public class InJvmClusterTest {
+
+	private final InJvmCluster cluster = new InJvmCluster("handson-cluster-test");
+
+	@After
+	public void tearDown() {
+		cluster.close();
+	}
+
+	@Test
+	public void addAndRemoveNodes() throws Exception {
+		cluster.startNodes(2);
+		Assert.assertEquals(2, cluster.size());
+
+		cluster.client().admin().indices().prepareCreate("meal")
+				.setSettings("index.number_of_shards", 4, "index.number_of_replicas", 1)
+				.execute().actionGet();
+		Assert.assertEquals(2, cluster.ensureGreen().getNumberOfDataNodes());
+
+		BeerBulkIndexer indexer = BeerBulkIndexer.builder(cluster.client(), "meal", "beer").build();
+		for (int i = 0; i < 1000; i++) {
+			indexer.add("beer_" + i, BeerHelper.generate());
+		}
+		indexer.close();
+
+		cluster.startNode();
+		Assert.assertEquals(3, cluster.ensureGreen().getNumberOfDataNodes());
+
+		// Every shard has a replica, so we can lose one node
+		cluster.stopNode(0);
+		Assert.assertEquals(2, cluster.ensureGreen().getNumberOfDataNodes());
+
+		cluster.client().admin().indices().prepareRefresh("meal").execute().actionGet();
+		Assert.assertEquals(1000, cluster.client().prepareCount("meal").execute().actionGet().getCount());
+	}
+}
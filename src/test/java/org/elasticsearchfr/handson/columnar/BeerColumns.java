@@ -0,0 +1,437 @@
+package org.elasticsearchfr.handson.columnar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.elasticsearchfr.handson.beans.Beer;
+import org.elasticsearchfr.handson.beans.Colour;
+
+/**
+ * Beers stored by column instead of one {@link Beer} object per beer:
+ * <ul>
+ * <li><code>price</code> and <code>size</code> in <code>double[]</code>
+ * <li><code>colour</code> as the {@link Colour} ordinal in a <code>byte[]</code>
+ * <li><code>brand</code> as a code in an <code>int[]</code>, each brand name being stored once in a dictionary
+ * </ul>
+ * A beer costs 21 bytes, instead of about 40 bytes for a Beer object plus its own brand String
+ * when it was read from JSON.
+ * <br>Filters and aggregations are plain loops on primitive arrays: no object is read, no boxing,
+ * and the JIT can unroll them. Filters return a {@link Selection} that aggregations use.
+ * <br>Usage:
+ * <pre>
+ * BeerColumns columns = new BeerColumns();
+ * columns.addAll(exporter.iterator());
+ * Map&lt;String, Stats&gt; prices = columns.statsByBrand(Column.PRICE, columns.colour(Colour.PALE));
+ * </pre>
+ * Not thread safe while beers are added. Once loaded, it can be read from several threads.
+ */
+public class BeerColumns {
+
+	/**
+	 * Numeric columns
+	 */
+	public static enum Column {
+		PRICE, SIZE
+	}
+
+	private static final byte NO_COLOUR = -1;
+	private static final int NO_BRAND = -1;
+	private static final Colour[] COLOURS = Colour.values();
+
+	private double[] prices;
+	private double[] sizes;
+	private byte[] colours;
+	private int[] brands;
+	private int size = 0;
+
+	private final List<String> dictionary = new ArrayList<String>();
+	private final Map<String, Integer> codes = new HashMap<String, Integer>();
+
+	public BeerColumns() {
+		this(1024);
+	}
+
+	/**
+	 * @param capacity Expected number of beers
+	 */
+	public BeerColumns(int capacity) {
+		prices = new double[capacity];
+		sizes = new double[capacity];
+		colours = new byte[capacity];
+		brands = new int[capacity];
+	}
+
+	public void add(Beer beer) {
+		if (size == prices.length) grow();
+		prices[size] = beer.getPrice();
+		sizes[size] = beer.getSize();
+		colours[size] = beer.getColour() == null ? NO_COLOUR : (byte) beer.getColour().ordinal();
+		brands[size] = encode(beer.getBrand());
+		size++;
+	}
+
+	/**
+	 * @return number of beers added
+	 */
+	public long addAll(Iterator<Beer> beers) {
+		long n = 0;
+		while (beers.hasNext()) {
+			add(beers.next());
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * @return number of beers
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return a new Beer object for a row
+	 */
+	public Beer get(int row) {
+		checkRow(row);
+		return new Beer(brand(row), colour(row), sizes[row], prices[row]);
+	}
+
+	public double value(Column column, int row) {
+		checkRow(row);
+		return values(column)[row];
+	}
+
+	public String brand(int row) {
+		checkRow(row);
+		return brands[row] == NO_BRAND ? null : dictionary.get(brands[row]);
+	}
+
+	public Colour colour(int row) {
+		checkRow(row);
+		return colours[row] == NO_COLOUR ? null : COLOURS[colours[row]];
+	}
+
+	/**
+	 * @return known brands, in the order we have seen them
+	 */
+	public List<String> brands() {
+		return new ArrayList<String>(dictionary);
+	}
+
+	/**
+	 * @return approximate heap used by columns and dictionary
+	 */
+	public long memoryBytes() {
+		long bytes = prices.length * (8L + 8L + 1L + 4L);
+		for (String brand : dictionary) {
+			// String, char[] and map entry
+			bytes += 40 + 2 * brand.length() + 32;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Release unused capacity, once all beers are added
+	 */
+	public void trim() {
+		prices = Arrays.copyOf(prices, size);
+		sizes = Arrays.copyOf(sizes, size);
+		colours = Arrays.copyOf(colours, size);
+		brands = Arrays.copyOf(brands, size);
+	}
+
+	/**
+	 * @return all rows
+	 */
+	public Selection all() {
+		return Selection.all(size);
+	}
+
+	/**
+	 * @return rows with <code>from &lt;= value &lt; to</code>, like a range filter
+	 */
+	public Selection between(Column column, double from, double to) {
+		double[] values = values(column);
+		Selection selection = new Selection(size);
+		long[] words = selection.words();
+		for (int w = 0; w < words.length; w++) {
+			int base = w << 6;
+			int end = Math.min(64, size - base);
+			long word = 0;
+			for (int j = 0; j < end; j++) {
+				double value = values[base + j];
+				word |= (value >= from & value < to ? 1L : 0L) << j;
+			}
+			words[w] = word;
+		}
+		return selection;
+	}
+
+	/**
+	 * @return rows of a brand. The brand is case sensitive, like a not analyzed field.
+	 */
+	public Selection brand(String brand) {
+		Selection selection = new Selection(size);
+		Integer code = codes.get(brand);
+		if (code == null) return selection;
+		int c = code;
+		long[] words = selection.words();
+		for (int w = 0; w < words.length; w++) {
+			int base = w << 6;
+			int end = Math.min(64, size - base);
+			long word = 0;
+			for (int j = 0; j < end; j++) {
+				word |= (brands[base + j] == c ? 1L : 0L) << j;
+			}
+			words[w] = word;
+		}
+		return selection;
+	}
+
+	/**
+	 * @return rows of a colour
+	 */
+	public Selection colour(Colour colour) {
+		Selection selection = new Selection(size);
+		byte c = (byte) colour.ordinal();
+		long[] words = selection.words();
+		for (int w = 0; w < words.length; w++) {
+			int base = w << 6;
+			int end = Math.min(64, size - base);
+			long word = 0;
+			for (int j = 0; j < end; j++) {
+				word |= (colours[base + j] == c ? 1L : 0L) << j;
+			}
+			words[w] = word;
+		}
+		return selection;
+	}
+
+	/**
+	 * @param selection Rows to sum. null for all rows.
+	 */
+	public double sum(Column column, Selection selection) {
+		return stats(column, selection).sum();
+	}
+
+	/**
+	 * @param selection Rows to aggregate. null for all rows.
+	 */
+	public Stats stats(Column column, Selection selection) {
+		Aggregation aggregation = new Aggregation(1);
+		aggregate(values(column), (int[]) null, selection, aggregation);
+		return aggregation.stats(0);
+	}
+
+	/**
+	 * Group by brand. Beers without brand are ignored.
+	 * @param selection Rows to aggregate. null for all rows.
+	 * @return stats by brand, for brands having selected rows
+	 */
+	public Map<String, Stats> statsByBrand(Column column, Selection selection) {
+		Aggregation aggregation = new Aggregation(dictionary.size());
+		aggregate(values(column), brands, selection, aggregation);
+		Map<String, Stats> stats = new LinkedHashMap<String, Stats>();
+		for (int code = 0; code < dictionary.size(); code++) {
+			if (aggregation.counts[code] > 0) stats.put(dictionary.get(code), aggregation.stats(code));
+		}
+		return stats;
+	}
+
+	/**
+	 * Group by colour. Beers without colour are ignored.
+	 * @param selection Rows to aggregate. null for all rows.
+	 * @return stats by colour, for colours having selected rows
+	 */
+	public Map<Colour, Stats> statsByColour(Column column, Selection selection) {
+		Aggregation aggregation = new Aggregation(COLOURS.length);
+		aggregate(values(column), colours, selection, aggregation);
+		Map<Colour, Stats> stats = new EnumMap<Colour, Stats>(Colour.class);
+		for (Colour colour : COLOURS) {
+			if (aggregation.counts[colour.ordinal()] > 0) stats.put(colour, aggregation.stats(colour.ordinal()));
+		}
+		return stats;
+	}
+
+	/**
+	 * @param groups Group of each row, negative to skip the row. null to put all rows in group 0.
+	 */
+	private void aggregate(double[] values, int[] groups, Selection selection, Aggregation aggregation) {
+		long[] words = words(selection);
+		for (int w = 0; w < words.length; w++) {
+			long word = words[w];
+			int base = w << 6;
+			if (word == -1L) {
+				// All 64 rows are selected: no bit to test
+				for (int row = base; row < base + 64; row++) {
+					aggregation.add(groups == null ? 0 : groups[row], values[row]);
+				}
+			} else {
+				while (word != 0) {
+					int row = base + Long.numberOfTrailingZeros(word);
+					aggregation.add(groups == null ? 0 : groups[row], values[row]);
+					word &= word - 1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Same loop, reading groups from a byte column such as colours: no int copy of the column for each call
+	 * @param groups Group of each row, negative to skip the row
+	 */
+	private void aggregate(double[] values, byte[] groups, Selection selection, Aggregation aggregation) {
+		long[] words = words(selection);
+		for (int w = 0; w < words.length; w++) {
+			long word = words[w];
+			int base = w << 6;
+			if (word == -1L) {
+				for (int row = base; row < base + 64; row++) {
+					aggregation.add(groups[row], values[row]);
+				}
+			} else {
+				while (word != 0) {
+					int row = base + Long.numberOfTrailingZeros(word);
+					aggregation.add(groups[row], values[row]);
+					word &= word - 1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param selection Rows to aggregate. null for all rows.
+	 */
+	private long[] words(Selection selection) {
+		if (selection == null) selection = all();
+		if (selection.rows() != size) {
+			throw new IllegalArgumentException("selection has " + selection.rows() + " rows, we have " + size);
+		}
+		return selection.words();
+	}
+
+	private double[] values(Column column) {
+		switch (column) {
+		case PRICE:
+			return prices;
+		case SIZE:
+			return sizes;
+		default:
+			throw new IllegalArgumentException("unknown column " + column);
+		}
+	}
+
+	private int encode(String brand) {
+		if (brand == null) return NO_BRAND;
+		Integer code = codes.get(brand);
+		if (code == null) {
+			code = dictionary.size();
+			dictionary.add(brand);
+			codes.put(brand, code);
+		}
+		return code;
+	}
+
+	private void grow() {
+		int capacity = Math.max(16, prices.length + (prices.length >> 1));
+		prices = Arrays.copyOf(prices, capacity);
+		sizes = Arrays.copyOf(sizes, capacity);
+		colours = Arrays.copyOf(colours, capacity);
+		brands = Arrays.copyOf(brands, capacity);
+	}
+
+	private void checkRow(int row) {
+		if (row < 0 || row >= size) throw new IndexOutOfBoundsException("row [" + row + "], size [" + size + "]");
+	}
+
+	/**
+	 * Count, sum, min and max for each group, in primitive arrays
+	 */
+	private static class Aggregation {
+		final long[] counts;
+		final double[] sums;
+		final double[] mins;
+		final double[] maxs;
+
+		Aggregation(int groups) {
+			counts = new long[groups];
+			sums = new double[groups];
+			mins = new double[groups];
+			maxs = new double[groups];
+			Arrays.fill(mins, Double.POSITIVE_INFINITY);
+			Arrays.fill(maxs, Double.NEGATIVE_INFINITY);
+		}
+
+		void add(int group, double value) {
+			if (group < 0) return;
+			counts[group]++;
+			sums[group] += value;
+			if (value < mins[group]) mins[group] = value;
+			if (value > maxs[group]) maxs[group] = value;
+		}
+
+		Stats stats(int group) {
+			return new Stats(counts[group], sums[group], mins[group], maxs[group]);
+		}
+	}
+
+	/**
+	 * Count, sum, min, max and mean of a column
+	 */
+	public static class Stats {
+		private final long count;
+		private final double sum;
+		private final double min;
+		private final double max;
+
+		Stats(long count, double sum, double min, double max) {
+			this.count = count;
+			this.sum = sum;
+			this.min = min;
+			this.max = max;
+		}
+
+		public long count() {
+			return count;
+		}
+
+		public double sum() {
+			return sum;
+		}
+
+		/**
+		 * @return min value, or +Infinity if there is no value
+		 */
+		public double min() {
+			return min;
+		}
+
+		/**
+		 * @return max value, or -Infinity if there is no value
+		 */
+		public double max() {
+			return max;
+		}
+
+		/**
+		 * @return mean value, or NaN if there is no value
+		 */
+		public double mean() {
+			return count == 0 ? Double.NaN : sum / count;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT, "count [%d], sum [%.2f], min [%.2f], max [%.2f], mean [%.2f]",
+					count, sum, min, max, mean());
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package org.elasticsearchfr.handson.columnar;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearchfr.handson.beans.Beer;
+import org.elasticsearchfr.handson.beans.BeerGenerator;
+import org.elasticsearchfr.handson.beans.Colour;
+import org.elasticsearchfr.handson.columnar.BeerColumns.Column;
+import org.elasticsearchfr.handson.columnar.BeerColumns.Stats;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * We compare columnar filters and aggregations with loops on Beer objects
+ */
+public class BeerColumnsTest {
+
+	private final List<Beer> beers = new ArrayList<Beer>();
+	private final BeerColumns columns = new BeerColumns(10);
+
+	@Before
+	public void setUp() {
+		// Not a multiple of 64, to test the last word of selections
+		Iterator<Beer> generated = BeerGenerator.builder(42).build().iterator(0, 1000);
+		while (generated.hasNext()) {
+			beers.add(generated.next());
+		}
+		beers.add(new Beer(null, null, 1, 1));
+		Assert.assertEquals(1001, columns.addAll(beers.iterator()));
+	}
+
+	@Test
+	public void rows() {
+		Assert.assertEquals(1001, columns.size());
+		for (int i = 0; i < beers.size(); i++) {
+			Assert.assertEquals(beers.get(i), columns.get(i));
+		}
+		Assert.assertEquals(3, columns.brands().size());
+	}
+
+	@Test
+	public void filters() {
+		Selection cheap = columns.between(Column.PRICE, 0, 3);
+		Selection heineken = columns.brand("Heineken");
+		Selection pale = columns.colour(Colour.PALE);
+
+		int nbCheap = 0, nbHeineken = 0, nbPale = 0, nbCheapPaleHeineken = 0;
+		for (Beer beer : beers) {
+			boolean isCheap = beer.getPrice() < 3;
+			boolean isHeineken = "Heineken".equals(beer.getBrand());
+			boolean isPale = beer.getColour() == Colour.PALE;
+			if (isCheap) nbCheap++;
+			if (isHeineken) nbHeineken++;
+			if (isPale) nbPale++;
+			if (isCheap && isHeineken && isPale) nbCheapPaleHeineken++;
+		}
+
+		Assert.assertEquals(nbCheap, cheap.count());
+		Assert.assertEquals(nbHeineken, heineken.count());
+		Assert.assertEquals(nbPale, pale.count());
+		Assert.assertEquals(nbCheapPaleHeineken, cheap.and(heineken).and(pale).count());
+		Assert.assertEquals(0, columns.brand("heineken").count());
+		Assert.assertEquals(1001, columns.all().count());
+	}
+
+	@Test
+	public void statsByBrand() {
+		Map<String, Stats> stats = columns.statsByBrand(Column.PRICE, null);
+		Assert.assertEquals(3, stats.size());
+
+		for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+			long count = 0;
+			double sum = 0, min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+			for (Beer beer : beers) {
+				if (!entry.getKey().equals(beer.getBrand())) continue;
+				count++;
+				sum += beer.getPrice();
+				min = Math.min(min, beer.getPrice());
+				max = Math.max(max, beer.getPrice());
+			}
+			Assert.assertEquals(count, entry.getValue().count());
+			Assert.assertEquals(sum, entry.getValue().sum(), 1e-6);
+			Assert.assertEquals(min, entry.getValue().min(), 0);
+			Assert.assertEquals(max, entry.getValue().max(), 0);
+		}
+	}
+
+	@Test
+	public void statsOnSelection() {
+		Selection large = columns.between(Column.SIZE, 1, Double.POSITIVE_INFINITY);
+		double sum = 0;
+		for (Beer beer : beers) {
+			if (beer.getSize() >= 1) sum += beer.getPrice();
+		}
+		Assert.assertEquals(sum, columns.sum(Column.PRICE, large), 1e-6);
+
+		Map<Colour, Stats> byColour = columns.statsByColour(Column.SIZE, null);
+		long count = 0;
+		for (Stats stats : byColour.values()) count += stats.count();
+		// The beer without colour is not in a group
+		Assert.assertEquals(1000, count);
+		Assert.assertEquals(1001, columns.stats(Column.SIZE, null).count());
+	}
+}
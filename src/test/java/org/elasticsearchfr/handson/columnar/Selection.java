@@ -0,0 +1,87 @@
+package org.elasticsearchfr.handson.columnar;
+
+/**
+ * Rows selected by a filter on {@link BeerColumns}, one bit per row.
+ * <br>Filters on several columns are combined with {@link #and(Selection)} and {@link #or(Selection)},
+ * 64 rows at a time.
+ */
+public class Selection {
+	private final long[] words;
+	private final int rows;
+
+	Selection(int rows) {
+		this.rows = rows;
+		this.words = new long[(rows + 63) >>> 6];
+	}
+
+	/**
+	 * @return a selection of all rows
+	 */
+	static Selection all(int rows) {
+		Selection selection = new Selection(rows);
+		for (int w = 0; w < selection.words.length; w++) {
+			selection.words[w] = -1L;
+		}
+		// Bits after the last row stay cleared
+		if ((rows & 63) != 0) {
+			selection.words[selection.words.length - 1] = (1L << (rows & 63)) - 1;
+		}
+		return selection;
+	}
+
+	long[] words() {
+		return words;
+	}
+
+	/**
+	 * @return number of rows, selected or not
+	 */
+	public int rows() {
+		return rows;
+	}
+
+	public boolean get(int row) {
+		return (words[row >>> 6] & (1L << row)) != 0;
+	}
+
+	/**
+	 * @return number of selected rows
+	 */
+	public int count() {
+		int count = 0;
+		for (long word : words) {
+			count += Long.bitCount(word);
+		}
+		return count;
+	}
+
+	/**
+	 * Keep only rows also selected by <code>other</code>
+	 * @return this selection
+	 */
+	public Selection and(Selection other) {
+		checkRows(other);
+		for (int w = 0; w < words.length; w++) {
+			words[w] &= other.words[w];
+		}
+		return this;
+	}
+
+	/**
+	 * Add rows selected by <code>other</code>
+	 * @return this selection
+	 */
+	public Selection or(Selection other) {
+		checkRows(other);
+		for (int w = 0; w < words.length; w++) {
+			words[w] |= other.words[w];
+		}
+		return this;
+	}
+
+	private void checkRows(Selection other) {
+		if (other.rows != rows) {
+			throw new IllegalArgumentException("can not combine selections of " + rows + " and " + other.rows + " rows");
+		}
+	}
+}
@@ -115,7 +115,7 @@ public class IndexTest extends StartNode {
 		BulkRequestBuilder brb = null;
 		
 		// TODO Create the bulk
-		brb = node.client().prepareBulk();
+		brb = client.prepareBulk();
 		for (int i = 0; i < 1000; i++) {
 			Beer beer = BeerHelper.generate();
 			IndexRequest irq =  null; 
@@ -1,9 +1,5 @@
 package org.elasticsearchfr.handson.ex2;
 
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
-import org.elasticsearch.action.bulk.BulkResponse;
-import org.elasticsearch.action.delete.DeleteRequest;
-import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.search.MultiSearchResponse;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
@@ -14,17 +10,17 @@ import org.elasticsearch.index.query.FilterBuilders;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearchfr.handson.IndexFixture;
 import org.elasticsearchfr.handson.StartNode;
 import org.elasticsearchfr.handson.beans.Beer;
 import org.elasticsearchfr.handson.beans.BeerHelper;
+import org.elasticsearchfr.handson.bulk.BeerBulkIndexer;
 import org.elasticsearchfr.handson.beans.Colour;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-
 /**
  * We want to test search methods.
  * <br>When starting tests, we initialize Elasticsearch cluster with
@@ -41,36 +37,24 @@ public class SearchTest extends StartNode {
 	 */
 	@Before
 	public void setUp() throws Exception {
-		ObjectMapper mapper = new ObjectMapper();
-
-		BulkRequestBuilder brb = node.client().prepareBulk();
+		BeerBulkIndexer indexer = BeerBulkIndexer.builder(client, "meal", "beer").build();
 
 		for (int i = 0; i < 1000; i++) {
-			Beer beer = BeerHelper.generate();
-			IndexRequest irq = new IndexRequest("meal", "beer", "beer_" + i);
-			String jsonString = mapper.writeValueAsString(beer);
-			irq.source(jsonString);
-			brb.add(irq);
+			indexer.add("beer_" + i, BeerHelper.generate());
 		}
 
-		BulkResponse br = brb.execute().actionGet();
-		Assert.assertFalse(br.hasFailures());
+		indexer.close();
+		Assert.assertEquals(0, indexer.stats().failures());
 	}
 
 	/**
 	 * When we stop a test, we remove all data
+	 * <br>Dropping and creating again the index is faster than deleting every beer
+	 * @throws Exception
 	 */
 	@After
-	public void tearDown() {
-		BulkRequestBuilder brb = node.client().prepareBulk();
-
-		for (int i = 0; i < 1000; i++) {
-			DeleteRequest dr = new DeleteRequest("meal", "beer", "beer_" + i);
-			brb.add(dr);
-		}
-
-		BulkResponse br = brb.execute().actionGet();
-		Assert.assertFalse(br.hasFailures());
+	public void tearDown() throws Exception {
+		new IndexFixture(client, "meal").reset();
 	}
 
 	/**
@@ -259,7 +243,7 @@ public class SearchTest extends StartNode {
 		logger.info("We found {} beers", sr.getHits().totalHits());
 
 		for (SearchHit hit : sr.getHits()) {
-			Beer beer = BeerHelper.toBeer(hit.getSourceAsString());
+			Beer beer = BeerHelper.toBeer(hit);
 			Assert.assertEquals("Heineken", beer.getBrand());
 			Assert.assertTrue(beer.getPrice()>5 && beer.getPrice()<10);
 		}
@@ -299,7 +283,7 @@ public class SearchTest extends StartNode {
 		logger.info("We found {} beers", sr.getHits().totalHits());
 		
 		for (SearchHit hit : sr.getHits()) {
-			Beer beer = BeerHelper.toBeer(hit.getSourceAsString());
+			Beer beer = BeerHelper.toBeer(hit);
 			Assert.assertEquals("Heineken", beer.getBrand());
 			Assert.assertTrue(beer.getPrice()>5 && beer.getPrice()<10);
 			Assert.assertTrue(beer.getSize()>1);
@@ -336,7 +320,7 @@ public class SearchTest extends StartNode {
 		int nbHeineken = 0;
 		int nbPale = 0;
 		for (SearchHit hit : sr.getHits()) {
-			Beer beer = BeerHelper.toBeer(hit.getSourceAsString());
+			Beer beer = BeerHelper.toBeer(hit);
 
 			if ("Heineken".equals(beer.getBrand())) nbHeineken++;
 			if (Colour.PALE.equals(beer.getColour())) nbPale++;
@@ -379,7 +363,7 @@ public class SearchTest extends StartNode {
 		int nbHeineken = 0;
 		int nbPale = 0;
 		for (SearchHit hit : sr.getHits()) {
-			Beer beer = BeerHelper.toBeer(hit.getSourceAsString());
+			Beer beer = BeerHelper.toBeer(hit);
 
 			if ("Heineken".equals(beer.getBrand())) nbHeineken++;
 			if (Colour.PALE.equals(beer.getColour())) nbPale++;
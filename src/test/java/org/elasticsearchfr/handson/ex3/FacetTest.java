@@ -1,10 +1,5 @@
 package org.elasticsearchfr.handson.ex3;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
-import org.elasticsearch.action.bulk.BulkResponse;
-import org.elasticsearch.action.delete.DeleteRequest;
-import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.common.logging.ESLogger;
@@ -16,9 +11,10 @@ import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.facet.FacetBuilder;
 import org.elasticsearch.search.facet.range.RangeFacet;
 import org.elasticsearch.search.facet.terms.TermsFacet;
+import org.elasticsearchfr.handson.IndexFixture;
 import org.elasticsearchfr.handson.StartNode;
-import org.elasticsearchfr.handson.beans.Beer;
 import org.elasticsearchfr.handson.beans.BeerHelper;
+import org.elasticsearchfr.handson.bulk.BeerBulkIndexer;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -41,38 +37,26 @@ public class FacetTest extends StartNode {
 	 */
 	@Before
 	public void setUp() throws Exception {
-		ObjectMapper mapper = new ObjectMapper();
-
-		BulkRequestBuilder brb = node.client().prepareBulk();
+		BeerBulkIndexer indexer = BeerBulkIndexer.builder(client, "meal", "beer").build();
 
 		for (int i = 0; i < 1000; i++) {
-			Beer beer = BeerHelper.generate();
-			IndexRequest irq = new IndexRequest("meal", "beer", "beer_" + i);
-			String jsonString = mapper.writeValueAsString(beer);
-			irq.source(jsonString);
-			brb.add(irq);
+			indexer.add("beer_" + i, BeerHelper.generate());
 		}
 
-		BulkResponse br = brb.execute().actionGet();
-		Assert.assertFalse(br.hasFailures());
+		indexer.close();
+		Assert.assertEquals(0, indexer.stats().failures());
 
-		node.client().admin().indices().prepareRefresh().execute().actionGet();
+		client.admin().indices().prepareRefresh().execute().actionGet();
 	}
 
 	/**
 	 * When we stop a test, we remove all data
+	 * <br>Dropping and creating again the index is faster than deleting every beer
+	 * @throws Exception
 	 */
 	@After
-	public void tearDown() {
-		BulkRequestBuilder brb = node.client().prepareBulk();
-
-		for (int i = 0; i < 1000; i++) {
-			DeleteRequest dr = new DeleteRequest("meal", "beer", "beer_" + i);
-			brb.add(dr);
-		}
-
-		BulkResponse br = brb.execute().actionGet();
-		Assert.assertFalse(br.hasFailures());
+	public void tearDown() throws Exception {
+		new IndexFixture(client, "meal").reset();
 	}
 
 	/**
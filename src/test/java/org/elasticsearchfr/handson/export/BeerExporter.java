@@ -0,0 +1,323 @@
+package org.elasticsearchfr.handson.export;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearchfr.handson.beans.Beer;
+import org.elasticsearchfr.handson.beans.BeerHelper;
+
+/**
+ * Reads a whole index with scan and scroll.
+ * <br>Unlike from/size paging, each scroll call costs the same, whatever the page number is.
+ * Only one page (<code>batchSize</code> hits per shard) is in memory at a time, or
+ * <code>queueSize</code> pages when using parallel consumers.
+ * <br>Usage:
+ * <pre>
+ * BeerExporter exporter = BeerExporter.builder(client, "meal", "beer").batchSize(500).build();
+ * exporter.writeNdjson(out);
+ * </pre>
+ */
+public class BeerExporter {
+	private static final ESLogger logger = ESLoggerFactory.getLogger(BeerExporter.class.getName());
+
+	/**
+	 * Something to do with each exported beer
+	 */
+	public static interface BeerHandler {
+		void handle(Beer beer) throws Exception;
+	}
+
+	private final Client client;
+	private final String index;
+	private final String type;
+	private final QueryBuilder query;
+	private final int batchSize;
+	private final TimeValue keepAlive;
+	private final int queueSize;
+
+	private BeerExporter(Builder builder) {
+		this.client = builder.client;
+		this.index = builder.index;
+		this.type = builder.type;
+		this.query = builder.query;
+		this.batchSize = builder.batchSize;
+		this.keepAlive = builder.keepAlive;
+		this.queueSize = builder.queueSize;
+	}
+
+	public static Builder builder(Client client, String index, String type) {
+		return new Builder(client, index, type);
+	}
+
+	/**
+	 * @return an iterator on all hits. Close it if you stop before the end, to release the scroll.
+	 */
+	public HitIterator hits() {
+		return new HitIterator();
+	}
+
+	/**
+	 * @return an iterator on all beers. Close it if you stop before the end, to release the scroll.
+	 */
+	public BeerIterator iterator() {
+		return new BeerIterator(hits());
+	}
+
+	/**
+	 * Write all documents as NDJSON (one source per line).
+	 * <br>Sources are copied as they are, without being parsed.
+	 * @param out Where to write. It won't be closed.
+	 * @return Number of documents written
+	 */
+	public long writeNdjson(OutputStream out) throws IOException {
+		HitIterator hits = hits();
+		long count = 0;
+		try {
+			while (hits.hasNext()) {
+				hits.next().sourceRef().writeTo(out);
+				out.write('\n');
+				count++;
+			}
+		} finally {
+			hits.close();
+		}
+		out.flush();
+		return count;
+	}
+
+	/**
+	 * Read all beers with one scroll and handle them with <code>consumers</code> threads.
+	 * <br>The scroll is read in the calling thread. Pages are given to consumers through a queue
+	 * of <code>queueSize</code> pages, so a slow consumer slows down the scroll instead of filling the heap.
+	 * @param consumers Number of consumer threads
+	 * @param handler Called for each beer, from consumer threads
+	 * @return Number of beers handled
+	 * @throws Exception the first exception thrown by the handler, if any
+	 */
+	public long export(int consumers, final BeerHandler handler) throws Exception {
+		final BlockingQueue<SearchHit[]> pages = new ArrayBlockingQueue<SearchHit[]>(queueSize);
+		final SearchHit[] end = new SearchHit[0];
+		final AtomicLong count = new AtomicLong();
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		final CountDownLatch done = new CountDownLatch(consumers);
+
+		// The first search may fail: we start consumers only once it worked, so none waits for an end that never comes
+		HitIterator hits = hits();
+		for (int i = 0; i < consumers; i++) {
+			new Thread("beer-export-" + i) {
+				@Override
+				public void run() {
+					try {
+						SearchHit[] page;
+						while ((page = pages.take()) != end) {
+							// After a failure, we only drain the queue so the scroll thread is never blocked
+							if (failure.get() != null) continue;
+							try {
+								for (SearchHit hit : page) {
+									handler.handle(BeerHelper.toBeer(hit));
+									count.incrementAndGet();
+								}
+							} catch (Exception e) {
+								failure.compareAndSet(null, e);
+							}
+						}
+					} catch (InterruptedException e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+
+		try {
+			SearchHit[] page;
+			while (failure.get() == null && (page = hits.nextPage()) != null) {
+				pages.put(page);
+			}
+		} finally {
+			hits.close();
+			for (int i = 0; i < consumers; i++) {
+				pages.put(end);
+			}
+		}
+		done.await();
+
+		if (failure.get() != null) throw failure.get();
+		return count.get();
+	}
+
+	/**
+	 * Iterates on hits, one scroll page at a time
+	 */
+	public class HitIterator implements Iterator<SearchHit>, Closeable {
+		private String scrollId;
+		private SearchHit[] page = new SearchHit[0];
+		private int pos = 0;
+		private boolean finished = false;
+
+		HitIterator() {
+			SearchResponse sr = client.prepareSearch(index).setTypes(type)
+					.setSearchType(SearchType.SCAN)
+					.setScroll(keepAlive)
+					.setQuery(query)
+					.setSize(batchSize)
+					.execute().actionGet();
+			// Scan does not return any hit in the first response
+			scrollId = sr.getScrollId();
+			logger.debug("exporting {} documents from [{}]", sr.getHits().getTotalHits(), index);
+		}
+
+		/**
+		 * @return the next page of hits from the cluster, or null at the end
+		 */
+		SearchHit[] nextPage() {
+			if (finished) return null;
+			SearchResponse sr = client.prepareSearchScroll(scrollId).setScroll(keepAlive).execute().actionGet();
+			scrollId = sr.getScrollId();
+			SearchHit[] hits = sr.getHits().getHits();
+			if (hits.length == 0) {
+				close();
+				return null;
+			}
+			return hits;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (pos < page.length) return true;
+			SearchHit[] next = nextPage();
+			if (next == null) return false;
+			page = next;
+			pos = 0;
+			return true;
+		}
+
+		@Override
+		public SearchHit next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			return page[pos++];
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Release the scroll on the cluster. Called automatically at the end.
+		 */
+		@Override
+		public void close() {
+			if (finished) return;
+			finished = true;
+			if (scrollId != null) {
+				client.prepareClearScroll().addScrollId(scrollId).execute().actionGet();
+			}
+		}
+	}
+
+	/**
+	 * Iterates on beers
+	 */
+	public static class BeerIterator implements Iterator<Beer>, Closeable {
+		private final HitIterator hits;
+
+		BeerIterator(HitIterator hits) {
+			this.hits = hits;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return hits.hasNext();
+		}
+
+		@Override
+		public Beer next() {
+			try {
+				return BeerHelper.toBeer(hits.next());
+			} catch (IOException e) {
+				throw new IllegalStateException("can not read beer", e);
+			}
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void close() {
+			hits.close();
+		}
+	}
+
+	public static class Builder {
+		private final Client client;
+		private final String index;
+		private final String type;
+		private QueryBuilder query = QueryBuilders.matchAllQuery();
+		private int batchSize = 100;
+		private TimeValue keepAlive = TimeValue.timeValueMinutes(1);
+		private int queueSize = 4;
+
+		private Builder(Client client, String index, String type) {
+			this.client = client;
+			this.index = index;
+			this.type = type;
+		}
+
+		/**
+		 * @param query Only export documents matching this query. Default to all documents.
+		 */
+		public Builder query(QueryBuilder query) {
+			this.query = query;
+			return this;
+		}
+
+		/**
+		 * @param batchSize Number of hits per shard for each scroll call
+		 */
+		public Builder batchSize(int batchSize) {
+			this.batchSize = batchSize;
+			return this;
+		}
+
+		/**
+		 * @param keepAlive How long the scroll stays alive between two calls
+		 */
+		public Builder keepAlive(TimeValue keepAlive) {
+			this.keepAlive = keepAlive;
+			return this;
+		}
+
+		/**
+		 * @param queueSize Max pages waiting for parallel consumers
+		 */
+		public Builder queueSize(int queueSize) {
+			this.queueSize = queueSize;
+			return this;
+		}
+
+		public BeerExporter build() {
+			return new BeerExporter(this);
+		}
+	}
+}
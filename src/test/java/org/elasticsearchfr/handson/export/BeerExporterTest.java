@@ -0,0 +1,104 @@
+package org.elasticsearchfr.handson.export;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.indices.IndexMissingException;
+import org.elasticsearchfr.handson.StartNode;
+import org.elasticsearchfr.handson.beans.Beer;
+import org.elasticsearchfr.handson.beans.BeerHelper;
+import org.elasticsearchfr.handson.bulk.BeerBulkIndexer;
+import org.elasticsearchfr.handson.export.BeerExporter.BeerHandler;
+import org.elasticsearchfr.handson.export.BeerExporter.BeerIterator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * We export 2500 beers with small scroll pages
+ */
+public class BeerExporterTest extends StartNode {
+
+	private BeerExporter exporter;
+
+	@Before
+	public void setUp() throws Exception {
+		BeerBulkIndexer indexer = BeerBulkIndexer.builder(node.client(), "export_test", "beer").build();
+		for (int i = 0; i < 2500; i++) {
+			indexer.add("beer_" + i, BeerHelper.generate());
+		}
+		indexer.close();
+		node.client().admin().indices().prepareRefresh("export_test").execute().actionGet();
+
+		exporter = BeerExporter.builder(node.client(), "export_test", "beer").batchSize(50).build();
+	}
+
+	@After
+	public void tearDown() {
+		node.client().admin().indices().prepareDelete("export_test").execute().actionGet();
+	}
+
+	@Test
+	public void iterator() throws Exception {
+		BeerIterator beers = exporter.iterator();
+		int count = 0;
+		while (beers.hasNext()) {
+			Assert.assertNotNull(beers.next().getBrand());
+			count++;
+		}
+		Assert.assertEquals(2500, count);
+	}
+
+	@Test
+	public void ndjson() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Assert.assertEquals(2500, exporter.writeNdjson(out));
+
+		String[] lines = out.toString("UTF-8").split("\n");
+		Assert.assertEquals(2500, lines.length);
+		Assert.assertNotNull(BeerHelper.toBeer(lines[1234]).getColour());
+	}
+
+	@Test
+	public void parallelConsumers() throws Exception {
+		final AtomicLong heineken = new AtomicLong();
+		long count = exporter.export(3, new BeerHandler() {
+			@Override
+			public void handle(Beer beer) {
+				if ("Heineken".equals(beer.getBrand())) heineken.incrementAndGet();
+			}
+		});
+
+		Assert.assertEquals(2500, count);
+		Assert.assertTrue(heineken.get() > 0);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void handlerFailure() throws Exception {
+		exporter.export(2, new BeerHandler() {
+			@Override
+			public void handle(Beer beer) {
+				throw new IllegalStateException("we don't like this beer");
+			}
+		});
+	}
+
+	@Test
+	public void missingIndexLeavesNoConsumer() throws Exception {
+		BeerExporter missing = BeerExporter.builder(node.client(), "export_missing", "beer").build();
+		try {
+			missing.export(2, new BeerHandler() {
+				@Override
+				public void handle(Beer beer) {
+				}
+			});
+			Assert.fail("the index does not exist");
+		} catch (IndexMissingException e) {
+			// expected
+		}
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			Assert.assertFalse(thread.getName(), thread.getName().startsWith("beer-export-"));
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package org.elasticsearchfr.handson.facet;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearchfr.handson.beans.Beer;
+import org.elasticsearchfr.handson.beans.Colour;
+import org.elasticsearchfr.handson.bulk.BeerBulkIndexer;
+import org.elasticsearchfr.handson.export.BeerExporter;
+
+/**
+ * Beer counts by brand, by colour and by price range, maintained while beers are indexed
+ * and deleted, instead of being computed by a facet on the whole index for each request.
+ * <br>Reading counts costs the same with 1 000 or 10 000 000 beers.
+ * <br>Counts are updated as a {@link BeerBulkIndexer.Listener} when a bulk comes back,
+ * so they follow what was indexed, not what is already visible after a refresh.
+ * <br>When we can not know what changed (a beer overwritten by another one, a failed bulk), counters
+ * become {@link #stale()} until {@link #rebuild(BeerExporter)} is called.
+ */
+public class BeerFacetCounters implements BeerBulkIndexer.Listener {
+	private static final ESLogger logger = ESLoggerFactory.getLogger(BeerFacetCounters.class.getName());
+
+	private final double[] priceBounds;
+	private final AtomicLong total = new AtomicLong();
+	private final ConcurrentMap<String, AtomicLong> brands = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicLongArray colours = new AtomicLongArray(Colour.values().length);
+	private final AtomicLongArray prices;
+	private volatile boolean stale = false;
+
+	/**
+	 * Price ranges are &lt; 3, [3, 6[ and &gt;= 6, like <code>FacetTest</code>
+	 */
+	public BeerFacetCounters() {
+		this(3, 6);
+	}
+
+	/**
+	 * @param priceBounds Sorted bounds between price ranges. <code>n</code> bounds give <code>n + 1</code> ranges.
+	 * A bound belongs to the range above it, like range facets.
+	 */
+	public BeerFacetCounters(double... priceBounds) {
+		this.priceBounds = priceBounds.clone();
+		Arrays.sort(this.priceBounds);
+		this.prices = new AtomicLongArray(priceBounds.length + 1);
+	}
+
+	/**
+	 * A beer was added to the index
+	 */
+	public void add(Beer beer) {
+		update(beer, 1);
+	}
+
+	/**
+	 * A beer was removed from the index
+	 */
+	public void remove(Beer beer) {
+		update(beer, -1);
+	}
+
+	private void update(Beer beer, int delta) {
+		total.addAndGet(delta);
+		if (beer.getBrand() != null) {
+			AtomicLong count = brands.get(beer.getBrand());
+			if (count == null) {
+				count = new AtomicLong();
+				AtomicLong previous = brands.putIfAbsent(beer.getBrand(), count);
+				if (previous != null) count = previous;
+			}
+			count.addAndGet(delta);
+		}
+		if (beer.getColour() != null) {
+			colours.addAndGet(beer.getColour().ordinal(), delta);
+		}
+		prices.addAndGet(priceRange(beer.getPrice()), delta);
+	}
+
+	@Override
+	public void onIndexed(String id, Beer beer, boolean created) {
+		if (created) {
+			add(beer);
+		} else {
+			// We don't know the beer we have overwritten
+			markStale("beer [" + id + "] overwritten");
+		}
+	}
+
+	@Override
+	public void onDeleted(String id, Beer beer, boolean found) {
+		if (!found) return;
+		if (beer == null) {
+			markStale("beer [" + id + "] deleted without its values");
+		} else {
+			remove(beer);
+		}
+	}
+
+	@Override
+	public void onUnknownChange(String reason) {
+		markStale(reason);
+	}
+
+	/**
+	 * Something changed in the index and we don't know what: counters can't be trusted anymore
+	 */
+	public void markStale(String reason) {
+		if (!stale) logger.debug("facet counters are stale: {}", reason);
+		stale = true;
+	}
+
+	/**
+	 * @return true if counts may be wrong, and facet queries should be used instead
+	 */
+	public boolean stale() {
+		return stale;
+	}
+
+	/**
+	 * Count again all beers from the index. Don't index at the same time.
+	 * @return number of beers read
+	 */
+	public long rebuild(BeerExporter exporter) {
+		synchronized (this) {
+			total.set(0);
+			brands.clear();
+			for (int i = 0; i < colours.length(); i++) colours.set(i, 0);
+			for (int i = 0; i < prices.length(); i++) prices.set(i, 0);
+
+			BeerExporter.BeerIterator beers = exporter.iterator();
+			try {
+				while (beers.hasNext()) {
+					add(beers.next());
+				}
+			} finally {
+				beers.close();
+			}
+			stale = false;
+		}
+		logger.debug("facet counters rebuilt from {} beers", total.get());
+		return total.get();
+	}
+
+	/**
+	 * @return number of beers
+	 */
+	public long total() {
+		return total.get();
+	}
+
+	/**
+	 * @return number of beers by brand, without brands having no beer anymore
+	 */
+	public Map<String, Long> brands() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : brands.entrySet()) {
+			long count = entry.getValue().get();
+			if (count > 0) counts.put(entry.getKey(), count);
+		}
+		return counts;
+	}
+
+	/**
+	 * @return number of beers by colour, without colours having no beer
+	 */
+	public Map<Colour, Long> colours() {
+		Map<Colour, Long> counts = new EnumMap<Colour, Long>(Colour.class);
+		for (Colour colour : Colour.values()) {
+			long count = colours.get(colour.ordinal());
+			if (count > 0) counts.put(colour, count);
+		}
+		return counts;
+	}
+
+	/**
+	 * @return number of beers in each price range, from the lowest prices to the highest
+	 */
+	public long[] prices() {
+		long[] counts = new long[prices.length()];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = prices.get(i);
+		}
+		return counts;
+	}
+
+	/**
+	 * @return bounds between price ranges
+	 */
+	public double[] priceBounds() {
+		return priceBounds.clone();
+	}
+
+	private int priceRange(double price) {
+		int range = 0;
+		while (range < priceBounds.length && price >= priceBounds[range]) {
+			range++;
+		}
+		return range;
+	}
+}
@@ -0,0 +1,124 @@
+package org.elasticsearchfr.handson.facet;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearchfr.handson.MealTemplate;
+import org.elasticsearchfr.handson.StartNode;
+import org.elasticsearchfr.handson.beans.Beer;
+import org.elasticsearchfr.handson.beans.BeerGenerator;
+import org.elasticsearchfr.handson.beans.Colour;
+import org.elasticsearchfr.handson.bulk.BeerBulkIndexer;
+import org.elasticsearchfr.handson.export.BeerExporter;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * We index and delete beers while maintaining counters, and compare them with real facets
+ */
+public class BeerFacetCountersTest extends StartNode {
+
+	private final BeerFacetCounters counters = new BeerFacetCounters();
+	private final List<Beer> beers = new ArrayList<Beer>();
+	private BeerFacets facets;
+
+	@Before
+	public void setUp() throws Exception {
+		// Facets return brands as they are indexed: we need not analyzed brands
+		node.client().admin().indices().prepareCreate("facet_test")
+				.addMapping(MealTemplate.TYPE, MealTemplate.mapping()).execute().actionGet();
+		facets = new BeerFacets(node.client(), "facet_test", counters);
+
+		Iterator<Beer> generated = BeerGenerator.builder(42).build().iterator(0, 1000);
+		while (generated.hasNext()) {
+			beers.add(generated.next());
+		}
+
+		BeerBulkIndexer indexer = indexer();
+		for (int i = 0; i < beers.size(); i++) {
+			indexer.add("beer_" + i, beers.get(i));
+		}
+		// Deleting a beer which does not exist does not change counts
+		indexer.delete("beer_unknown", beers.get(0));
+		for (int i = 0; i < 100; i++) {
+			indexer.delete("beer_" + i, beers.get(i));
+		}
+		indexer.close();
+		Assert.assertEquals(0, indexer.stats().failures());
+
+		node.client().admin().indices().prepareRefresh("facet_test").execute().actionGet();
+	}
+
+	@After
+	public void tearDown() {
+		node.client().admin().indices().prepareDelete("facet_test").execute().actionGet();
+	}
+
+	@Test
+	public void countersMatchFacets() {
+		Assert.assertFalse(counters.stale());
+		Assert.assertEquals(900, counters.total());
+
+		// A match all filter forces a real facet query
+		Assert.assertEquals(facets.brands(FilterBuilders.matchAllFilter()), facets.brands(null));
+		Assert.assertEquals(facets.colours(FilterBuilders.matchAllFilter()), facets.colours(null));
+		Assert.assertArrayEquals(facets.prices(FilterBuilders.matchAllFilter()), facets.prices(null));
+
+		long sum = 0;
+		for (long count : facets.prices(null)) sum += count;
+		Assert.assertEquals(900, sum);
+	}
+
+	@Test
+	public void filteredFacetsUseTheIndex() {
+		long heineken = facets.brands(FilterBuilders.termFilter("brand", "Heineken")).get("Heineken");
+		Assert.assertEquals(counters.brands().get("Heineken").longValue(), heineken);
+		Assert.assertEquals(1, facets.brands(FilterBuilders.termFilter("brand", "Heineken")).size());
+	}
+
+	@Test
+	public void overwriteMakesCountersStale() throws Exception {
+		BeerBulkIndexer indexer = indexer();
+		indexer.add("beer_500", new Beer("Heineken", Colour.PALE, 1, 1));
+		indexer.close();
+		node.client().admin().indices().prepareRefresh("facet_test").execute().actionGet();
+
+		Assert.assertTrue(counters.stale());
+		// Facets still give the right answer, from the index
+		Assert.assertEquals(900, sum(facets.brands(null).values()));
+
+		Assert.assertEquals(900, counters.rebuild(BeerExporter.builder(node.client(), "facet_test", "beer").build()));
+		Assert.assertFalse(counters.stale());
+		Assert.assertEquals(facets.brands(FilterBuilders.matchAllFilter()), facets.brands(null));
+	}
+
+	@Test
+	public void priceRanges() {
+		BeerFacetCounters prices = new BeerFacetCounters(6, 3);
+		prices.add(new Beer("Kriek", Colour.DARK, 1, 2.99));
+		prices.add(new Beer("Kriek", Colour.DARK, 1, 3));
+		prices.add(new Beer("Kriek", Colour.DARK, 1, 5.99));
+		prices.add(new Beer("Kriek", Colour.DARK, 1, 6));
+		prices.add(new Beer("Kriek", Colour.DARK, 1, 10));
+		prices.remove(new Beer("Kriek", Colour.DARK, 1, 10));
+
+		Assert.assertArrayEquals(new long[] { 1, 2, 1 }, prices.prices());
+		Assert.assertEquals(Long.valueOf(4), prices.brands().get("Kriek"));
+		Assert.assertEquals(Long.valueOf(4), prices.colours().get(Colour.DARK));
+		Assert.assertNull(prices.colours().get(Colour.PALE));
+	}
+
+	private BeerBulkIndexer indexer() {
+		return BeerBulkIndexer.builder(node.client(), "facet_test", "beer").bulkActions(100).listener(counters).build();
+	}
+
+	private static long sum(Iterable<Long> counts) {
+		long sum = 0;
+		for (Long count : counts) sum += count;
+		return sum;
+	}
+}
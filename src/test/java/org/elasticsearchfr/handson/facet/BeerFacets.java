@@ -0,0 +1,107 @@
+package org.elasticsearchfr.handson.facet;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.index.query.FilterBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.facet.FacetBuilder;
+import org.elasticsearch.search.facet.FacetBuilders;
+import org.elasticsearch.search.facet.range.RangeFacet;
+import org.elasticsearch.search.facet.range.RangeFacetBuilder;
+import org.elasticsearch.search.facet.terms.TermsFacet;
+import org.elasticsearchfr.handson.beans.Colour;
+
+/**
+ * Answers the <code>FacetTest</code> questions (beers by brand, by colour, by price range).
+ * <br>Without filter, counts come from {@link BeerFacetCounters}, in constant time.
+ * With a filter, or if counters are stale, we send a real facet query.
+ * <br>Facet terms are the indexed terms: with the dynamic mapping, brands are lowercased
+ * (<code>heineken</code>). Use {@link org.elasticsearchfr.handson.MealTemplate} to get the same
+ * brands from counters and from facets.
+ */
+public class BeerFacets {
+
+	private final Client client;
+	private final String index;
+	private final BeerFacetCounters counters;
+
+	public BeerFacets(Client client, String index, BeerFacetCounters counters) {
+		this.client = client;
+		this.index = index;
+		this.counters = counters;
+	}
+
+	/**
+	 * @param filter Only count beers matching this filter. null for all beers.
+	 * @return number of beers by brand
+	 */
+	public Map<String, Long> brands(FilterBuilder filter) {
+		if (filter == null && !counters.stale()) return counters.brands();
+
+		TermsFacet facet = search(filter, FacetBuilders.termsFacet("bybrand").field("brand").size(Integer.MAX_VALUE))
+				.getFacets().facet("bybrand");
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (TermsFacet.Entry entry : facet) {
+			counts.put(entry.getTerm().string(), (long) entry.getCount());
+		}
+		return counts;
+	}
+
+	/**
+	 * @param filter Only count beers matching this filter. null for all beers.
+	 * @return number of beers by colour
+	 */
+	public Map<Colour, Long> colours(FilterBuilder filter) {
+		if (filter == null && !counters.stale()) return counters.colours();
+
+		TermsFacet facet = search(filter, FacetBuilders.termsFacet("bycolour").field("colour").size(Colour.values().length))
+				.getFacets().facet("bycolour");
+		Map<Colour, Long> counts = new EnumMap<Colour, Long>(Colour.class);
+		for (TermsFacet.Entry entry : facet) {
+			counts.put(Colour.valueOf(entry.getTerm().string().toUpperCase(Locale.ROOT)), (long) entry.getCount());
+		}
+		return counts;
+	}
+
+	/**
+	 * @param filter Only count beers matching this filter. null for all beers.
+	 * @return number of beers in each price range of {@link BeerFacetCounters#priceBounds()}
+	 */
+	public long[] prices(FilterBuilder filter) {
+		if (filter == null && !counters.stale()) return counters.prices();
+
+		double[] bounds = counters.priceBounds();
+		RangeFacetBuilder builder = FacetBuilders.rangeFacet("byprice").field("price");
+		// addUnboundedFrom(to) is the range without lower bound, addUnboundedTo(from) the one without upper bound
+		if (bounds.length == 0) {
+			builder.addUnboundedTo(Double.NEGATIVE_INFINITY);
+		} else {
+			builder.addUnboundedFrom(bounds[0]);
+			for (int i = 1; i < bounds.length; i++) {
+				builder.addRange(bounds[i - 1], bounds[i]);
+			}
+			builder.addUnboundedTo(bounds[bounds.length - 1]);
+		}
+
+		RangeFacet facet = search(filter, builder).getFacets().facet("byprice");
+		long[] counts = new long[bounds.length + 1];
+		int i = 0;
+		for (RangeFacet.Entry entry : facet) {
+			counts[i++] = entry.getCount();
+		}
+		return counts;
+	}
+
+	private SearchResponse search(FilterBuilder filter, FacetBuilder facet) {
+		return client.prepareSearch(index)
+				.setQuery(filter == null ? QueryBuilders.matchAllQuery() : QueryBuilders.filteredQuery(QueryBuilders.matchAllQuery(), filter))
+				.setSize(0)
+				.addFacet(facet)
+				.execute().actionGet();
+	}
+}
@@ -0,0 +1,95 @@
+package org.elasticsearchfr.handson.load;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe latency histogram with a relative precision better than 1%, from 1 nanosecond to hours.
+ * <br>Values are grouped by power of 2, and each power of 2 is split in 256 linear buckets
+ * (same idea as HdrHistogram). Recording a value is a single atomic increment.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 8;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param nanos Latency in nanoseconds. Negative values are recorded as 0.
+	 */
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		counts.incrementAndGet(index(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value));
+	}
+
+	public long count() {
+		return count.get();
+	}
+
+	/**
+	 * @return Max recorded value in nanoseconds (exact value)
+	 */
+	public long max() {
+		return max.get();
+	}
+
+	/**
+	 * @return Mean value in nanoseconds
+	 */
+	public double mean() {
+		long n = count();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * @param percentile For example 50, 99 or 99.9
+	 * @return Highest value (in nanoseconds) of the bucket which contains the percentile
+	 */
+	public long percentile(double percentile) {
+		long total = count();
+		if (total == 0) return 0;
+		long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= target) {
+				return Math.min(highestValue(i), max());
+			}
+		}
+		return max();
+	}
+
+	/**
+	 * @param percentile For example 50, 99 or 99.9
+	 * @return Percentile in milliseconds
+	 */
+	public double percentileMillis(double percentile) {
+		return toMillis(percentile(percentile));
+	}
+
+	static double toMillis(double nanos) {
+		return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	static int index(long value) {
+		if (value < SUB_BUCKETS) return (int) value;
+		int magnitude = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> magnitude);
+		return magnitude * SUB_BUCKETS + subBucket;
+	}
+
+	static long highestValue(int index) {
+		int magnitude = index / SUB_BUCKETS;
+		long subBucket = index % SUB_BUCKETS;
+		return ((subBucket + 1) << magnitude) - 1;
+	}
+}
@@ -0,0 +1,34 @@
+package org.elasticsearchfr.handson.load;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void percentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long i = 1; i <= 100000; i++) {
+			histogram.record(i * 1000);
+		}
+
+		Assert.assertEquals(100000, histogram.count());
+		Assert.assertEquals(100000000, histogram.max());
+		// We accept 1% error
+		Assert.assertEquals(50000000, histogram.percentile(50), 500000);
+		Assert.assertEquals(99000000, histogram.percentile(99), 990000);
+		Assert.assertEquals(99900000, histogram.percentile(99.9), 999000);
+		Assert.assertEquals(100000000, histogram.percentile(100));
+	}
+
+	@Test
+	public void smallValuesAreExact() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(3);
+		histogram.record(7);
+
+		Assert.assertEquals(3, histogram.percentile(50));
+		Assert.assertEquals(7, histogram.percentile(100));
+		Assert.assertEquals(5, histogram.mean(), 0);
+	}
+}
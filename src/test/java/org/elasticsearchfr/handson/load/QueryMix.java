@@ -0,0 +1,74 @@
+package org.elasticsearchfr.handson.load;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+
+/**
+ * Weighted mix of queries. Each query has a name used in reports.
+ */
+public class QueryMix {
+
+	private final List<String> names = new ArrayList<String>();
+	private final List<QueryBuilder> queries = new ArrayList<QueryBuilder>();
+	private final List<Double> cumulative = new ArrayList<Double>();
+	private double total = 0;
+
+	/**
+	 * Queries of {@link org.elasticsearchfr.handson.ex2.SearchTest} with the same weight
+	 * <br>matchAllSearch, termSearch, rangeSearch, bool_text_and_range_Search,
+	 * query_and_filter_Search and fuzzySearch
+	 */
+	public static QueryMix searchTest() {
+		QueryBuilder heinekenFrom5To10 = QueryBuilders.boolQuery()
+				.must(QueryBuilders.matchQuery("brand", "HEINEKEN"))
+				.must(QueryBuilders.rangeQuery("price").from(5).to(10));
+
+		return new QueryMix()
+				.add("matchAll", 1, QueryBuilders.matchAllQuery())
+				.add("term", 1, QueryBuilders.termQuery("brand", "heineken"))
+				.add("range", 1, QueryBuilders.rangeQuery("price").from(5).to(10))
+				.add("bool_text_and_range", 1, heinekenFrom5To10)
+				.add("query_and_filter", 1, QueryBuilders.filteredQuery(heinekenFrom5To10, FilterBuilders.rangeFilter("size").gte(1)))
+				.add("fuzzy", 1, QueryBuilders.fuzzyQuery("brand", "heinezken"));
+	}
+
+	/**
+	 * @param name Query name
+	 * @param weight Relative weight of this query in the mix
+	 * @param query Query
+	 */
+	public QueryMix add(String name, double weight, QueryBuilder query) {
+		total += weight;
+		names.add(name);
+		queries.add(query);
+		cumulative.add(total);
+		return this;
+	}
+
+	/**
+	 * @return the position of a query picked at random, according to weights
+	 */
+	public int pick(Random random) {
+		int pos = Collections.binarySearch(cumulative, random.nextDouble() * total);
+		pos = pos < 0 ? -pos - 1 : pos + 1;
+		return Math.min(pos, cumulative.size() - 1);
+	}
+
+	public int size() {
+		return queries.size();
+	}
+
+	public String name(int pos) {
+		return names.get(pos);
+	}
+
+	public QueryBuilder query(int pos) {
+		return queries.get(pos);
+	}
+}
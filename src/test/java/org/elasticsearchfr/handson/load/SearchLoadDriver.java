@@ -0,0 +1,266 @@
+package org.elasticsearchfr.handson.load;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearchfr.handson.BenchmarkCsv;
+
+/**
+ * Replays a {@link QueryMix} against a cluster and records latencies.
+ * <ul>
+ * <li>Open loop (<code>rate &gt; 0</code>): the i-th request is scheduled at <code>start + i / rate</code>,
+ * whatever happens to previous requests. Latency is measured from this scheduled time, so when the
+ * cluster (or the in flight limit) slows us down, the waiting time is counted as well
+ * (no coordinated omission).
+ * <li>Closed loop (<code>rate = 0</code>): <code>concurrency</code> threads send requests one after
+ * the other, as fast as possible.
+ * </ul>
+ */
+public class SearchLoadDriver {
+	private static final ESLogger logger = ESLoggerFactory.getLogger(SearchLoadDriver.class.getName());
+
+	private final Client client;
+	private final String index;
+	private final QueryMix mix;
+	private final double rate;
+	private final int concurrency;
+	private final TimeValue duration;
+
+	private SearchLoadDriver(Builder builder) {
+		this.client = builder.client;
+		this.index = builder.index;
+		this.mix = builder.mix;
+		this.rate = builder.rate;
+		this.concurrency = builder.concurrency;
+		this.duration = builder.duration;
+	}
+
+	public static Builder builder(Client client, String index) {
+		return new Builder(client, index);
+	}
+
+	/**
+	 * Run the load. Blocks until all requests have come back.
+	 * @return Latencies for each query and for all queries
+	 */
+	public Result run() throws InterruptedException {
+		Result result = new Result(mix);
+		logger.info("running {} for {}", rate > 0 ? "open loop at " + rate + " req/s" : "closed loop", duration);
+		if (rate > 0) {
+			openLoop(result);
+		} else {
+			closedLoop(result);
+		}
+		logger.info("load done: {} requests, {} errors", result.all.count(), result.errors());
+		return result;
+	}
+
+	private void openLoop(final Result result) throws InterruptedException {
+		final Semaphore inFlight = new Semaphore(concurrency);
+		Random random = new Random();
+		long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+		long start = System.nanoTime();
+		long end = start + duration.nanos();
+
+		for (long i = 0; ; i++) {
+			final long intended = start + i * intervalNanos;
+			if (intended >= end) break;
+			long wait = intended - System.nanoTime();
+			if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+
+			inFlight.acquire();
+			final int pos = mix.pick(random);
+			try {
+				client.prepareSearch(index).setQuery(mix.query(pos)).execute(new ActionListener<SearchResponse>() {
+					@Override
+					public void onResponse(SearchResponse response) {
+						result.record(pos, System.nanoTime() - intended, false);
+						inFlight.release();
+					}
+
+					@Override
+					public void onFailure(Throwable e) {
+						result.record(pos, System.nanoTime() - intended, true);
+						inFlight.release();
+					}
+				});
+			} catch (RuntimeException e) {
+				// The listener will never be called: we give the permit back, or we would wait for it forever
+				result.record(pos, System.nanoTime() - intended, true);
+				inFlight.release();
+			}
+		}
+
+		// We wait for all requests in flight
+		inFlight.acquire(concurrency);
+	}
+
+	private void closedLoop(final Result result) throws InterruptedException {
+		final long end = System.nanoTime() + duration.nanos();
+		final CountDownLatch done = new CountDownLatch(concurrency);
+
+		for (int t = 0; t < concurrency; t++) {
+			Thread thread = new Thread("search-load-" + t) {
+				@Override
+				public void run() {
+					Random random = new Random();
+					try {
+						while (System.nanoTime() < end) {
+							int pos = mix.pick(random);
+							long start = System.nanoTime();
+							boolean error = false;
+							try {
+								client.prepareSearch(index).setQuery(mix.query(pos)).execute().actionGet();
+							} catch (Exception e) {
+								error = true;
+							}
+							result.record(pos, System.nanoTime() - start, error);
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			};
+			thread.start();
+		}
+
+		done.await();
+	}
+
+	/**
+	 * Latencies by query name
+	 */
+	public static class Result {
+		private final QueryMix mix;
+		private final LatencyHistogram[] histograms;
+		private final AtomicLong[] errors;
+		private final LatencyHistogram all = new LatencyHistogram();
+		private final AtomicLong allErrors = new AtomicLong();
+
+		Result(QueryMix mix) {
+			this.mix = mix;
+			this.histograms = new LatencyHistogram[mix.size()];
+			this.errors = new AtomicLong[mix.size()];
+			for (int i = 0; i < mix.size(); i++) {
+				histograms[i] = new LatencyHistogram();
+				errors[i] = new AtomicLong();
+			}
+		}
+
+		void record(int pos, long nanos, boolean error) {
+			histograms[pos].record(nanos);
+			all.record(nanos);
+			if (error) {
+				errors[pos].incrementAndGet();
+				allErrors.incrementAndGet();
+			}
+		}
+
+		/**
+		 * @return Latencies of all queries
+		 */
+		public LatencyHistogram all() {
+			return all;
+		}
+
+		/**
+		 * @return Latencies of one query of the mix
+		 */
+		public LatencyHistogram histogram(String name) {
+			for (int i = 0; i < mix.size(); i++) {
+				if (mix.name(i).equals(name)) return histograms[i];
+			}
+			return null;
+		}
+
+		public long errors() {
+			return allErrors.get();
+		}
+
+		/**
+		 * Append results to a CSV file, one line per query and one line for all queries.
+		 * <br>Columns are: run, query, count, errors, mean_ms, p50_ms, p99_ms, p99.9_ms, max_ms
+		 * @param file CSV file. Header is written if the file does not exist yet.
+		 * @param run Label of this run, for example a build number, to compare runs
+		 */
+		public void writeCsv(File file, String run) throws IOException {
+			String[] rows = new String[mix.size() + 1];
+			for (int i = 0; i < mix.size(); i++) {
+				rows[i] = row(run, mix.name(i), histograms[i], errors[i].get());
+			}
+			rows[mix.size()] = row(run, "all", all, allErrors.get());
+			BenchmarkCsv.append(file, "run,query,count,errors,mean_ms,p50_ms,p99_ms,p99.9_ms,max_ms", rows);
+		}
+
+		private String row(String run, String name, LatencyHistogram histogram, long nbErrors) {
+			return BenchmarkCsv.row("%s,%s,%d,%d,%.3f,%.3f,%.3f,%.3f,%.3f",
+					run, name, histogram.count(), nbErrors,
+					LatencyHistogram.toMillis(histogram.mean()),
+					histogram.percentileMillis(50), histogram.percentileMillis(99), histogram.percentileMillis(99.9),
+					LatencyHistogram.toMillis(histogram.max()));
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT, "%d requests, %d errors, p50 [%.3f ms], p99 [%.3f ms], p99.9 [%.3f ms], max [%.3f ms]",
+					all.count(), errors(), all.percentileMillis(50), all.percentileMillis(99),
+					all.percentileMillis(99.9), LatencyHistogram.toMillis(all.max()));
+		}
+	}
+
+	public static class Builder {
+		private final Client client;
+		private final String index;
+		private QueryMix mix = QueryMix.searchTest();
+		private double rate = 100;
+		private int concurrency = 32;
+		private TimeValue duration = TimeValue.timeValueSeconds(10);
+
+		private Builder(Client client, String index) {
+			this.client = client;
+			this.index = index;
+		}
+
+		public Builder mix(QueryMix mix) {
+			this.mix = mix;
+			return this;
+		}
+
+		/**
+		 * @param rate Requests per second (open loop). 0 to run a closed loop.
+		 */
+		public Builder rate(double rate) {
+			this.rate = rate;
+			return this;
+		}
+
+		/**
+		 * @param concurrency Max requests in flight (open loop) or number of threads (closed loop)
+		 */
+		public Builder concurrency(int concurrency) {
+			this.concurrency = concurrency;
+			return this;
+		}
+
+		public Builder duration(TimeValue duration) {
+			this.duration = duration;
+			return this;
+		}
+
+		public SearchLoadDriver build() {
+			return new SearchLoadDriver(this);
+		}
+	}
+}
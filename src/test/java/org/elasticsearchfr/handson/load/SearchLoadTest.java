@@ -0,0 +1,70 @@
+package org.elasticsearchfr.handson.load;
+
+import java.io.File;
+
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearchfr.handson.RejectingClient;
+import org.elasticsearchfr.handson.StartNode;
+import org.elasticsearchfr.handson.beans.BeerHelper;
+import org.elasticsearchfr.handson.bulk.BeerBulkIndexer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * We replay the SearchTest queries against our node and write latencies in target/load/search.csv
+ * <br>You can change the load with system properties:
+ * <ul>
+ * <li>load.rate: requests per second, 0 for a closed loop (default to 200)
+ * <li>load.concurrency: max requests in flight (default to 32)
+ * <li>load.duration: for example 5m (default to 3s)
+ * <li>load.run: label of this run in the CSV file (default to current time)
+ * </ul>
+ */
+public class SearchLoadTest extends StartNode {
+
+	@Before
+	public void setUp() throws Exception {
+		BeerBulkIndexer indexer = BeerBulkIndexer.builder(node.client(), "load_test", "beer").build();
+		for (int i = 0; i < 1000; i++) {
+			indexer.add("beer_" + i, BeerHelper.generate());
+		}
+		indexer.close();
+		node.client().admin().indices().prepareRefresh("load_test").execute().actionGet();
+	}
+
+	@After
+	public void tearDown() {
+		node.client().admin().indices().prepareDelete("load_test").execute().actionGet();
+	}
+
+	@Test
+	public void searchTestMix() throws Exception {
+		SearchLoadDriver driver = SearchLoadDriver.builder(node.client(), "load_test")
+				.rate(Double.parseDouble(System.getProperty("load.rate", "200")))
+				.concurrency(Integer.parseInt(System.getProperty("load.concurrency", "32")))
+				.duration(TimeValue.parseTimeValue(System.getProperty("load.duration"), TimeValue.timeValueSeconds(3)))
+				.build();
+
+		SearchLoadDriver.Result result = driver.run();
+
+		Assert.assertTrue(result.all().count() > 0);
+		Assert.assertEquals(0, result.errors());
+		Assert.assertNotNull(result.histogram("fuzzy"));
+
+		result.writeCsv(new File("target/load/search.csv"), System.getProperty("load.run", String.valueOf(System.currentTimeMillis())));
+	}
+
+	@Test(timeout = 30000)
+	public void openLoopSurvivesSynchronousFailures() throws Exception {
+		// Every other search is rejected before being sent: its listener is never called
+		RejectingClient failing = new RejectingClient(node.client(), 2);
+
+		SearchLoadDriver.Result result = SearchLoadDriver.builder(failing, "load_test").rate(200).concurrency(2)
+				.duration(TimeValue.timeValueSeconds(1)).build().run();
+
+		Assert.assertTrue(failing.rejected() > 0);
+		Assert.assertEquals(failing.rejected(), result.errors());
+	}
+}
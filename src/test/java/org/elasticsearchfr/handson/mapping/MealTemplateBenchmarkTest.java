@@ -0,0 +1,146 @@
+package org.elasticsearchfr.handson.mapping;
+
+import java.io.File;
+import java.util.Locale;
+
+import org.elasticsearch.action.admin.indices.stats.CommonStats;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.facet.FacetBuilders;
+import org.elasticsearchfr.handson.BenchmarkCsv;
+import org.elasticsearchfr.handson.MealTemplate;
+import org.elasticsearchfr.handson.StartNode;
+import org.elasticsearchfr.handson.beans.BeerGenerator;
+import org.elasticsearchfr.handson.bulk.BeerBulkIndexer;
+import org.elasticsearchfr.handson.load.LatencyHistogram;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * We index the same beers with the dynamic mapping and with {@link MealTemplate},
+ * and compare index size, fielddata on the heap and facet latency.
+ * <br>Results are appended to target/mapping/mapping.csv
+ * <br>You can change the runs with system properties:
+ * <ul>
+ * <li>mapping.docs: beers indexed in each index (default to 5000)
+ * <li>mapping.iterations: facet requests measured for each mapping (default to 100)
+ * </ul>
+ */
+public class MealTemplateBenchmarkTest extends StartNode {
+	private static final ESLogger logger = ESLoggerFactory.getLogger(MealTemplateBenchmarkTest.class.getName());
+
+	private static final String DYNAMIC = "mapping_dynamic";
+	private static final String TEMPLATE = "mapping_template";
+
+	@After
+	public void tearDown() {
+		node.client().admin().indices().prepareDelete(DYNAMIC, TEMPLATE).execute().actionGet();
+	}
+
+	@Test
+	public void keywordsAreNotAnalyzed() throws Exception {
+		Client client = node.client();
+		client.admin().indices().prepareCreate(DYNAMIC).execute().actionGet();
+		client.admin().indices().prepareCreate(TEMPLATE).addMapping(MealTemplate.TYPE, MealTemplate.mapping()).execute().actionGet();
+		index(DYNAMIC, 100);
+		index(TEMPLATE, 100);
+
+		// The analyzer gives heineken, not Heineken
+		Assert.assertEquals(0, count(DYNAMIC, "brand", "Heineken"));
+		Assert.assertTrue(count(TEMPLATE, "brand", "Heineken") > 0);
+		Assert.assertEquals(count(TEMPLATE, "brand", "Heineken"), count(TEMPLATE, "brand.text", "heineken"));
+	}
+
+	@Test
+	public void compareMappings() throws Exception {
+		int docs = Integer.parseInt(System.getProperty("mapping.docs", "5000"));
+		int iterations = Integer.parseInt(System.getProperty("mapping.iterations", "100"));
+		Client client = node.client();
+
+		client.admin().indices().prepareCreate(DYNAMIC).execute().actionGet();
+		client.admin().indices().prepareCreate(TEMPLATE).addMapping(MealTemplate.TYPE, MealTemplate.mapping()).execute().actionGet();
+
+		Result dynamic = run(DYNAMIC, docs, iterations);
+		Result template = run(TEMPLATE, docs, iterations);
+
+		logger.info("dynamic mapping: {}", dynamic);
+		logger.info("meal template: {}", template);
+		BenchmarkCsv.append(new File("target/mapping/mapping.csv"), "mapping,docs,store_bytes,fielddata_bytes,facet_mean_ms,facet_p99_ms",
+				dynamic.row(docs), template.row(docs));
+
+		// Doc values are not loaded on the heap
+		Assert.assertTrue(template.fielddataBytes < dynamic.fielddataBytes);
+	}
+
+	private Result run(String index, int docs, int iterations) throws Exception {
+		Client client = node.client();
+		index(index, docs);
+		client.admin().indices().prepareOptimize(index).setMaxNumSegments(1).execute().actionGet();
+
+		LatencyHistogram histogram = new LatencyHistogram();
+		// The first requests load fielddata and warm up the JVM
+		for (int i = 0; i < iterations + 10; i++) {
+			long start = System.nanoTime();
+			SearchResponse sr = client.prepareSearch(index)
+					.setQuery(QueryBuilders.matchAllQuery())
+					.setSize(0)
+					.addFacet(FacetBuilders.termsFacet("bybrand").field("brand"))
+					.addFacet(FacetBuilders.termsFacet("bycolour").field("colour"))
+					.addFacet(FacetBuilders.rangeFacet("byprice").field("price").addUnboundedFrom(3).addRange(3, 6).addUnboundedTo(6))
+					.addFacet(FacetBuilders.statisticalFacet("size").field("size"))
+					.execute().actionGet();
+			if (i >= 10) histogram.record(System.nanoTime() - start);
+			Assert.assertEquals(docs, sr.getHits().getTotalHits());
+		}
+
+		CommonStats stats = client.admin().indices().prepareStats(index).setStore(true).setFieldData(true)
+				.execute().actionGet().getTotal();
+		return new Result(index, stats.getStore().getSizeInBytes(), stats.getFieldData().getMemorySizeInBytes(), histogram);
+	}
+
+	private void index(String index, int docs) throws Exception {
+		// Same seed: both indices get the same beers
+		BeerGenerator generator = BeerGenerator.builder(42).build();
+		BeerBulkIndexer indexer = BeerBulkIndexer.builder(node.client(), index, MealTemplate.TYPE).build();
+		indexer.addAll("beer_", generator.iterator(0, docs));
+		indexer.close();
+		Assert.assertEquals(0, indexer.stats().failures());
+		node.client().admin().indices().prepareRefresh(index).execute().actionGet();
+	}
+
+	private long count(String index, String field, String term) {
+		return node.client().prepareCount(index).setQuery(QueryBuilders.termQuery(field, term)).execute().actionGet().getCount();
+	}
+
+	private static class Result {
+		final String index;
+		final long storeBytes;
+		final long fielddataBytes;
+		final LatencyHistogram histogram;
+
+		Result(String index, long storeBytes, long fielddataBytes, LatencyHistogram histogram) {
+			this.index = index;
+			this.storeBytes = storeBytes;
+			this.fielddataBytes = fielddataBytes;
+			this.histogram = histogram;
+		}
+
+		/**
+		 * @return CSV row: mapping, docs, store bytes, fielddata bytes, facet mean and p99 latencies
+		 */
+		String row(int docs) {
+			return BenchmarkCsv.row("%s,%d,%d,%d,%.3f,%.3f", index, docs, storeBytes, fielddataBytes,
+					histogram.mean() / 1e6, histogram.percentileMillis(99));
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT, "store [%d bytes], fielddata [%d bytes], facets mean [%.3f ms], p99 [%.3f ms]",
+					storeBytes, fielddataBytes, histogram.mean() / 1e6, histogram.percentileMillis(99));
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package org.elasticsearchfr.handson.metrics;
+
+import java.util.Locale;
+
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearchfr.handson.load.LatencyHistogram;
+
+/**
+ * Metrics of one action (index, get, bulk, search...) sent through an {@link InstrumentedClient}.
+ * <br>Wall-clock latency is measured by the client, from the call to the response.
+ * <code>took</code> is what Elasticsearch reports for searches and bulks: the difference is spent
+ * in queues, on the network and (de)serializing.
+ */
+public class ActionMetrics implements ActionMetricsMBean {
+	private final String action;
+	private final CounterMetric count = new CounterMetric();
+	private final CounterMetric errors = new CounterMetric();
+	private final CounterMetric inFlight = new CounterMetric();
+	private final CounterMetric bytesSent = new CounterMetric();
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final LatencyHistogram took = new LatencyHistogram();
+
+	ActionMetrics(String action) {
+		this.action = action;
+	}
+
+	void onSent(long bytes) {
+		inFlight.inc();
+		bytesSent.inc(bytes);
+	}
+
+	void onResponse(long nanos, long tookMillis) {
+		inFlight.dec();
+		count.inc();
+		latency.record(nanos);
+		if (tookMillis >= 0) took.record(tookMillis * 1000000L);
+	}
+
+	void onFailure(long nanos) {
+		inFlight.dec();
+		count.inc();
+		errors.inc();
+		latency.record(nanos);
+	}
+
+	@Override
+	public String getAction() {
+		return action;
+	}
+
+	/**
+	 * @return Number of calls which came back, failed ones included
+	 */
+	@Override
+	public long getCount() {
+		return count.count();
+	}
+
+	@Override
+	public long getErrors() {
+		return errors.count();
+	}
+
+	/**
+	 * @return Failed calls / calls, between 0 and 1
+	 */
+	@Override
+	public double getErrorRate() {
+		long n = getCount();
+		return n == 0 ? 0 : (double) getErrors() / n;
+	}
+
+	/**
+	 * @return Calls sent and not back yet
+	 */
+	@Override
+	public long getInFlight() {
+		return inFlight.count();
+	}
+
+	/**
+	 * @return Estimated size of sent sources (documents, bulks, search bodies)
+	 */
+	@Override
+	public long getBytesSent() {
+		return bytesSent.count();
+	}
+
+	@Override
+	public double getMeanMillis() {
+		return latency.mean() / 1000000;
+	}
+
+	@Override
+	public double getP50Millis() {
+		return latency.percentileMillis(50);
+	}
+
+	@Override
+	public double getP99Millis() {
+		return latency.percentileMillis(99);
+	}
+
+	@Override
+	public double getMaxMillis() {
+		return latency.max() / 1000000.0;
+	}
+
+	/**
+	 * @return Mean <code>took</code>, 0 for actions which don't report it
+	 */
+	@Override
+	public double getTookMeanMillis() {
+		return took.mean() / 1000000;
+	}
+
+	@Override
+	public double getTookP99Millis() {
+		return took.percentileMillis(99);
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "[%s] count [%d], errors [%d], bytes [%d], mean [%.2fms], p50 [%.2fms], p99 [%.2fms], max [%.2fms], took mean [%.2fms], took p99 [%.2fms]",
+				action, getCount(), getErrors(), getBytesSent(), getMeanMillis(), getP50Millis(), getP99Millis(), getMaxMillis(),
+				getTookMeanMillis(), getTookP99Millis());
+	}
+}
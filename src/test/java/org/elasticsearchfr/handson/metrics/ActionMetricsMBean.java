@@ -0,0 +1,31 @@
+package org.elasticsearchfr.handson.metrics;
+
+/**
+ * JMX view of {@link ActionMetrics}. Latencies are in milliseconds.
+ */
+public interface ActionMetricsMBean {
+
+	String getAction();
+
+	long getCount();
+
+	long getErrors();
+
+	double getErrorRate();
+
+	long getInFlight();
+
+	long getBytesSent();
+
+	double getMeanMillis();
+
+	double getP50Millis();
+
+	double getP99Millis();
+
+	double getMaxMillis();
+
+	double getTookMeanMillis();
+
+	double getTookP99Millis();
+}
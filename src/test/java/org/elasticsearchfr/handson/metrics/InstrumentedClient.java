@@ -0,0 +1,312 @@
+package org.elasticsearchfr.handson.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionFuture;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.client.AdminClient;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.internal.InternalClient;
+import org.elasticsearch.client.support.AbstractClient;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * A {@link Client} which records, for each action (index, get, delete, bulk, search, multi search...),
+ * the number of calls, errors, bytes sent, wall-clock latency and <code>took</code> reported by Elasticsearch.
+ * <br>Recording costs two <code>System.nanoTime()</code> calls, a map lookup and a few atomic increments per call.
+ * <br>Metrics are registered in the platform MBean server as
+ * <code>org.elasticsearchfr.handson:type=Client,name=&lt;name&gt;,action=&lt;action&gt;</code> (see jconsole),
+ * and can be logged periodically.
+ * <br>Admin calls are not recorded.
+ * <br>Usage:
+ * <pre>
+ * InstrumentedClient client = InstrumentedClient.builder(node.client()).reportEvery(TimeValue.timeValueSeconds(10)).build();
+ * client.prepareSearch("meal").execute().actionGet();
+ * client.metrics("search").getP99Millis();
+ * client.close();
+ * </pre>
+ */
+public class InstrumentedClient extends AbstractClient {
+	private static final ESLogger logger = ESLoggerFactory.getLogger(InstrumentedClient.class.getName());
+
+	public static final String DOMAIN = "org.elasticsearchfr.handson";
+
+	private final InternalClient client;
+	private final String name;
+	private final boolean jmx;
+	private final ConcurrentMap<String, ActionMetrics> metrics = new ConcurrentHashMap<String, ActionMetrics>();
+	private final List<ObjectName> registered = new ArrayList<ObjectName>();
+	private final ScheduledExecutorService reporter;
+	// Counts of the last report. Guarded by this.
+	private final Map<String, Long> reported = new HashMap<String, Long>();
+	private long reportedAt = System.nanoTime();
+
+	private InstrumentedClient(Builder builder) {
+		this.client = (InternalClient) builder.client;
+		this.name = builder.name;
+		this.jmx = builder.jmx;
+		if (builder.reportEvery == null) {
+			this.reporter = null;
+		} else {
+			this.reporter = Executors.newScheduledThreadPool(1, EsExecutors.daemonThreadFactory("client_reporter"));
+			this.reporter.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					report();
+				}
+			}, builder.reportEvery.millis(), builder.reportEvery.millis(), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * @param client Client to wrap. Clients from a node or a TransportClient can be wrapped.
+	 * @return a builder with default settings (name "client", JMX on, no log report)
+	 */
+	public static Builder builder(Client client) {
+		return new Builder(client);
+	}
+
+	/**
+	 * @param action Action name, for example "search" or "bulk"
+	 * @return metrics of this action, or null if it was never called
+	 */
+	public ActionMetrics metrics(String action) {
+		return metrics.get(action);
+	}
+
+	/**
+	 * @return metrics of all called actions
+	 */
+	public Collection<ActionMetrics> metrics() {
+		return metrics.values();
+	}
+
+	/**
+	 * @return name of the MBean of an action
+	 */
+	public ObjectName objectName(String action) throws Exception {
+		return new ObjectName(DOMAIN + ":type=Client,name=" + ObjectName.quote(name) + ",action=" + ObjectName.quote(action));
+	}
+
+	@Override
+	public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> ActionFuture<Response> execute(
+			Action<Request, Response, RequestBuilder> action, Request request) {
+		PlainActionFuture<Response> future = PlainActionFuture.newFuture();
+		execute(action, request, future);
+		return future;
+	}
+
+	@Override
+	public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void execute(
+			Action<Request, Response, RequestBuilder> action, Request request, ActionListener<Response> listener) {
+		ActionMetrics actionMetrics = metricsFor(action.name());
+		actionMetrics.onSent(bytes(request));
+		long start = System.nanoTime();
+		try {
+			client.execute(action, request, new RecordingListener<Response>(listener, actionMetrics, start));
+		} catch (RuntimeException e) {
+			// Thrown before being sent: the listener will never be called
+			actionMetrics.onFailure(System.nanoTime() - start);
+			throw e;
+		}
+	}
+
+	private ActionMetrics metricsFor(String action) {
+		ActionMetrics actionMetrics = metrics.get(action);
+		if (actionMetrics != null) return actionMetrics;
+		actionMetrics = new ActionMetrics(action);
+		ActionMetrics previous = metrics.putIfAbsent(action, actionMetrics);
+		if (previous != null) return previous;
+		if (jmx) register(actionMetrics);
+		return actionMetrics;
+	}
+
+	private void register(ActionMetrics actionMetrics) {
+		try {
+			ObjectName objectName = objectName(actionMetrics.getAction());
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			synchronized (registered) {
+				server.registerMBean(new StandardMBean(actionMetrics, ActionMetricsMBean.class), objectName);
+				registered.add(objectName);
+			}
+		} catch (Exception e) {
+			// Another client with the same name: its metrics stay in JMX, ours are still recorded
+			logger.warn("can not register [{}] metrics of client [{}] in JMX: {}", actionMetrics.getAction(), name, e.getMessage());
+		}
+	}
+
+	/**
+	 * @return estimated size of documents and search sources sent, 0 for other requests
+	 */
+	private static long bytes(ActionRequest request) {
+		if (request instanceof IndexRequest) {
+			IndexRequest index = (IndexRequest) request;
+			return index.source() == null ? 0 : index.source().length();
+		}
+		if (request instanceof BulkRequest) return ((BulkRequest) request).estimatedSizeInBytes();
+		if (request instanceof SearchRequest) {
+			SearchRequest search = (SearchRequest) request;
+			return (search.source() == null ? 0 : search.source().length())
+					+ (search.extraSource() == null ? 0 : search.extraSource().length());
+		}
+		if (request instanceof MultiSearchRequest) {
+			long bytes = 0;
+			for (SearchRequest search : ((MultiSearchRequest) request).requests()) {
+				bytes += bytes(search);
+			}
+			return bytes;
+		}
+		return 0;
+	}
+
+	/**
+	 * @return took reported by Elasticsearch, or -1 when the response has none
+	 */
+	private static long tookMillis(Object response) {
+		if (response instanceof SearchResponse) return ((SearchResponse) response).getTookInMillis();
+		if (response instanceof BulkResponse) return ((BulkResponse) response).getTookInMillis();
+		return -1;
+	}
+
+	/**
+	 * Log metrics of all actions, with the number of calls per second since the last report
+	 */
+	synchronized void report() {
+		long now = System.nanoTime();
+		double seconds = Math.max(1, now - reportedAt) / 1000000000.0;
+		reportedAt = now;
+		for (ActionMetrics actionMetrics : metrics.values()) {
+			Long last = reported.put(actionMetrics.getAction(), actionMetrics.getCount());
+			long calls = actionMetrics.getCount() - (last == null ? 0 : last);
+			logger.info("[{}] {}, rate [{}/s]", name, actionMetrics, String.format(Locale.ROOT, "%.1f", calls / seconds));
+		}
+	}
+
+	@Override
+	public ThreadPool threadPool() {
+		return client.threadPool();
+	}
+
+	@Override
+	public Settings settings() {
+		return client.settings();
+	}
+
+	@Override
+	public AdminClient admin() {
+		return client.admin();
+	}
+
+	/**
+	 * Stop the reporter and remove metrics from JMX. The wrapped client is not closed.
+	 */
+	@Override
+	public void close() {
+		if (reporter != null) reporter.shutdownNow();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		synchronized (registered) {
+			for (ObjectName objectName : registered) {
+				try {
+					server.unregisterMBean(objectName);
+				} catch (Exception e) {
+					logger.debug("can not unregister [{}]", e, objectName);
+				}
+			}
+			registered.clear();
+		}
+	}
+
+	private static class RecordingListener<Response> implements ActionListener<Response> {
+		private final ActionListener<Response> listener;
+		private final ActionMetrics metrics;
+		private final long start;
+
+		RecordingListener(ActionListener<Response> listener, ActionMetrics metrics, long start) {
+			this.listener = listener;
+			this.metrics = metrics;
+			this.start = start;
+		}
+
+		@Override
+		public void onResponse(Response response) {
+			metrics.onResponse(System.nanoTime() - start, tookMillis(response));
+			listener.onResponse(response);
+		}
+
+		@Override
+		public void onFailure(Throwable e) {
+			metrics.onFailure(System.nanoTime() - start);
+			listener.onFailure(e);
+		}
+	}
+
+	public static class Builder {
+		private final Client client;
+		private String name = "client";
+		private boolean jmx = true;
+		private TimeValue reportEvery = null;
+
+		private Builder(Client client) {
+			this.client = client;
+		}
+
+		/**
+		 * @param name Name of the client in JMX and in logs. Use one name per client.
+		 */
+		public Builder name(String name) {
+			this.name = name;
+			return this;
+		}
+
+		/**
+		 * @param jmx true to register metrics in the platform MBean server
+		 */
+		public Builder jmx(boolean jmx) {
+			this.jmx = jmx;
+			return this;
+		}
+
+		/**
+		 * @param reportEvery Interval between two logs of the metrics. null for no log.
+		 */
+		public Builder reportEvery(TimeValue reportEvery) {
+			this.reportEvery = reportEvery;
+			return this;
+		}
+
+		public InstrumentedClient build() {
+			return new InstrumentedClient(this);
+		}
+	}
+}
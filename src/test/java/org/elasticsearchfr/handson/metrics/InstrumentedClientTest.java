@@ -0,0 +1,118 @@
+package org.elasticsearchfr.handson.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+
+import org.elasticsearch.ElasticsearchIllegalStateException;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearchfr.handson.RejectingClient;
+import org.elasticsearchfr.handson.StartNode;
+import org.elasticsearchfr.handson.beans.BeerCodec;
+import org.elasticsearchfr.handson.beans.BeerGenerator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Calls go through an {@link InstrumentedClient}, and we check what it recorded
+ */
+public class InstrumentedClientTest extends StartNode {
+	private static final ESLogger logger = ESLoggerFactory.getLogger(InstrumentedClientTest.class.getName());
+
+	private final BeerGenerator generator = BeerGenerator.builder(42).build();
+	private InstrumentedClient instrumented;
+
+	@Before
+	public void setUp() {
+		instrumented = InstrumentedClient.builder(node.client()).name("metrics_test").build();
+	}
+
+	@After
+	public void tearDown() {
+		instrumented.close();
+		if (node.client().admin().indices().prepareExists("metrics_test").execute().actionGet().isExists()) {
+			node.client().admin().indices().prepareDelete("metrics_test").execute().actionGet();
+		}
+	}
+
+	@Test
+	public void actionsAreRecorded() throws Exception {
+		BulkRequestBuilder bulk = instrumented.prepareBulk();
+		for (int i = 0; i < 100; i++) {
+			bulk.add(instrumented.prepareIndex("metrics_test", "beer", "beer_" + i).setSource(BeerCodec.encode(generator.beer(i))));
+		}
+		bulk.execute().actionGet();
+		instrumented.prepareIndex("metrics_test", "beer", "beer_100").setSource(BeerCodec.encode(generator.beer(100))).execute().actionGet();
+		node.client().admin().indices().prepareRefresh("metrics_test").execute().actionGet();
+
+		for (int i = 0; i < 10; i++) {
+			instrumented.prepareGet("metrics_test", "beer", "beer_" + i).execute().actionGet();
+			instrumented.prepareSearch("metrics_test").setQuery(QueryBuilders.matchQuery("brand", "Heineken")).execute().actionGet();
+		}
+		instrumented.prepareMultiSearch().add(instrumented.prepareSearch("metrics_test")).add(instrumented.prepareSearch("metrics_test"))
+				.execute().actionGet();
+		try {
+			instrumented.prepareSearch("metrics_missing").execute().actionGet();
+			Assert.fail("search on a missing index should fail");
+		} catch (Exception e) {
+			// expected
+		}
+		instrumented.report();
+
+		ActionMetrics bulkMetrics = instrumented.metrics("bulk");
+		Assert.assertEquals(1, bulkMetrics.getCount());
+		Assert.assertTrue(bulkMetrics.getBytesSent() > 100 * 10);
+		Assert.assertTrue(bulkMetrics.getTookMeanMillis() <= bulkMetrics.getMaxMillis() + 1);
+
+		Assert.assertEquals(1, instrumented.metrics("index").getCount());
+		Assert.assertEquals(10, instrumented.metrics("get").getCount());
+		Assert.assertEquals(0, instrumented.metrics("get").getErrors());
+		Assert.assertEquals(1, instrumented.metrics("msearch").getCount());
+
+		ActionMetrics search = instrumented.metrics("search");
+		logger.info("{}", search);
+		Assert.assertEquals(11, search.getCount());
+		Assert.assertEquals(1, search.getErrors());
+		Assert.assertEquals(1.0 / 11, search.getErrorRate(), 0.0001);
+		Assert.assertEquals(0, search.getInFlight());
+		Assert.assertTrue(search.getBytesSent() > 0);
+		Assert.assertTrue(search.getP50Millis() <= search.getP99Millis());
+		Assert.assertTrue(search.getP99Millis() <= search.getMaxMillis() * 1.01);
+	}
+
+	@Test
+	public void metricsAreInJmx() throws Exception {
+		instrumented.prepareIndex("metrics_test", "beer", "beer_0").setSource(BeerCodec.encode(generator.beer(0))).execute().actionGet();
+		instrumented.prepareGet("metrics_test", "beer", "beer_0").execute().actionGet();
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		Assert.assertEquals(1L, server.getAttribute(instrumented.objectName("get"), "Count"));
+		Assert.assertEquals(0.0, (Double) server.getAttribute(instrumented.objectName("index"), "ErrorRate"), 0);
+
+		instrumented.close();
+		Assert.assertFalse(server.isRegistered(instrumented.objectName("get")));
+	}
+
+	@Test
+	public void rejectedActionsAreErrors() throws Exception {
+		InstrumentedClient rejecting = InstrumentedClient.builder(new RejectingClient(node.client(), 1)).name("rejecting_test").jmx(false).build();
+		try {
+			rejecting.prepareSearch("metrics_test").execute().actionGet();
+			Assert.fail("the search should be rejected");
+		} catch (ElasticsearchIllegalStateException e) {
+			// expected
+		} finally {
+			rejecting.close();
+		}
+
+		ActionMetrics search = rejecting.metrics("search");
+		Assert.assertEquals(1, search.getCount());
+		Assert.assertEquals(1, search.getErrors());
+		Assert.assertEquals(0, search.getInFlight());
+	}
+}
@@ -0,0 +1,466 @@
+package org.elasticsearchfr.handson.percolate;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.percolate.MultiPercolateRequestBuilder;
+import org.elasticsearch.action.percolate.MultiPercolateResponse;
+import org.elasticsearch.action.percolate.PercolateResponse;
+import org.elasticsearch.action.percolate.PercolateSourceBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.percolator.PercolatorService;
+import org.elasticsearchfr.handson.beans.Beer;
+import org.elasticsearchfr.handson.beans.BeerCodec;
+import org.elasticsearchfr.handson.bulk.BeerBulkIndexer;
+
+/**
+ * Matches new beers against saved searches, to alert users when a beer they look for is indexed.
+ * <br>Saved searches are registered once as percolator queries. Instead of running every saved search
+ * after each bulk, each new beer is percolated: Elasticsearch runs all registered queries against
+ * this single document in memory.
+ * <br>As a {@link BeerBulkIndexer.Listener}, beers indexed (not replaced) are collected and sent by
+ * batches of <code>batchSize</code> in one multi percolate request, asynchronously, from the bulk thread.
+ * <br>The percolator index needs the <code>beer</code> mapping, so queries are parsed like for real searches.
+ * <br>Usage:
+ * <pre>
+ * BeerPercolator percolator = BeerPercolator.builder(client, "alerts").alerts(alerts).build();
+ * percolator.register("cheap_heineken", QueryBuilders.filteredQuery(...));
+ * BeerBulkIndexer indexer = BeerBulkIndexer.builder(client, "meal", "beer").listener(percolator).build();
+ * ...
+ * indexer.close();
+ * percolator.close();
+ * </pre>
+ */
+public class BeerPercolator implements BeerBulkIndexer.Listener {
+	private static final ESLogger logger = ESLoggerFactory.getLogger(BeerPercolator.class.getName());
+
+	private final Client client;
+	private final String index;
+	private final String type;
+	private final int batchSize;
+	private final Alerts alerts;
+	private final PercolateStats stats = new PercolateStats();
+
+	/**
+	 * Beers waiting to be percolated. Guarded by this.
+	 */
+	private List<Indexed> batch = new ArrayList<Indexed>();
+
+	/**
+	 * Number of multi percolate requests in flight. We wait on it when closing.
+	 */
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private BeerPercolator(Builder builder) {
+		this.client = builder.client;
+		this.index = builder.index;
+		this.type = builder.type;
+		this.batchSize = builder.batchSize;
+		this.alerts = builder.alerts;
+	}
+
+	/**
+	 * @param client Client to use
+	 * @param index Index holding percolator queries. It must have the beer mapping.
+	 * @return a builder with default settings (type beer, batches of 100 beers, alerts logged)
+	 */
+	public static Builder builder(Client client, String index) {
+		return new Builder(client, index);
+	}
+
+	/**
+	 * Register a saved search. It is used as soon as this method returns.
+	 * @param id Id of the saved search, given back in alerts. A search with the same id is replaced.
+	 */
+	public void register(String id, QueryBuilder query) throws IOException {
+		client.prepareIndex(index, PercolatorService.TYPE_NAME, id).setSource(source(query)).execute().actionGet();
+	}
+
+	/**
+	 * Register many saved searches with one bulk request
+	 * @param queries Saved searches by id
+	 */
+	public void registerAll(Map<String, QueryBuilder> queries) throws IOException {
+		BulkRequestBuilder bulk = client.prepareBulk();
+		for (Map.Entry<String, QueryBuilder> query : queries.entrySet()) {
+			bulk.add(client.prepareIndex(index, PercolatorService.TYPE_NAME, query.getKey()).setSource(source(query.getValue())));
+		}
+		BulkResponse response = bulk.execute().actionGet();
+		if (response.hasFailures()) {
+			throw new IllegalStateException("some queries were not registered: " + response.buildFailureMessage());
+		}
+	}
+
+	/**
+	 * Remove a saved search
+	 * @return true if it existed
+	 */
+	public boolean unregister(String id) {
+		return client.prepareDelete(index, PercolatorService.TYPE_NAME, id).execute().actionGet().isFound();
+	}
+
+	/**
+	 * Percolate beers now, with one multi percolate request, and wait for the response.
+	 * <br>Alerts are not sent: matches are returned.
+	 * @return ids of matching saved searches, for each beer
+	 */
+	public List<List<String>> percolate(List<Beer> beers) throws IOException {
+		long start = System.nanoTime();
+		MultiPercolateResponse response = request(beers).execute().actionGet();
+		List<List<String>> matches = new ArrayList<List<String>>(beers.size());
+		for (MultiPercolateResponse.Item item : response) {
+			if (item.isFailure()) {
+				throw new IllegalStateException("percolation failed: " + item.getErrorMessage());
+			}
+			matches.add(ids(item.getResponse()));
+		}
+		stats.onBatch(beers.size(), 0, count(matches), start, System.nanoTime());
+		return matches;
+	}
+
+	/**
+	 * Send beers collected so far, without waiting for the response
+	 */
+	public void flush() {
+		List<Indexed> current;
+		synchronized (this) {
+			if (batch.isEmpty()) return;
+			current = batch;
+			batch = new ArrayList<Indexed>();
+		}
+		send(current);
+	}
+
+	/**
+	 * Send the remaining beers and wait for all percolations in flight to come back.
+	 * @return true if all percolations came back before the timeout
+	 */
+	public boolean awaitClose(long timeout, TimeUnit unit) throws InterruptedException {
+		flush();
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized (inFlight) {
+			while (inFlight.get() > 0) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) return false;
+				TimeUnit.NANOSECONDS.timedWait(inFlight, remaining);
+			}
+		}
+		logger.debug("percolator closed: {}", stats);
+		return true;
+	}
+
+	/**
+	 * Send the remaining beers and wait (up to one minute) for all percolations in flight to come back.
+	 * @throws IllegalStateException if some percolations are still running after one minute
+	 */
+	public void close() throws InterruptedException {
+		if (!awaitClose(1, TimeUnit.MINUTES)) {
+			throw new IllegalStateException("some percolations are still running after 1 minute: " + stats);
+		}
+	}
+
+	/**
+	 * @return Statistics for this percolator
+	 */
+	public PercolateStats stats() {
+		return stats;
+	}
+
+	@Override
+	public void onIndexed(String id, Beer beer, boolean created) {
+		// A replaced beer was already percolated when it was created
+		if (!created) return;
+		List<Indexed> full = null;
+		synchronized (this) {
+			batch.add(new Indexed(id, beer));
+			if (batch.size() >= batchSize) {
+				full = batch;
+				batch = new ArrayList<Indexed>();
+			}
+		}
+		if (full != null) send(full);
+	}
+
+	@Override
+	public void onDeleted(String id, Beer beer, boolean found) {
+		// Nothing to alert
+	}
+
+	@Override
+	public void onUnknownChange(String reason) {
+		logger.debug("beers indexed without percolation: {}", reason);
+	}
+
+	private void send(final List<Indexed> indexed) {
+		final long start = System.nanoTime();
+		List<Beer> beers = new ArrayList<Beer>(indexed.size());
+		for (Indexed i : indexed) {
+			beers.add(i.beer);
+		}
+		MultiPercolateRequestBuilder request;
+		try {
+			request = request(beers);
+		} catch (IOException e) {
+			logger.warn("can not percolate {} beers", e, beers.size());
+			stats.onBatch(beers.size(), beers.size(), 0, start, start);
+			return;
+		}
+		inFlight.incrementAndGet();
+		try {
+			execute(request, indexed, start);
+		} catch (RuntimeException e) {
+			// The listener will never be called: this batch is not in flight anymore
+			logger.warn("can not send percolation of {} beers", e, indexed.size());
+			stats.onBatch(indexed.size(), indexed.size(), 0, start, System.nanoTime());
+			done();
+		}
+	}
+
+	private void execute(MultiPercolateRequestBuilder request, final List<Indexed> indexed, final long start) {
+		request.execute(new ActionListener<MultiPercolateResponse>() {
+			@Override
+			public void onResponse(MultiPercolateResponse response) {
+				int failures = 0;
+				long matches = 0;
+				MultiPercolateResponse.Item[] items = response.getItems();
+				for (int i = 0; i < items.length; i++) {
+					if (items[i].isFailure()) {
+						failures++;
+						logger.warn("percolation of beer [{}] failed: {}", indexed.get(i).id, items[i].getErrorMessage());
+						continue;
+					}
+					List<String> ids = ids(items[i].getResponse());
+					matches += ids.size();
+					if (!ids.isEmpty()) {
+						try {
+							alerts.onMatch(indexed.get(i).id, indexed.get(i).beer, ids);
+						} catch (Exception e) {
+							logger.warn("alert for beer [{}] failed", e, indexed.get(i).id);
+						}
+					}
+				}
+				stats.onBatch(items.length, failures, matches, start, System.nanoTime());
+				done();
+			}
+
+			@Override
+			public void onFailure(Throwable e) {
+				logger.warn("percolation of {} beers failed", e, indexed.size());
+				stats.onBatch(indexed.size(), indexed.size(), 0, start, System.nanoTime());
+				done();
+			}
+		});
+	}
+
+	/**
+	 * Stats must be updated before calling this, as it wakes up {@link #awaitClose(long, TimeUnit)}
+	 */
+	private void done() {
+		synchronized (inFlight) {
+			inFlight.decrementAndGet();
+			inFlight.notifyAll();
+		}
+	}
+
+	private MultiPercolateRequestBuilder request(List<Beer> beers) throws IOException {
+		MultiPercolateRequestBuilder multi = client.prepareMultiPercolate();
+		for (Beer beer : beers) {
+			multi.add(client.preparePercolate()
+					.setIndices(index)
+					.setDocumentType(type)
+					.setPercolateDoc(PercolateSourceBuilder.docBuilder().setDoc(BeerCodec.encode(beer))));
+		}
+		return multi;
+	}
+
+	private static XContentBuilder source(QueryBuilder query) throws IOException {
+		return XContentFactory.jsonBuilder().startObject().field("query", query).endObject();
+	}
+
+	private static List<String> ids(PercolateResponse response) {
+		if (response.getMatches() == null || response.getMatches().length == 0) return Collections.emptyList();
+		List<String> ids = new ArrayList<String>(response.getMatches().length);
+		for (PercolateResponse.Match match : response) {
+			ids.add(match.getId().string());
+		}
+		return ids;
+	}
+
+	private static long count(List<List<String>> matches) {
+		long count = 0;
+		for (List<String> ids : matches) {
+			count += ids.size();
+		}
+		return count;
+	}
+
+	private static class Indexed {
+		final String id;
+		final Beer beer;
+
+		Indexed(String id, Beer beer) {
+			this.id = id;
+			this.beer = beer;
+		}
+	}
+
+	/**
+	 * Told about each beer matching at least one saved search, from a network thread: don't block.
+	 */
+	public static interface Alerts {
+		/**
+		 * @param id Id of the indexed beer
+		 * @param queries Ids of matching saved searches
+		 */
+		void onMatch(String id, Beer beer, List<String> queries);
+	}
+
+	/**
+	 * Percolation statistics: number of batches, beers, failures, matches and throughput
+	 */
+	public static class PercolateStats {
+		private final CounterMetric batches = new CounterMetric();
+		private final CounterMetric docs = new CounterMetric();
+		private final CounterMetric failures = new CounterMetric();
+		private final CounterMetric matches = new CounterMetric();
+		private final AtomicLong tookNanos = new AtomicLong();
+		private final AtomicLong firstStart = new AtomicLong(Long.MAX_VALUE);
+		private final AtomicLong lastEnd = new AtomicLong(Long.MIN_VALUE);
+
+		/**
+		 * @param start System.nanoTime() when the batch was sent
+		 * @param end System.nanoTime() when its response came back
+		 */
+		void onBatch(int nbDocs, int nbFailures, long nbMatches, long start, long end) {
+			batches.inc();
+			docs.inc(nbDocs);
+			failures.inc(nbFailures);
+			matches.inc(nbMatches);
+			tookNanos.addAndGet(end - start);
+			long first;
+			while (start < (first = firstStart.get()) && !firstStart.compareAndSet(first, start));
+			long last;
+			while (end > (last = lastEnd.get()) && !lastEnd.compareAndSet(last, end));
+		}
+
+		/**
+		 * @return Number of multi percolate requests
+		 */
+		public long batches() {
+			return batches.count();
+		}
+
+		/**
+		 * @return Number of beers percolated
+		 */
+		public long docs() {
+			return docs.count();
+		}
+
+		/**
+		 * @return Number of beers we could not percolate
+		 */
+		public long failures() {
+			return failures.count();
+		}
+
+		/**
+		 * @return Number of (beer, saved search) matches
+		 */
+		public long matches() {
+			return matches.count();
+		}
+
+		/**
+		 * @return Sum of multi percolate latencies. Concurrent requests are counted twice.
+		 */
+		public TimeValue took() {
+			return TimeValue.timeValueNanos(tookNanos.get());
+		}
+
+		/**
+		 * @return Wall clock time from the first batch sent to the last response
+		 */
+		public TimeValue elapsed() {
+			long first = firstStart.get();
+			long last = lastEnd.get();
+			return TimeValue.timeValueNanos(last > first ? last - first : 0);
+		}
+
+		/**
+		 * @return Beers percolated per second of {@link #elapsed()}: concurrent batches are counted once
+		 */
+		public double docsPerSecond() {
+			long elapsed = elapsed().nanos();
+			return elapsed == 0 ? 0 : docs() * 1e9 / elapsed;
+		}
+
+		@Override
+		public String toString() {
+			return "batches [" + batches() + "], docs [" + docs() + "], failures [" + failures() + "], matches ["
+					+ matches() + "], took [" + took() + "], elapsed [" + elapsed() + "], throughput [" + Math.round(docsPerSecond()) + " docs/s]";
+		}
+	}
+
+	public static class Builder {
+		private final Client client;
+		private final String index;
+		private String type = "beer";
+		private int batchSize = 100;
+		private Alerts alerts = new Alerts() {
+			@Override
+			public void onMatch(String id, Beer beer, List<String> queries) {
+				logger.info("beer [{}] matches saved searches {}", id, queries);
+			}
+		};
+
+		private Builder(Client client, String index) {
+			this.client = client;
+			this.index = index;
+		}
+
+		/**
+		 * @param type Type of percolated documents, for its mapping
+		 */
+		public Builder type(String type) {
+			this.type = type;
+			return this;
+		}
+
+		/**
+		 * @param batchSize Number of beers sent in one multi percolate request
+		 */
+		public Builder batchSize(int batchSize) {
+			this.batchSize = batchSize;
+			return this;
+		}
+
+		/**
+		 * @param alerts Told about beers matching saved searches. Defaults to logging them.
+		 */
+		public Builder alerts(Alerts alerts) {
+			this.alerts = alerts;
+			return this;
+		}
+
+		public BeerPercolator build() {
+			return new BeerPercolator(this);
+		}
+	}
+}
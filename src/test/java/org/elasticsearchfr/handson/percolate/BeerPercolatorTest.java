@@ -0,0 +1,170 @@
+package org.elasticsearchfr.handson.percolate;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearchfr.handson.BenchmarkCsv;
+import org.elasticsearchfr.handson.MealTemplate;
+import org.elasticsearchfr.handson.RejectingClient;
+import org.elasticsearchfr.handson.StartNode;
+import org.elasticsearchfr.handson.beans.Beer;
+import org.elasticsearchfr.handson.beans.BeerGenerator;
+import org.elasticsearchfr.handson.beans.Colour;
+import org.elasticsearchfr.handson.bulk.BeerBulkIndexer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * We register saved searches shaped like the SearchTest ones, and check that percolating new beers
+ * gives the same matches as running the searches once beers are indexed.
+ * <br>{@link #throughput()} writes beers percolated per second in target/percolate/percolate.csv.
+ * You can change the runs with system properties:
+ * <ul>
+ * <li>percolate.queries: comma separated numbers of registered queries (default to 100,300)
+ * <li>percolate.docs: beers percolated for each run (default to 200)
+ * </ul>
+ */
+public class BeerPercolatorTest extends StartNode {
+	private static final ESLogger logger = ESLoggerFactory.getLogger(BeerPercolatorTest.class.getName());
+
+	@Before
+	public void setUp() throws Exception {
+		createIndex("percolate_test");
+		createIndex("alerts_test");
+	}
+
+	@After
+	public void tearDown() {
+		node.client().admin().indices().prepareDelete("percolate_test", "alerts_test").execute().actionGet();
+	}
+
+	@Test
+	public void alertsMatchSearches() throws Exception {
+		Map<String, QueryBuilder> searches = new HashMap<String, QueryBuilder>();
+		searches.put("heineken", QueryBuilders.matchQuery("brand", "Heineken"));
+		searches.put("cheap", QueryBuilders.rangeQuery("price").from(2).to(4).includeUpper(false));
+		searches.put("big_pale", QueryBuilders.filteredQuery(QueryBuilders.matchQuery("colour", "PALE"),
+				FilterBuilders.rangeFilter("size").gte(0.5)));
+
+		final ConcurrentMap<String, AtomicLong> alerts = new ConcurrentHashMap<String, AtomicLong>();
+		for (String id : searches.keySet()) {
+			alerts.put(id, new AtomicLong());
+		}
+		BeerPercolator percolator = BeerPercolator.builder(node.client(), "alerts_test").batchSize(50)
+				.alerts(new BeerPercolator.Alerts() {
+					@Override
+					public void onMatch(String id, Beer beer, List<String> queries) {
+						for (String query : queries) {
+							alerts.get(query).incrementAndGet();
+						}
+					}
+				}).build();
+		percolator.registerAll(searches);
+
+		BeerBulkIndexer indexer = BeerBulkIndexer.builder(node.client(), "percolate_test", "beer")
+				.bulkActions(100).listener(percolator).build();
+		indexer.addAll("beer_", BeerGenerator.builder(42).build().iterator(0, 1000));
+		indexer.close();
+		percolator.close();
+		Assert.assertEquals(1000, percolator.stats().docs());
+		Assert.assertEquals(0, percolator.stats().failures());
+		Assert.assertEquals(20, percolator.stats().batches());
+
+		node.client().admin().indices().prepareRefresh("percolate_test").execute().actionGet();
+		for (Map.Entry<String, QueryBuilder> search : searches.entrySet()) {
+			long hits = node.client().prepareCount("percolate_test").setQuery(search.getValue()).execute().actionGet().getCount();
+			logger.info("saved search [{}]: {} alerts, {} hits", search.getKey(), alerts.get(search.getKey()), hits);
+			Assert.assertTrue(hits > 0);
+			Assert.assertEquals(hits, alerts.get(search.getKey()).get());
+		}
+
+		Assert.assertTrue(percolator.unregister("cheap"));
+		List<List<String>> matches = percolator.percolate(Collections.singletonList(new Beer("Heineken", Colour.DARK, 0.33, 3)));
+		Assert.assertEquals(Collections.singletonList("heineken"), matches.get(0));
+	}
+
+	@Test
+	public void throughput() throws Exception {
+		int docs = Integer.parseInt(System.getProperty("percolate.docs", "200"));
+		BeerGenerator generator = BeerGenerator.builder(7).build();
+		List<Beer> beers = new ArrayList<Beer>();
+		for (int i = 0; i < docs; i++) {
+			beers.add(generator.beer(i));
+		}
+
+		for (String value : System.getProperty("percolate.queries", "100,300").split(",")) {
+			int queries = Integer.parseInt(value.trim());
+			node.client().admin().indices().prepareDelete("alerts_test").execute().actionGet();
+			createIndex("alerts_test");
+
+			BeerPercolator percolator = BeerPercolator.builder(node.client(), "alerts_test").build();
+			Map<String, QueryBuilder> saved = new HashMap<String, QueryBuilder>();
+			for (int i = 0; i < queries; i++) {
+				saved.put("query_" + i, savedSearch(i, generator.beer(docs + i)));
+				if (saved.size() == 1000) {
+					percolator.registerAll(saved);
+					saved.clear();
+				}
+			}
+			if (!saved.isEmpty()) percolator.registerAll(saved);
+
+			for (int from = 0; from < docs; from += 100) {
+				percolator.percolate(beers.subList(from, Math.min(docs, from + 100)));
+			}
+			double rate = percolator.stats().docsPerSecond();
+			logger.info("[{}] registered queries: {}", queries, percolator.stats());
+			BenchmarkCsv.append(new File("target/percolate/percolate.csv"), "queries,docs,matches,docs_per_s,docs_per_s_per_10k_queries",
+					BenchmarkCsv.row("%d,%d,%d,%.1f,%.1f", queries, docs, percolator.stats().matches(), rate, rate * queries / 10000));
+			Assert.assertEquals(docs, percolator.stats().docs());
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void rejectedBatchesAreNotInFlight() throws Exception {
+		RejectingClient client = new RejectingClient(node.client(), 1);
+		BeerPercolator percolator = BeerPercolator.builder(client, "alerts_test").batchSize(10).build();
+		BeerGenerator generator = BeerGenerator.builder(42).build();
+		for (int i = 0; i < 100; i++) {
+			percolator.onIndexed("beer_" + i, generator.beer(i), true);
+		}
+		// Would wait one minute then throw if rejected batches were still counted in flight
+		percolator.close();
+
+		Assert.assertEquals(10, client.rejected());
+		Assert.assertEquals(10, percolator.stats().batches());
+		Assert.assertEquals(100, percolator.stats().failures());
+	}
+
+	/**
+	 * A brand match, a price range or a size filter, like SearchTest
+	 */
+	private static QueryBuilder savedSearch(int i, Beer beer) {
+		switch (i % 3) {
+		case 0:
+			return QueryBuilders.matchQuery("brand", beer.getBrand());
+		case 1:
+			return QueryBuilders.rangeQuery("price").from(Math.floor(beer.getPrice())).to(Math.floor(beer.getPrice()) + 1);
+		default:
+			return QueryBuilders.filteredQuery(QueryBuilders.matchAllQuery(), FilterBuilders.rangeFilter("size").gte(beer.getSize()));
+		}
+	}
+
+	private void createIndex(String index) throws Exception {
+		node.client().admin().indices().prepareCreate(index)
+				.addMapping(MealTemplate.TYPE, MealTemplate.mapping()).execute().actionGet();
+	}
+}
@@ -0,0 +1,200 @@
+package org.elasticsearchfr.handson.profile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+
+/**
+ * What a {@link SearchProfiler} found about one search request: mean <code>took</code> of the whole
+ * search and of each shard, split in phases, explanations of the top hits and slowlog entries.
+ * <br>Phase times are differences between variants of the request (see {@link Shard}), so they are
+ * estimates: small negative differences are reported as 0.
+ * <br>{@link #toString()} prints the report as JSON.
+ */
+public class SearchProfile implements ToXContent {
+	private final double tookMillis;
+	private final long totalHits;
+	private final List<Shard> shards;
+	private final Map<String, String> explanations;
+	private final List<String> slowlog;
+
+	SearchProfile(double tookMillis, long totalHits, List<Shard> shards, Map<String, String> explanations, List<String> slowlog) {
+		this.tookMillis = tookMillis;
+		this.totalHits = totalHits;
+		this.shards = Collections.unmodifiableList(new ArrayList<Shard>(shards));
+		this.explanations = Collections.unmodifiableMap(new LinkedHashMap<String, String>(explanations));
+		this.slowlog = Collections.unmodifiableList(new ArrayList<String>(slowlog));
+	}
+
+	/**
+	 * @return Mean took of the request, all shards together
+	 */
+	public double tookMillis() {
+		return tookMillis;
+	}
+
+	public long totalHits() {
+		return totalHits;
+	}
+
+	/**
+	 * @return One profile per shard number. With several indices, shard 0 is shard 0 of each index.
+	 */
+	public List<Shard> shards() {
+		return shards;
+	}
+
+	/**
+	 * @return Explanation of the top hits, by id, best hit first
+	 */
+	public Map<String, String> explanations() {
+		return explanations;
+	}
+
+	/**
+	 * @return Slowlog entries logged while the request ran once with 0ms thresholds
+	 */
+	public List<String> slowlog() {
+		return slowlog;
+	}
+
+	/**
+	 * @return Slowest phase, summed over shards: query, scoring, fetch or highlight
+	 */
+	public String dominantPhase() {
+		double[] sums = new double[Shard.PHASES.length];
+		for (Shard shard : shards) {
+			double[] phases = shard.phases();
+			for (int i = 0; i < sums.length; i++) {
+				sums[i] += phases[i];
+			}
+		}
+		int max = 0;
+		for (int i = 1; i < sums.length; i++) {
+			if (sums[i] > sums[max]) max = i;
+		}
+		return Shard.PHASES[max];
+	}
+
+	@Override
+	public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+		builder.startObject();
+		builder.field("took_millis", round(tookMillis));
+		builder.field("total_hits", totalHits);
+		builder.field("dominant_phase", dominantPhase());
+		builder.startArray("shards");
+		for (Shard shard : shards) {
+			shard.toXContent(builder, params);
+		}
+		builder.endArray();
+		builder.startObject("explanations");
+		for (Map.Entry<String, String> explanation : explanations.entrySet()) {
+			builder.field(explanation.getKey(), explanation.getValue());
+		}
+		builder.endObject();
+		builder.field("slowlog", slowlog);
+		builder.endObject();
+		return builder;
+	}
+
+	@Override
+	public String toString() {
+		try {
+			return toXContent(XContentFactory.jsonBuilder().prettyPrint(), EMPTY_PARAMS).string();
+		} catch (IOException e) {
+			return "{ \"error\" : \"" + e.getMessage() + "\" }";
+		}
+	}
+
+	private static double round(double millis) {
+		return Math.round(millis * 100) / 100.0;
+	}
+
+	/**
+	 * Mean took of one shard, for the request and three variants of it:
+	 * <ul>
+	 * <li>query: no hit fetched (size 0)
+	 * <li>unscored: no hit fetched, query wrapped in a <code>constant_score</code>
+	 * <li>no highlight: the request without its highlight section
+	 * </ul>
+	 * Scoring is query - unscored, fetch is no highlight - query, highlight is took - no highlight.
+	 */
+	public static class Shard implements ToXContent {
+		static final String[] PHASES = { "query", "scoring", "fetch", "highlight" };
+
+		private final int shard;
+		private final double tookMillis;
+		private final double queryMillis;
+		private final double unscoredMillis;
+		private final double noHighlightMillis;
+
+		Shard(int shard, double tookMillis, double queryMillis, double unscoredMillis, double noHighlightMillis) {
+			this.shard = shard;
+			this.tookMillis = tookMillis;
+			this.queryMillis = queryMillis;
+			this.unscoredMillis = unscoredMillis;
+			this.noHighlightMillis = noHighlightMillis;
+		}
+
+		public int shard() {
+			return shard;
+		}
+
+		public double tookMillis() {
+			return tookMillis;
+		}
+
+		/**
+		 * @return Query phase without scoring cost
+		 */
+		public double queryMillis() {
+			return Math.min(queryMillis, unscoredMillis);
+		}
+
+		public double scoringMillis() {
+			return Math.max(0, queryMillis - unscoredMillis);
+		}
+
+		/**
+		 * @return Loading hits, highlighting excluded
+		 */
+		public double fetchMillis() {
+			return Math.max(0, noHighlightMillis - queryMillis);
+		}
+
+		public double highlightMillis() {
+			return Math.max(0, tookMillis - noHighlightMillis);
+		}
+
+		double[] phases() {
+			return new double[] { queryMillis(), scoringMillis(), fetchMillis(), highlightMillis() };
+		}
+
+		@Override
+		public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+			builder.startObject();
+			builder.field("shard", shard);
+			builder.field("took_millis", round(tookMillis));
+			double[] phases = phases();
+			for (int i = 0; i < PHASES.length; i++) {
+				builder.field(PHASES[i] + "_millis", round(phases[i]));
+			}
+			builder.endObject();
+			return builder;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT, "shard [%d], took [%.2fms], query [%.2fms], scoring [%.2fms], fetch [%.2fms], highlight [%.2fms]",
+					shard, tookMillis, queryMillis(), scoringMillis(), fetchMillis(), highlightMillis());
+		}
+	}
+}
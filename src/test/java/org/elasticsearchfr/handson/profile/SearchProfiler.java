@@ -0,0 +1,260 @@
+package org.elasticsearchfr.handson.profile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.hppc.cursors.ObjectObjectCursor;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.search.SearchHit;
+
+/**
+ * Tells where a search spends its time, shard by shard. Elasticsearch 1.0 has no profile API,
+ * so we run the request several times:
+ * <ul>
+ * <li>as it is, to get its mean <code>took</code>
+ * <li>on each shard number (<code>preference=_shards:N</code>), as it is and without fetch, scoring or
+ * highlighting (see {@link SearchProfile.Shard})
+ * <li>once with <code>explain</code>, to explain its top hits
+ * <li>once with the index slowlog thresholds set to 0ms, to catch its query and fetch slowlog entries.
+ * Thresholds are restored afterwards.
+ * </ul>
+ * Each variant is run once to warm up, then <code>runs</code> times.
+ * <br>The request should be a query then fetch search; scrolls and scans are not supported.
+ * Other searches running at the same time add noise and may show up in the slowlog.
+ * <br>Usage:
+ * <pre>
+ * SearchProfile profile = SearchProfiler.builder(client).runs(10).build().profile(client.prepareSearch("meal").setQuery(query));
+ * logger.info("{}", profile);
+ * </pre>
+ */
+public class SearchProfiler {
+	private static final ESLogger logger = ESLoggerFactory.getLogger(SearchProfiler.class.getName());
+
+	/**
+	 * Parent of the query and fetch slowlog loggers of all indices
+	 */
+	static final String SLOWLOG_LOGGER = "org.elasticsearch.index.search.slowlog";
+	static final String[] SLOWLOG_THRESHOLDS = { "index.search.slowlog.threshold.query.trace", "index.search.slowlog.threshold.fetch.trace" };
+
+	private final Client client;
+	private final int runs;
+	private final int explainHits;
+	private final boolean slowlog;
+
+	private SearchProfiler(Builder builder) {
+		this.client = builder.client;
+		this.runs = builder.runs;
+		this.explainHits = builder.explainHits;
+		this.slowlog = builder.slowlog;
+	}
+
+	/**
+	 * @param client Client used to search and to change slowlog settings
+	 * @return a builder with default settings (5 runs, 3 explained hits, slowlog on)
+	 */
+	public static Builder builder(Client client) {
+		return new Builder(client);
+	}
+
+	public SearchProfile profile(SearchRequestBuilder search) {
+		return profile(search.request());
+	}
+
+	public SearchProfile profile(SearchRequest request) {
+		Map<String, Object> source = source(request);
+		GetSettingsResponse settings = client.admin().indices().prepareGetSettings(request.indices()).execute().actionGet();
+		int shards = 0;
+		for (ObjectObjectCursor<String, Settings> index : settings.getIndexToSettings()) {
+			shards = Math.max(shards, index.value.getAsInt("index.number_of_shards", 5));
+		}
+
+		double took = meanTook(request, source, null);
+		long totalHits = client.search(copy(request, source, null)).actionGet().getHits().getTotalHits();
+
+		Map<String, Object> query = without(source, "highlight");
+		query.put("size", 0);
+		Map<String, Object> unscored = new LinkedHashMap<String, Object>(query);
+		if (source.containsKey("query")) {
+			Map<String, Object> constantScore = new HashMap<String, Object>();
+			constantScore.put("query", source.get("query"));
+			unscored.put("query", Collections.singletonMap("constant_score", constantScore));
+		}
+		Map<String, Object> noHighlight = without(source, "highlight");
+
+		List<SearchProfile.Shard> profiles = new ArrayList<SearchProfile.Shard>();
+		for (int shard = 0; shard < shards; shard++) {
+			String preference = "_shards:" + shard;
+			profiles.add(new SearchProfile.Shard(shard, meanTook(request, source, preference), meanTook(request, query, preference),
+					meanTook(request, unscored, preference), meanTook(request, noHighlight, preference)));
+		}
+
+		return new SearchProfile(took, totalHits, profiles, explain(request, source), slowlog ? slowlog(request, source, settings) : Collections.<String> emptyList());
+	}
+
+	/**
+	 * @return mean took after a warm up run
+	 */
+	private double meanTook(SearchRequest request, Map<String, Object> source, String preference) {
+		SearchRequest copy = copy(request, source, preference);
+		client.search(copy).actionGet();
+		long took = 0;
+		for (int i = 0; i < runs; i++) {
+			took += client.search(copy).actionGet().getTookInMillis();
+		}
+		return (double) took / runs;
+	}
+
+	private Map<String, String> explain(SearchRequest request, Map<String, Object> source) {
+		if (explainHits == 0) return Collections.emptyMap();
+		Map<String, Object> explained = new LinkedHashMap<String, Object>(source);
+		explained.put("explain", true);
+		explained.put("size", explainHits);
+		Map<String, String> explanations = new LinkedHashMap<String, String>();
+		for (SearchHit hit : client.search(copy(request, explained, null)).actionGet().getHits()) {
+			explanations.put(hit.getId(), hit.getExplanation().toString());
+		}
+		return explanations;
+	}
+
+	/**
+	 * Run the request once with 0ms slowlog thresholds, and collect what was logged
+	 */
+	private List<String> slowlog(SearchRequest request, Map<String, Object> source, GetSettingsResponse settings) {
+		String[] indices = settings.getIndexToSettings().keys().toArray(String.class);
+		updateSettings(indices, ImmutableSettings.settingsBuilder()
+				.put(SLOWLOG_THRESHOLDS[0], "0ms").put(SLOWLOG_THRESHOLDS[1], "0ms").build());
+		Capture capture = new Capture();
+		Logger slowlogLogger = Logger.getLogger(SLOWLOG_LOGGER);
+		slowlogLogger.addAppender(capture);
+		try {
+			client.search(copy(request, source, null)).actionGet();
+		} finally {
+			slowlogLogger.removeAppender(capture);
+			// Thresholds can be different for each index
+			for (ObjectObjectCursor<String, Settings> index : settings.getIndexToSettings()) {
+				ImmutableSettings.Builder previous = ImmutableSettings.settingsBuilder();
+				for (String threshold : SLOWLOG_THRESHOLDS) {
+					previous.put(threshold, index.value.get(threshold, "-1"));
+				}
+				updateSettings(new String[] { index.key }, previous.build());
+			}
+		}
+		return capture.entries();
+	}
+
+	private void updateSettings(String[] indices, Settings settings) {
+		client.admin().indices().prepareUpdateSettings(indices).setSettings(settings).execute().actionGet();
+	}
+
+	/**
+	 * @return the search source as an ordered map, so we can change it
+	 */
+	private static Map<String, Object> source(SearchRequest request) {
+		if (request.extraSource() != null) {
+			throw new IllegalArgumentException("requests with an extra source can not be profiled");
+		}
+		BytesReference source = request.source();
+		if (source == null || source.length() == 0) return new LinkedHashMap<String, Object>();
+		return XContentHelper.convertToMap(source, true).v2();
+	}
+
+	private static Map<String, Object> without(Map<String, Object> source, String key) {
+		Map<String, Object> copy = new LinkedHashMap<String, Object>(source);
+		copy.remove(key);
+		return copy;
+	}
+
+	private static SearchRequest copy(SearchRequest request, Map<String, Object> source, String preference) {
+		SearchRequest copy = new SearchRequest(request.indices())
+				.types(request.types())
+				.routing(request.routing())
+				.searchType(request.searchType())
+				.preference(preference == null ? request.preference() : preference);
+		copy.source(source);
+		return copy;
+	}
+
+	/**
+	 * Keeps slowlog messages, tagged with the phase (query or fetch)
+	 */
+	private static class Capture extends AppenderSkeleton {
+		private final List<String> entries = Collections.synchronizedList(new ArrayList<String>());
+
+		@Override
+		protected void append(LoggingEvent event) {
+			String phase = event.getLoggerName().substring(event.getLoggerName().lastIndexOf('.') + 1);
+			entries.add(phase + ": " + event.getRenderedMessage());
+		}
+
+		List<String> entries() {
+			synchronized (entries) {
+				logger.debug("{} slowlog entries captured", entries.size());
+				return new ArrayList<String>(entries);
+			}
+		}
+
+		@Override
+		public boolean requiresLayout() {
+			return false;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	public static class Builder {
+		private final Client client;
+		private int runs = 5;
+		private int explainHits = 3;
+		private boolean slowlog = true;
+
+		private Builder(Client client) {
+			this.client = client;
+		}
+
+		/**
+		 * @param runs Number of runs of each variant, after one warm up run
+		 */
+		public Builder runs(int runs) {
+			this.runs = runs;
+			return this;
+		}
+
+		/**
+		 * @param explainHits Number of top hits to explain. 0 for none.
+		 */
+		public Builder explainHits(int explainHits) {
+			this.explainHits = explainHits;
+			return this;
+		}
+
+		/**
+		 * @param slowlog false to leave slowlog settings alone
+		 */
+		public Builder slowlog(boolean slowlog) {
+			this.slowlog = slowlog;
+			return this;
+		}
+
+		public SearchProfiler build() {
+			return new SearchProfiler(this);
+		}
+	}
+}
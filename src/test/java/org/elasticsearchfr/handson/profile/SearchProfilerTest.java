@@ -0,0 +1,74 @@
+package org.elasticsearchfr.handson.profile;
+
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearchfr.handson.MealTemplate;
+import org.elasticsearchfr.handson.StartNode;
+import org.elasticsearchfr.handson.beans.BeerGenerator;
+import org.elasticsearchfr.handson.bulk.BeerBulkIndexer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * We profile a filtered and highlighted search, like the SearchTest ones
+ */
+public class SearchProfilerTest extends StartNode {
+	private static final ESLogger logger = ESLoggerFactory.getLogger(SearchProfilerTest.class.getName());
+
+	@Before
+	public void setUp() throws Exception {
+		node.client().admin().indices().prepareCreate("profile_test")
+				.setSettings("index.number_of_shards", 3)
+				.addMapping(MealTemplate.TYPE, MealTemplate.mapping()).execute().actionGet();
+		BeerBulkIndexer indexer = BeerBulkIndexer.builder(node.client(), "profile_test", "beer").build();
+		indexer.addAll("beer_", BeerGenerator.builder(42).build().iterator(0, 2000));
+		indexer.close();
+		node.client().admin().indices().prepareRefresh("profile_test").execute().actionGet();
+	}
+
+	@After
+	public void tearDown() {
+		node.client().admin().indices().prepareDelete("profile_test").execute().actionGet();
+	}
+
+	@Test
+	public void profileIsSplitByShardAndPhase() throws Exception {
+		SearchRequestBuilder search = node.client().prepareSearch("profile_test").setSize(100)
+				.setQuery(QueryBuilders.filteredQuery(QueryBuilders.matchQuery("brand", "Heineken"), FilterBuilders.rangeFilter("price").gt(5)))
+				.addHighlightedField("brand");
+		SearchProfile profile = SearchProfiler.builder(node.client()).runs(3).build().profile(search);
+		logger.info("profile: {}", profile);
+
+		Assert.assertTrue(profile.totalHits() > 0);
+		Assert.assertEquals(3, profile.shards().size());
+		for (SearchProfile.Shard shard : profile.shards()) {
+			Assert.assertTrue(shard.queryMillis() >= 0 && shard.fetchMillis() >= 0);
+		}
+		Assert.assertNotNull(profile.dominantPhase());
+
+		Assert.assertEquals(3, profile.explanations().size());
+		for (String explanation : profile.explanations().values()) {
+			Assert.assertTrue(explanation, explanation.contains("brand:Heineken"));
+		}
+
+		boolean query = false, fetch = false;
+		for (String entry : profile.slowlog()) {
+			query |= entry.startsWith("query: ") && entry.contains("[profile_test]");
+			fetch |= entry.startsWith("fetch: ");
+		}
+		Assert.assertTrue(profile.slowlog().toString(), query && fetch);
+
+		// Slowlog thresholds are back to their defaults
+		Settings settings = node.client().admin().indices().prepareGetSettings("profile_test").execute().actionGet()
+				.getIndexToSettings().get("profile_test");
+		for (String threshold : SearchProfiler.SLOWLOG_THRESHOLDS) {
+			Assert.assertEquals("-1", settings.get(threshold));
+		}
+	}
+}
@@ -0,0 +1,691 @@
+package org.elasticsearchfr.handson.reindex;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequestBuilder;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.AliasMetaData;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.hppc.cursors.ObjectObjectCursor;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearchfr.handson.bulk.BulkIngestSession;
+import org.elasticsearchfr.handson.bulk.BulkRetrier;
+
+/**
+ * Copies the index behind an alias into a new index (new mapping, new number of shards...), then
+ * moves the alias to the new index in one atomic call. Searches on the alias keep running on the old
+ * index during the copy, and see the new one as soon as the alias moves.
+ * <ul>
+ * <li>The source index is read in slices, one per shard (scan with <code>preference=_shards:N</code>),
+ * by <code>readers</code> threads.
+ * <li>Bulks are given to <code>writers</code> threads through a queue of <code>queueSize</code> bulks, so slow
+ * writes slow down reads instead of filling the heap. Rejected items are retried with a {@link BulkRetrier}.
+ * <li>The new index is loaded within a {@link BulkIngestSession}: no refresh and no replica during the copy.
+ * <li>Once all slices are copied, the alias is moved only if both indices have the same number of documents.
+ * </ul>
+ * Sources are copied as they are, with their id, type and routing. Documents written to the old index
+ * during the copy may be missed: stop writes, or run the reindex again.
+ * <br>With a checkpoint file, the final settings of the new index and each copied slice are recorded.
+ * If the reindex is stopped ({@link #stop()}) or dies, running it again with the same file copies only
+ * the missing slices, into the same new index, and gives it back its final settings.
+ * <br>Usage:
+ * <pre>
+ * Reindexer reindexer = Reindexer.builder(client, "meal").mapping("beer", newMapping).checkpoint(new File("meal.checkpoint")).build();
+ * ReindexStats stats = reindexer.reindex();
+ * </pre>
+ */
+public class Reindexer {
+	private static final ESLogger logger = ESLoggerFactory.getLogger(Reindexer.class.getName());
+
+	private final Client client;
+	private final String alias;
+	private final String targetIndex;
+	private final Settings settings;
+	private final Map<String, XContentBuilder> mappings;
+	private final int readers;
+	private final int writers;
+	private final int batchSize;
+	private final int queueSize;
+	private final TimeValue keepAlive;
+	private final File checkpointFile;
+	private final boolean deleteSource;
+	private final BulkRetrier retrier;
+
+	private final AtomicBoolean stopped = new AtomicBoolean();
+	private final ReindexStats stats = new ReindexStats();
+
+	private Reindexer(Builder builder) {
+		this.client = builder.client;
+		this.alias = builder.alias;
+		this.targetIndex = builder.targetIndex;
+		this.settings = builder.settings;
+		this.mappings = builder.mappings;
+		this.readers = builder.readers;
+		this.writers = builder.writers;
+		this.batchSize = builder.batchSize;
+		this.queueSize = builder.queueSize;
+		this.keepAlive = builder.keepAlive;
+		this.checkpointFile = builder.checkpointFile;
+		this.deleteSource = builder.deleteSource;
+		this.retrier = BulkRetrier.builder(builder.client).build();
+	}
+
+	/**
+	 * @param client Client to use
+	 * @param alias Alias to move. It must point to exactly one index.
+	 * @return a builder with default settings (4 readers, 4 writers, bulks of 100 documents, no checkpoint)
+	 */
+	public static Builder builder(Client client, String alias) {
+		return new Builder(client, alias);
+	}
+
+	/**
+	 * Copy the index and move the alias.
+	 * @return statistics. If {@link #stop()} was called, the alias was not moved: see {@link ReindexStats#swapped()}.
+	 * @throws IllegalStateException if documents are missing in the new index, or the alias moved since the checkpoint
+	 * @throws Exception the first write or read failure. Slices copied so far are kept in the checkpoint.
+	 */
+	public ReindexStats reindex() throws Exception {
+		long start = System.nanoTime();
+		String source = sourceIndex();
+		Checkpoint checkpoint = Checkpoint.load(checkpointFile);
+		if (checkpoint.source != null && !checkpoint.source.equals(source)) {
+			throw new IllegalStateException("alias [" + alias + "] points to [" + source + "], checkpoint was made for [" + checkpoint.source + "]");
+		}
+		checkpoint.source = source;
+		if (checkpoint.target == null) {
+			checkpoint.target = targetIndex != null ? targetIndex : alias + "_" + System.currentTimeMillis();
+		}
+		Settings sourceSettings = client.admin().indices().prepareGetSettings(source).execute().actionGet().getIndexToSettings().get(source);
+		if (checkpoint.settings == null) {
+			// Never read back from the new index: after a crash, it still has the ingest session settings
+			checkpoint.settings = ImmutableSettings.settingsBuilder()
+					.put("index.number_of_shards", sourceSettings.get("index.number_of_shards"))
+					.put("index.number_of_replicas", sourceSettings.get("index.number_of_replicas"))
+					.put(settings)
+					.build();
+		}
+		checkpoint.save();
+		String target = checkpoint.target;
+		Settings targetSettings = checkpoint.settings;
+		createTarget(source, target, targetSettings);
+		int shards = sourceSettings.getAsInt("index.number_of_shards", 5);
+
+		List<Integer> slices = new ArrayList<Integer>();
+		for (int shard = 0; shard < shards; shard++) {
+			if (checkpoint.done(shard)) {
+				stats.onResumed(checkpoint.docs(shard));
+			} else {
+				slices.add(shard);
+			}
+		}
+		stats.onStart(shards);
+		logger.info("reindexing [{}] into [{}]: {} slices to copy, {} already copied", source, target, slices.size(), shards - slices.size());
+
+		// Values the new index should have, even if a previous run died during its ingest session:
+		// every setting the session changes, as none can be read back from the new index
+		BulkIngestSession session = BulkIngestSession.builder(client, target).restore(ImmutableSettings.settingsBuilder()
+				.put(BulkIngestSession.DEFAULTS)
+				.put(BulkIngestSession.NUMBER_OF_REPLICAS, "1")
+				.put(targetSettings)
+				.build()).build();
+		session.start();
+		try {
+			copy(source, target, slices, checkpoint);
+		} catch (Exception e) {
+			session.failed();
+			throw e;
+		} finally {
+			session.close();
+			stats.onEnd(System.nanoTime() - start);
+		}
+		if (stopped.get()) {
+			logger.info("reindex of [{}] stopped: {}", source, stats);
+			return stats;
+		}
+
+		long expected = client.prepareCount(source).execute().actionGet().getCount();
+		long copied = client.prepareCount(target).execute().actionGet().getCount();
+		if (expected != copied) {
+			throw new IllegalStateException("[" + target + "] has " + copied + " documents, [" + source + "] has " + expected);
+		}
+
+		client.admin().indices().prepareAliases().removeAlias(source, alias).addAlias(target, alias).execute().actionGet();
+		stats.onSwapped();
+		checkpoint.delete();
+		if (deleteSource) {
+			client.admin().indices().prepareDelete(source).execute().actionGet();
+		}
+		stats.onEnd(System.nanoTime() - start);
+		logger.info("[{}] moved from [{}] to [{}]: {}", alias, source, target, stats);
+		return stats;
+	}
+
+	/**
+	 * Stop a running reindex: slices being copied are abandoned, and the alias is not moved.
+	 * <br>Can be called from any thread. {@link #reindex()} returns once running bulks are done.
+	 */
+	public void stop() {
+		stopped.set(true);
+	}
+
+	/**
+	 * @return statistics of the running or last reindex
+	 */
+	public ReindexStats stats() {
+		return stats;
+	}
+
+	private String sourceIndex() {
+		ImmutableOpenMap<String, List<AliasMetaData>> aliases = client.admin().indices().prepareGetAliases(alias).execute().actionGet().getAliases();
+		if (aliases.size() != 1) {
+			throw new IllegalArgumentException("alias [" + alias + "] must point to one index, found " + aliases.size());
+		}
+		return aliases.keysIt().next();
+	}
+
+	/**
+	 * Create the new index, unless a previous run did
+	 * @param targetSettings Settings of the new index once the reindex is done
+	 */
+	private void createTarget(String source, String target, Settings targetSettings) throws IOException {
+		if (client.admin().indices().prepareExists(target).execute().actionGet().isExists()) return;
+		CreateIndexRequestBuilder create = client.admin().indices().prepareCreate(target).setSettings(targetSettings);
+		if (mappings.isEmpty()) {
+			// Same mappings as the old index
+			for (ObjectObjectCursor<String, MappingMetaData> mapping : client.admin().indices().prepareGetMappings(source).execute().actionGet()
+					.getMappings().get(source)) {
+				create.addMapping(mapping.key, mapping.value.sourceAsMap());
+			}
+		} else {
+			for (Map.Entry<String, XContentBuilder> mapping : mappings.entrySet()) {
+				create.addMapping(mapping.getKey(), mapping.getValue());
+			}
+		}
+		create.execute().actionGet();
+		client.admin().cluster().prepareHealth(target).setWaitForYellowStatus().execute().actionGet();
+	}
+
+	/**
+	 * Read slices with <code>readers</code> threads, and write their bulks with <code>writers</code> threads
+	 */
+	private void copy(final String source, final String target, List<Integer> shards, final Checkpoint checkpoint) throws Exception {
+		final BlockingQueue<Slice> slices = new ArrayBlockingQueue<Slice>(Math.max(1, shards.size()));
+		for (int shard : shards) {
+			slices.add(new Slice(shard));
+		}
+		final BlockingQueue<Bulk> bulks = new ArrayBlockingQueue<Bulk>(queueSize);
+		final Bulk end = new Bulk(null, null);
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		final CountDownLatch written = new CountDownLatch(writers);
+
+		for (int i = 0; i < writers; i++) {
+			new Thread("reindex-writer-" + i) {
+				@Override
+				public void run() {
+					try {
+						Bulk bulk;
+						while ((bulk = bulks.take()) != end) {
+							// After a failure, we only drain the queue so readers are never blocked
+							if (failure.get() != null) continue;
+							try {
+								write(bulk);
+								if (bulk.slice.pending.decrementAndGet() == 0 && bulk.slice.read) {
+									complete(bulk.slice, checkpoint);
+								}
+							} catch (Exception e) {
+								failure.compareAndSet(null, e);
+							}
+						}
+					} catch (InterruptedException e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						written.countDown();
+					}
+				}
+			}.start();
+		}
+
+		final CountDownLatch read = new CountDownLatch(readers);
+		for (int i = 0; i < readers; i++) {
+			new Thread("reindex-reader-" + i) {
+				@Override
+				public void run() {
+					try {
+						Slice slice;
+						while (failure.get() == null && !stopped.get() && (slice = slices.poll()) != null) {
+							read(source, target, slice, bulks, failure);
+							if (failure.get() != null || stopped.get()) break;
+							slice.read = true;
+							if (slice.pending.get() == 0) complete(slice, checkpoint);
+						}
+					} catch (Exception e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						read.countDown();
+					}
+				}
+			}.start();
+		}
+
+		read.await();
+		for (int i = 0; i < writers; i++) {
+			bulks.put(end);
+		}
+		written.await();
+		if (failure.get() != null) throw failure.get();
+	}
+
+	/**
+	 * Scan one shard of the old index, and queue one bulk per page
+	 */
+	private void read(String source, String target, Slice slice, BlockingQueue<Bulk> bulks, AtomicReference<Exception> failure)
+			throws InterruptedException {
+		SearchResponse sr = client.prepareSearch(source)
+				.setSearchType(SearchType.SCAN)
+				.setPreference("_shards:" + slice.shard)
+				.setScroll(keepAlive)
+				.setSize(batchSize)
+				.addFields("_source", "_routing", "_parent")
+				.execute().actionGet();
+		String scrollId = sr.getScrollId();
+		try {
+			while (failure.get() == null && !stopped.get()) {
+				sr = client.prepareSearchScroll(scrollId).setScroll(keepAlive).execute().actionGet();
+				scrollId = sr.getScrollId();
+				SearchHit[] hits = sr.getHits().getHits();
+				if (hits.length == 0) {
+					scrollId = null;
+					break;
+				}
+				BulkRequest bulk = new BulkRequest();
+				for (SearchHit hit : hits) {
+					IndexRequest irq = new IndexRequest(target, hit.getType(), hit.getId()).source(hit.sourceRef(), false);
+					SearchHitField routing = hit.field("_routing");
+					if (routing != null) irq.routing(routing.<String> getValue());
+					SearchHitField parent = hit.field("_parent");
+					if (parent != null) irq.parent(parent.<String> getValue());
+					bulk.add(irq);
+				}
+				slice.pending.incrementAndGet();
+				bulks.put(new Bulk(slice, bulk));
+			}
+		} finally {
+			if (scrollId != null) {
+				client.prepareClearScroll().addScrollId(scrollId).execute().actionGet();
+			}
+		}
+	}
+
+	private void write(Bulk bulk) throws InterruptedException {
+		int docs = bulk.request.numberOfActions();
+		for (BulkItemResponse item : retrier.execute(bulk.request)) {
+			if (item.isFailed()) {
+				throw new IllegalStateException("can not copy [" + item.getId() + "]: " + item.getFailureMessage());
+			}
+		}
+		bulk.slice.docs.addAndGet(docs);
+		stats.onDocs(docs);
+	}
+
+	private void complete(Slice slice, Checkpoint checkpoint) throws IOException {
+		if (!slice.completed.compareAndSet(false, true)) return;
+		checkpoint.done(slice.shard, slice.docs.get());
+		stats.onSlice();
+		logger.debug("slice [{}] copied: {} documents", slice.shard, slice.docs.get());
+	}
+
+	/**
+	 * One shard of the old index
+	 */
+	private static class Slice {
+		final int shard;
+		final AtomicInteger pending = new AtomicInteger();
+		final AtomicInteger docs = new AtomicInteger();
+		final AtomicBoolean completed = new AtomicBoolean();
+		volatile boolean read = false;
+
+		Slice(int shard) {
+			this.shard = shard;
+		}
+	}
+
+	private static class Bulk {
+		final Slice slice;
+		final BulkRequest request;
+
+		Bulk(Slice slice, BulkRequest request) {
+			this.slice = slice;
+			this.request = request;
+		}
+	}
+
+	/**
+	 * Old and new index names, and copied slices, saved in a properties file after each change
+	 */
+	static class Checkpoint {
+		private final File file;
+		private final Map<Integer, Long> slices = new HashMap<Integer, Long>();
+		String source;
+		String target;
+		/**
+		 * Settings of the new index once the reindex is done
+		 */
+		Settings settings;
+
+		private Checkpoint(File file) {
+			this.file = file;
+		}
+
+		/**
+		 * @param file Checkpoint file, may not exist. null for a checkpoint in memory only.
+		 */
+		static Checkpoint load(File file) throws IOException {
+			Checkpoint checkpoint = new Checkpoint(file);
+			if (file == null || !file.exists()) return checkpoint;
+			Properties properties = new Properties();
+			InputStream in = new FileInputStream(file);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+			checkpoint.source = properties.getProperty("source");
+			checkpoint.target = properties.getProperty("target");
+			ImmutableSettings.Builder settings = ImmutableSettings.settingsBuilder();
+			for (String name : properties.stringPropertyNames()) {
+				if (name.startsWith("slice.")) {
+					checkpoint.slices.put(Integer.valueOf(name.substring("slice.".length())), Long.valueOf(properties.getProperty(name)));
+				} else if (name.startsWith("settings.")) {
+					settings.put(name.substring("settings.".length()), properties.getProperty(name));
+				}
+			}
+			// No settings recorded: they are computed again from the old index
+			Settings loaded = settings.build();
+			checkpoint.settings = loaded.getAsMap().isEmpty() ? null : loaded;
+			return checkpoint;
+		}
+
+		synchronized boolean done(int shard) {
+			return slices.containsKey(shard);
+		}
+
+		synchronized long docs(int shard) {
+			Long docs = slices.get(shard);
+			return docs == null ? 0 : docs;
+		}
+
+		synchronized void done(int shard, long docs) throws IOException {
+			slices.put(shard, docs);
+			save();
+		}
+
+		/**
+		 * Write to a temporary file, then rename it: a crash never leaves half a checkpoint
+		 */
+		synchronized void save() throws IOException {
+			if (file == null) return;
+			Properties properties = new Properties();
+			properties.setProperty("source", source);
+			properties.setProperty("target", target);
+			for (Map.Entry<String, String> setting : settings.getAsMap().entrySet()) {
+				properties.setProperty("settings." + setting.getKey(), setting.getValue());
+			}
+			for (Map.Entry<Integer, Long> slice : slices.entrySet()) {
+				properties.setProperty("slice." + slice.getKey(), String.valueOf(slice.getValue()));
+			}
+			if (file.getParentFile() != null) file.getParentFile().mkdirs();
+			File tmp = new File(file.getPath() + ".tmp");
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				properties.store(out, "reindex checkpoint");
+			} finally {
+				out.close();
+			}
+			if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+				throw new IOException("can not write checkpoint [" + file + "]");
+			}
+		}
+
+		synchronized void delete() {
+			if (file != null && file.exists() && !file.delete()) {
+				logger.warn("can not delete checkpoint [{}]", file);
+			}
+		}
+	}
+
+	/**
+	 * Documents and slices copied, and copy throughput
+	 */
+	public static class ReindexStats {
+		private final CounterMetric slices = new CounterMetric();
+		private final CounterMetric copiedSlices = new CounterMetric();
+		private final CounterMetric resumedSlices = new CounterMetric();
+		private final CounterMetric docs = new CounterMetric();
+		private final CounterMetric resumedDocs = new CounterMetric();
+		private volatile long tookNanos = 0;
+		private volatile boolean swapped = false;
+
+		void onStart(int count) {
+			slices.inc(count);
+		}
+
+		void onResumed(long count) {
+			resumedSlices.inc();
+			resumedDocs.inc(count);
+		}
+
+		void onDocs(int count) {
+			docs.inc(count);
+		}
+
+		void onSlice() {
+			copiedSlices.inc();
+		}
+
+		void onEnd(long nanos) {
+			tookNanos = nanos;
+		}
+
+		void onSwapped() {
+			swapped = true;
+		}
+
+		/**
+		 * @return Number of slices of the old index (one per shard)
+		 */
+		public long slices() {
+			return slices.count();
+		}
+
+		/**
+		 * @return Number of slices copied by this run
+		 */
+		public long copiedSlices() {
+			return copiedSlices.count();
+		}
+
+		/**
+		 * @return Number of slices copied by a previous run, found in the checkpoint
+		 */
+		public long resumedSlices() {
+			return resumedSlices.count();
+		}
+
+		/**
+		 * @return Number of documents copied by this run, abandoned slices included
+		 */
+		public long docs() {
+			return docs.count();
+		}
+
+		/**
+		 * @return Number of documents copied by previous runs
+		 */
+		public long resumedDocs() {
+			return resumedDocs.count();
+		}
+
+		/**
+		 * @return Time of this run, from start to alias swap
+		 */
+		public TimeValue took() {
+			return TimeValue.timeValueNanos(tookNanos);
+		}
+
+		/**
+		 * @return Documents copied per second by this run
+		 */
+		public double docsPerSecond() {
+			return tookNanos == 0 ? 0 : docs() * 1000000000.0 / tookNanos;
+		}
+
+		/**
+		 * @return true if the alias was moved to the new index
+		 */
+		public boolean swapped() {
+			return swapped;
+		}
+
+		@Override
+		public String toString() {
+			return "slices [" + copiedSlices() + "/" + slices() + "], resumed slices [" + resumedSlices() + "], docs [" + docs()
+					+ "], took [" + took() + "], throughput [" + Math.round(docsPerSecond()) + " docs/s], swapped [" + swapped() + "]";
+		}
+	}
+
+	public static class Builder {
+		private final Client client;
+		private final String alias;
+		private String targetIndex = null;
+		private Settings settings = ImmutableSettings.EMPTY;
+		private final Map<String, XContentBuilder> mappings = new HashMap<String, XContentBuilder>();
+		private int readers = 4;
+		private int writers = 4;
+		private int batchSize = 100;
+		private int queueSize = 8;
+		private TimeValue keepAlive = TimeValue.timeValueMinutes(1);
+		private File checkpointFile = null;
+		private boolean deleteSource = false;
+
+		private Builder(Client client, String alias) {
+			this.client = client;
+			this.alias = alias;
+		}
+
+		/**
+		 * @param targetIndex Name of the new index. Default to the alias name followed by a timestamp.
+		 */
+		public Builder targetIndex(String targetIndex) {
+			this.targetIndex = targetIndex;
+			return this;
+		}
+
+		/**
+		 * @param settings Settings of the new index. Number of shards and replicas default to the old index ones.
+		 */
+		public Builder settings(Settings settings) {
+			this.settings = settings;
+			return this;
+		}
+
+		/**
+		 * @param type Type name
+		 * @param mapping Mapping of this type in the new index. Without any mapping, old index mappings are copied.
+		 */
+		public Builder mapping(String type, XContentBuilder mapping) {
+			this.mappings.put(type, mapping);
+			return this;
+		}
+
+		/**
+		 * @param readers Number of slices read at the same time
+		 */
+		public Builder readers(int readers) {
+			this.readers = readers;
+			return this;
+		}
+
+		/**
+		 * @param writers Number of bulks written at the same time
+		 */
+		public Builder writers(int writers) {
+			this.writers = writers;
+			return this;
+		}
+
+		/**
+		 * @param batchSize Number of documents read per scroll call, and written per bulk
+		 */
+		public Builder batchSize(int batchSize) {
+			this.batchSize = batchSize;
+			return this;
+		}
+
+		/**
+		 * @param queueSize Max bulks waiting for writers
+		 */
+		public Builder queueSize(int queueSize) {
+			this.queueSize = queueSize;
+			return this;
+		}
+
+		/**
+		 * @param keepAlive How long a scroll stays alive between two calls
+		 */
+		public Builder keepAlive(TimeValue keepAlive) {
+			this.keepAlive = keepAlive;
+			return this;
+		}
+
+		/**
+		 * @param checkpointFile File recording copied slices, to resume a stopped reindex. Deleted once the alias is moved.
+		 */
+		public Builder checkpoint(File checkpointFile) {
+			this.checkpointFile = checkpointFile;
+			return this;
+		}
+
+		/**
+		 * @param deleteSource true to delete the old index once the alias is moved
+		 */
+		public Builder deleteSource(boolean deleteSource) {
+			this.deleteSource = deleteSource;
+			return this;
+		}
+
+		public Reindexer build() {
+			return new Reindexer(this);
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package org.elasticsearchfr.handson.reindex;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearchfr.handson.BenchmarkCsv;
+import org.elasticsearchfr.handson.StartNode;
+import org.elasticsearchfr.handson.beans.BeerGenerator;
+import org.elasticsearchfr.handson.bulk.BeerBulkIndexer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * We move alias <code>reindex_test</code> from <code>reindex_v1</code> to a new index with a not_analyzed brand,
+ * while searches keep running on the alias.
+ * <br>{@link #reindexWhileSearching()} writes throughput in target/reindex/reindex.csv.
+ * You can change the load with system property reindex.docs (default to 10000).
+ */
+public class ReindexerTest extends StartNode {
+	private static final ESLogger logger = ESLoggerFactory.getLogger(ReindexerTest.class.getName());
+
+	private static final String ALIAS = "reindex_test";
+	private static final String SOURCE = "reindex_v1";
+	private static final String TARGET = "reindex_v2";
+	private static final File CHECKPOINT = new File("target/reindex/reindex_test.checkpoint");
+
+	private int docs;
+
+	@Before
+	public void setUp() throws Exception {
+		docs = Integer.parseInt(System.getProperty("reindex.docs", "10000"));
+		CHECKPOINT.delete();
+		node.client().admin().indices().prepareCreate(SOURCE)
+				.setSettings(ImmutableSettings.settingsBuilder().put("index.number_of_shards", 3)).execute().actionGet();
+		node.client().admin().cluster().prepareHealth(SOURCE).setWaitForYellowStatus().execute().actionGet();
+		BeerBulkIndexer indexer = BeerBulkIndexer.builder(node.client(), SOURCE, "beer").build();
+		indexer.addAll("beer_", BeerGenerator.builder(42).build().iterator(0, docs));
+		indexer.close();
+		node.client().admin().indices().prepareRefresh(SOURCE).execute().actionGet();
+		node.client().admin().indices().prepareAliases().addAlias(SOURCE, ALIAS).execute().actionGet();
+	}
+
+	@After
+	public void tearDown() {
+		for (String index : new String[] { SOURCE, TARGET }) {
+			if (node.client().admin().indices().prepareExists(index).execute().actionGet().isExists()) {
+				node.client().admin().indices().prepareDelete(index).execute().actionGet();
+			}
+		}
+		CHECKPOINT.delete();
+	}
+
+	@Test
+	public void reindexWhileSearching() throws Exception {
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicInteger searches = new AtomicInteger();
+		final AtomicReference<String> failure = new AtomicReference<String>();
+		Thread searcher = new Thread("reindex-searcher") {
+			@Override
+			public void run() {
+				while (running.get()) {
+					try {
+						long hits = node.client().prepareSearch(ALIAS).setQuery(QueryBuilders.matchAllQuery()).setSize(0)
+								.execute().actionGet().getHits().getTotalHits();
+						if (hits != docs) failure.compareAndSet(null, "search found " + hits + " beers");
+						searches.incrementAndGet();
+					} catch (Exception e) {
+						failure.compareAndSet(null, e.toString());
+					}
+				}
+			}
+		};
+		searcher.start();
+
+		Reindexer.ReindexStats stats;
+		try {
+			stats = Reindexer.builder(node.client(), ALIAS).targetIndex(TARGET).mapping("beer", mapping())
+					.checkpoint(CHECKPOINT).build().reindex();
+		} finally {
+			running.set(false);
+			searcher.join();
+		}
+
+		logger.info("[{}] beers reindexed during [{}] searches: {}", docs, searches.get(), stats);
+		BenchmarkCsv.append(new File("target/reindex/reindex.csv"), "docs,slices,took_ms,docs_per_s",
+				BenchmarkCsv.row("%d,%d,%d,%.0f", docs, stats.slices(), stats.took().millis(), stats.docsPerSecond()));
+
+		Assert.assertNull(failure.get(), failure.get());
+		Assert.assertTrue(searches.get() > 0);
+		Assert.assertTrue(stats.swapped());
+		Assert.assertEquals(3, stats.copiedSlices());
+		Assert.assertEquals(docs, stats.docs());
+		Assert.assertFalse(CHECKPOINT.exists());
+		Assert.assertTrue(node.client().admin().indices().prepareGetAliases(ALIAS).execute().actionGet().getAliases().containsKey(TARGET));
+		// The new mapping is used: brand is not analyzed anymore
+		Assert.assertEquals(0, node.client().prepareCount(ALIAS).setQuery(QueryBuilders.termQuery("brand", "heineken"))
+				.execute().actionGet().getCount());
+		Assert.assertTrue(node.client().prepareCount(ALIAS).setQuery(QueryBuilders.termQuery("brand", "Heineken"))
+				.execute().actionGet().getCount() > 0);
+	}
+
+	@Test
+	public void resumeFromCheckpoint() throws Exception {
+		final Reindexer first = Reindexer.builder(node.client(), ALIAS).targetIndex(TARGET).readers(1).batchSize(50)
+				.checkpoint(CHECKPOINT).build();
+		// Stop as soon as one slice is copied
+		Thread stopper = new Thread("reindex-stopper") {
+			@Override
+			public void run() {
+				while (first.stats().copiedSlices() == 0) {
+					Thread.yield();
+				}
+				first.stop();
+			}
+		};
+		stopper.setDaemon(true);
+		stopper.start();
+		Reindexer.ReindexStats stopped = first.reindex();
+		stopper.join();
+
+		Assert.assertFalse(stopped.swapped());
+		Assert.assertTrue(stopped.copiedSlices() < 3);
+		Assert.assertTrue(CHECKPOINT.exists());
+		Assert.assertTrue(node.client().admin().indices().prepareGetAliases(ALIAS).execute().actionGet().getAliases().containsKey(SOURCE));
+		// The session was closed: the new index is searchable again
+		Assert.assertEquals("1s", node.client().admin().indices().prepareGetSettings(TARGET).execute().actionGet()
+				.getIndexToSettings().get(TARGET).get("index.refresh_interval"));
+
+		Reindexer.ReindexStats resumed = Reindexer.builder(node.client(), ALIAS).checkpoint(CHECKPOINT).build().reindex();
+		logger.info("stopped: {}, resumed: {}", stopped, resumed);
+
+		Assert.assertTrue(resumed.swapped());
+		Assert.assertEquals(stopped.copiedSlices(), resumed.resumedSlices());
+		Assert.assertEquals(3, resumed.resumedSlices() + resumed.copiedSlices());
+		Assert.assertTrue(resumed.docs() < docs);
+		Assert.assertEquals(docs, node.client().prepareCount(ALIAS).execute().actionGet().getCount());
+		Assert.assertTrue(node.client().admin().indices().prepareGetAliases(ALIAS).execute().actionGet().getAliases().containsKey(TARGET));
+	}
+
+	@Test
+	public void resumeAfterCrash() throws Exception {
+		// A first run copies nothing and leaves its checkpoint, and a new index with settings of its own
+		Reindexer first = Reindexer.builder(node.client(), ALIAS).targetIndex(TARGET).checkpoint(CHECKPOINT)
+				.settings(ImmutableSettings.settingsBuilder().put("index.refresh_interval", "2s").build()).build();
+		first.stop();
+		Assert.assertFalse(first.reindex().swapped());
+
+		// Then dies during its ingest session: the new index keeps the ingest settings
+		node.client().admin().indices().prepareUpdateSettings(TARGET).setSettings(ImmutableSettings.settingsBuilder()
+				.put("index.refresh_interval", -1).put("index.number_of_replicas", 0)
+				.put("index.translog.flush_threshold_ops", Integer.MAX_VALUE).put("index.translog.flush_threshold_size", "500mb")
+				.put("index.translog.flush_threshold_period", "1h")).execute().actionGet();
+
+		Reindexer.ReindexStats resumed = Reindexer.builder(node.client(), ALIAS).checkpoint(CHECKPOINT).build().reindex();
+
+		Assert.assertTrue(resumed.swapped());
+		Assert.assertEquals(docs, node.client().prepareCount(ALIAS).execute().actionGet().getCount());
+		Settings settings = node.client().admin().indices().prepareGetSettings(TARGET).execute().actionGet().getIndexToSettings().get(TARGET);
+		Assert.assertEquals("2s", settings.get("index.refresh_interval"));
+		Assert.assertEquals("1", settings.get("index.number_of_replicas"));
+		// The new index did not have them: Elasticsearch defaults
+		Assert.assertEquals("5000", settings.get("index.translog.flush_threshold_ops"));
+		Assert.assertEquals("200mb", settings.get("index.translog.flush_threshold_size"));
+		Assert.assertEquals("30m", settings.get("index.translog.flush_threshold_period"));
+	}
+
+	/**
+	 * The new beer mapping: brand is not analyzed, so it can be faceted as a whole
+	 */
+	private static XContentBuilder mapping() throws Exception {
+		return XContentFactory.jsonBuilder().startObject().startObject("beer").startObject("properties")
+				.startObject("brand").field("type", "string").field("index", "not_analyzed").endObject()
+				.startObject("colour").field("type", "string").endObject()
+				.startObject("price").field("type", "double").endObject()
+				.startObject("size").field("type", "double").endObject()
+				.endObject().endObject().endObject();
+	}
+}
@@ -0,0 +1,219 @@
+package org.elasticsearchfr.handson.routing;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearchfr.handson.beans.Beer;
+
+/**
+ * Routes beers by brand: all beers of a brand live in the same shard, so a search on one brand
+ * asks one shard instead of all of them.
+ * <br>The routing value is the brand in lower case, so <code>Heineken</code>, <code>heineken</code> and
+ * <code>HEINEKEN</code> go to the same shard, whatever the mapping analyzes.
+ * <br>A search gets a routing only when its query can't match beers of other brands:
+ * <ul>
+ * <li><code>term</code>, <code>terms</code> and <code>match</code> on <code>brand</code> (or <code>brand.text</code>)
+ * <li>inside <code>bool</code> must clauses, <code>filtered</code> queries, <code>constant_score</code>,
+ * <code>and</code> filters, and <code>or</code> filters when all their filters have a brand
+ * </ul>
+ * Anything else (fuzzy, should clauses, global facets or aggregations...) is sent to all shards.
+ * A missing routing costs latency, a wrong one would lose hits.
+ * <br>With the dynamic mapping, brand is analyzed: routing is right only for one word brands, like the
+ * generated ones. With {@link org.elasticsearchfr.handson.MealTemplate} it is right for any brand.
+ */
+public class BrandRouting {
+
+	public static final String FIELD = "brand";
+
+	/**
+	 * @return routing value of a brand, null for a null brand
+	 */
+	public static String routing(String brand) {
+		return brand == null ? null : brand.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * @return routing value of a beer, to set on its index or delete request
+	 */
+	public static String routing(Beer beer) {
+		return routing(beer.getBrand());
+	}
+
+	/**
+	 * @return routing value of a query, or null if it may match several brands (or all)
+	 */
+	public static String routing(QueryBuilder query) {
+		return join(brands(XContentHelper.convertToMap(query.buildAsBytes(), false).v2()));
+	}
+
+	/**
+	 * @return routing value of a search, or null if it must be sent to all shards
+	 */
+	public static String routing(SearchRequest request) {
+		// Extra source may override the query: we don't merge them
+		if (request.source() == null || request.extraSource() != null) return null;
+		return routing(request.source());
+	}
+
+	/**
+	 * @param source Search source, with query, facets and aggregations
+	 * @return routing value of a search source, or null if it must be sent to all shards
+	 */
+	@SuppressWarnings("unchecked")
+	public static String routing(BytesReference source) {
+		Map<String, Object> map = XContentHelper.convertToMap(source, false).v2();
+		// Global facets and aggregations count beers of all brands
+		Object facets = map.get("facets");
+		if (facets instanceof Map) {
+			for (Object facet : ((Map<String, Object>) facets).values()) {
+				if (facet instanceof Map && Boolean.TRUE.equals(((Map<String, Object>) facet).get("global"))) return null;
+			}
+		}
+		for (String name : new String[] { "aggregations", "aggs" }) {
+			Object aggregations = map.get(name);
+			if (aggregations instanceof Map) {
+				for (Object aggregation : ((Map<String, Object>) aggregations).values()) {
+					if (aggregation instanceof Map && ((Map<String, Object>) aggregation).containsKey("global")) return null;
+				}
+			}
+		}
+		return join(brands(map.get("query")));
+	}
+
+	/**
+	 * @param clause A query or a filter, as a map
+	 * @return routing values of the brands a clause can match, or null if it can match any brand
+	 */
+	@SuppressWarnings("unchecked")
+	static Set<String> brands(Object clause) {
+		if (!(clause instanceof Map)) return null;
+		Set<String> brands = null;
+		for (Map.Entry<String, Object> entry : ((Map<String, Object>) clause).entrySet()) {
+			String type = entry.getKey();
+			Object body = entry.getValue();
+			if ("term".equals(type)) {
+				brands = intersect(brands, values(body, "value", "term", false));
+			} else if ("terms".equals(type) || "in".equals(type)) {
+				brands = intersect(brands, values(body, null, null, false));
+			} else if ("match".equals(type) || "text".equals(type) || "match_phrase".equals(type)) {
+				brands = intersect(brands, values(body, "query", null, true));
+			} else if ("bool".equals(type) && body instanceof Map) {
+				brands = intersect(brands, all(((Map<String, Object>) body).get("must")));
+			} else if ("filtered".equals(type) && body instanceof Map) {
+				brands = intersect(brands, brands(((Map<String, Object>) body).get("query")));
+				brands = intersect(brands, brands(((Map<String, Object>) body).get("filter")));
+			} else if ("constant_score".equals(type) && body instanceof Map) {
+				brands = intersect(brands, brands(((Map<String, Object>) body).get("filter")));
+				brands = intersect(brands, brands(((Map<String, Object>) body).get("query")));
+			} else if ("and".equals(type)) {
+				brands = intersect(brands, all(body instanceof Map ? ((Map<String, Object>) body).get("filters") : body));
+			} else if ("or".equals(type)) {
+				brands = intersect(brands, any(body instanceof Map ? ((Map<String, Object>) body).get("filters") : body));
+			} else if ("query".equals(type) || "fquery".equals(type)) {
+				Object query = body instanceof Map && ((Map<String, Object>) body).containsKey("query") ? ((Map<String, Object>) body).get("query") : body;
+				brands = intersect(brands, brands(query));
+			}
+		}
+		return brands;
+	}
+
+	/**
+	 * Values of a term, terms or match clause on the brand field
+	 * @param body Clause body, for example <code>{"brand": "heineken"}</code> or <code>{"brand": {"value": "heineken"}}</code>
+	 * @param key Key of the value in the long form, null if there is no long form
+	 * @param otherKey Other key of the value in the long form
+	 * @param oneWord true if values with spaces match several terms (match queries)
+	 */
+	@SuppressWarnings("unchecked")
+	private static Set<String> values(Object body, String key, String otherKey, boolean oneWord) {
+		if (!(body instanceof Map)) return null;
+		Set<String> brands = null;
+		for (Map.Entry<String, Object> field : ((Map<String, Object>) body).entrySet()) {
+			if (!isBrand(field.getKey())) continue;
+			Object value = field.getValue();
+			if (value instanceof Map && key != null) {
+				Map<String, Object> options = (Map<String, Object>) value;
+				// These options match other brands too
+				if (options.containsKey("fuzziness") || "phrase_prefix".equals(options.get("type"))
+						|| "all".equals(options.get("zero_terms_query"))) return null;
+				value = options.containsKey(key) ? options.get(key) : otherKey == null ? null : options.get(otherKey);
+			}
+			Set<String> values = new TreeSet<String>();
+			Collection<?> list = value instanceof List ? (List<?>) value : value == null ? null : Collections.singleton(value);
+			if (list == null || list.isEmpty()) return null;
+			for (Object brand : list) {
+				if (brand instanceof Map || brand instanceof List) return null;
+				String text = String.valueOf(brand).trim();
+				if (text.isEmpty() || oneWord && text.indexOf(' ') >= 0) return null;
+				values.add(routing(text));
+			}
+			brands = intersect(brands, values);
+		}
+		return brands;
+	}
+
+	private static boolean isBrand(String field) {
+		return FIELD.equals(field) || (FIELD + ".text").equals(field);
+	}
+
+	/**
+	 * @return brands matched by all clauses (a bool must or an and filter)
+	 */
+	private static Set<String> all(Object clauses) {
+		if (!(clauses instanceof List)) return brands(clauses);
+		Set<String> brands = null;
+		for (Object clause : (List<?>) clauses) {
+			brands = intersect(brands, brands(clause));
+		}
+		return brands;
+	}
+
+	/**
+	 * @return brands matched by any clause (an or filter), null if one clause can match any brand
+	 */
+	private static Set<String> any(Object clauses) {
+		if (!(clauses instanceof List) || ((List<?>) clauses).isEmpty()) return null;
+		Set<String> brands = new TreeSet<String>();
+		for (Object clause : (List<?>) clauses) {
+			Set<String> matched = brands(clause);
+			if (matched == null) return null;
+			brands.addAll(matched);
+		}
+		return brands;
+	}
+
+	/**
+	 * null means any brand
+	 */
+	private static Set<String> intersect(Set<String> brands, Set<String> others) {
+		if (brands == null) return others;
+		if (others == null) return brands;
+		Set<String> both = new TreeSet<String>(brands);
+		both.retainAll(others);
+		return both;
+	}
+
+	/**
+	 * @return comma separated routing values. null for no brand at all: such a search finds nothing anyway.
+	 */
+	private static String join(Set<String> brands) {
+		if (brands == null || brands.isEmpty()) return null;
+		StringBuilder routing = new StringBuilder();
+		for (String brand : brands) {
+			// A comma would split the routing value
+			if (brand.indexOf(',') >= 0) return null;
+			if (routing.length() > 0) routing.append(',');
+			routing.append(brand);
+		}
+		return routing.toString();
+	}
+}
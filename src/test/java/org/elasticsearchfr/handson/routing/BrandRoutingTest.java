@@ -0,0 +1,198 @@
+package org.elasticsearchfr.handson.routing;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.elasticsearch.action.search.MultiSearchRequestBuilder;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.facet.FacetBuilders;
+import org.elasticsearch.search.facet.terms.TermsFacet;
+import org.elasticsearchfr.handson.BenchmarkCsv;
+import org.elasticsearchfr.handson.StartNode;
+import org.elasticsearchfr.handson.beans.BeerGenerator;
+import org.elasticsearchfr.handson.bulk.BeerBulkIndexer;
+import org.elasticsearchfr.handson.load.QueryMix;
+import org.elasticsearchfr.handson.load.SearchLoadDriver;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * We index the same beers twice, routed by brand and not routed, and check that routed searches find the
+ * same beers while asking fewer shards.
+ * <br>{@link #routingVersusFanOut()} runs brand searches on both indices for each number of shards, and
+ * writes latency and throughput in target/routing/routing.csv. Both indices are warmed up first, and
+ * each round changes which one is measured first.
+ * You can change the runs with system properties:
+ * <ul>
+ * <li>routing.shards: comma separated shard counts (default to 1,2,4,8)
+ * <li>routing.docs: beers indexed for each run (default to 5000)
+ * <li>routing.warmup: search load before measures, for each index (default to 1s)
+ * <li>routing.duration: search load duration for each index and round (default to 2s)
+ * <li>routing.rounds: measures of each index (default to 2)
+ * <li>routing.concurrency: search threads (default to 8)
+ * </ul>
+ */
+public class BrandRoutingTest extends StartNode {
+	private static final ESLogger logger = ESLoggerFactory.getLogger(BrandRoutingTest.class.getName());
+
+	private static final String ROUTED = "routing_on";
+	private static final String NOT_ROUTED = "routing_off";
+
+	@After
+	public void tearDown() {
+		for (String index : new String[] { ROUTED, NOT_ROUTED }) {
+			if (node.client().admin().indices().prepareExists(index).execute().actionGet().isExists()) {
+				node.client().admin().indices().prepareDelete(index).execute().actionGet();
+			}
+		}
+	}
+
+	@Test
+	public void routingFromQueries() throws Exception {
+		QueryMix mix = QueryMix.searchTest();
+		String[] expected = { null, "heineken", null, "heineken", "heineken", null };
+		for (int i = 0; i < mix.size(); i++) {
+			Assert.assertEquals(mix.name(i), expected[i], BrandRouting.routing(mix.query(i)));
+		}
+
+		Assert.assertEquals("grimbergen,heineken", BrandRouting.routing(QueryBuilders.filteredQuery(QueryBuilders.matchAllQuery(),
+				FilterBuilders.orFilter(FilterBuilders.termFilter("brand", "Heineken"), FilterBuilders.termsFilter("brand", "Grimbergen")))));
+		Assert.assertEquals("kriek", BrandRouting.routing(QueryBuilders.boolQuery()
+				.must(QueryBuilders.termsQuery("brand", "kriek", "heineken")).must(QueryBuilders.matchQuery("brand.text", "KRIEK"))));
+		// Can match other brands
+		Assert.assertNull(BrandRouting.routing(QueryBuilders.boolQuery().should(QueryBuilders.termQuery("brand", "heineken"))));
+		Assert.assertNull(BrandRouting.routing(QueryBuilders.matchQuery("brand", "heineken kriek")));
+		Assert.assertNull(BrandRouting.routing(QueryBuilders.matchQuery("brand", "heinekan").fuzziness(1)));
+		Assert.assertNull(BrandRouting.routing(QueryBuilders.filteredQuery(QueryBuilders.matchAllQuery(),
+				FilterBuilders.orFilter(FilterBuilders.termFilter("brand", "heineken"), FilterBuilders.rangeFilter("price").gt(5)))));
+	}
+
+	@Test
+	public void routedSearchesFindTheSameBeers() throws Exception {
+		load(4, 2000);
+		RoutingClient routing = RoutingClient.builder(node.client()).index(ROUTED).build();
+		QueryMix mix = QueryMix.searchTest();
+		for (int i = 0; i < mix.size(); i++) {
+			SearchResponse routed = routing.prepareSearch(ROUTED).setQuery(mix.query(i))
+					.addFacet(FacetBuilders.termsFacet("bycolour").field("colour")).execute().actionGet();
+			SearchResponse all = node.client().prepareSearch(NOT_ROUTED).setQuery(mix.query(i))
+					.addFacet(FacetBuilders.termsFacet("bycolour").field("colour")).execute().actionGet();
+			Assert.assertEquals(mix.name(i), all.getHits().getTotalHits(), routed.getHits().getTotalHits());
+			Assert.assertEquals(mix.name(i), counts(all), counts(routed));
+			Assert.assertEquals(mix.name(i), BrandRouting.routing(mix.query(i)) == null ? 4 : 1, routed.getTotalShards());
+		}
+		Assert.assertEquals(3, routing.stats().routed());
+		Assert.assertEquals(3, routing.stats().broadcast());
+
+		// Searches of a multi search are routed one by one
+		MultiSearchRequestBuilder multi = routing.prepareMultiSearch();
+		for (int i = 0; i < mix.size(); i++) {
+			multi.add(routing.prepareSearch(ROUTED).setQuery(mix.query(i)));
+		}
+		MultiSearchResponse.Item[] items = multi.execute().actionGet().getResponses();
+		for (int i = 0; i < mix.size(); i++) {
+			Assert.assertEquals(mix.name(i), BrandRouting.routing(mix.query(i)) == null ? 4 : 1, items[i].getResponse().getTotalShards());
+		}
+		Assert.assertEquals(6, routing.stats().routed());
+		Assert.assertEquals(6, routing.stats().broadcast());
+
+		// A global facet counts all beers: no routing
+		SearchResponse global = routing.prepareSearch(ROUTED).setQuery(QueryBuilders.termQuery("brand", "heineken"))
+				.addFacet(FacetBuilders.termsFacet("bybrand").field("brand").global(true)).execute().actionGet();
+		Assert.assertEquals(4, global.getTotalShards());
+		Assert.assertEquals(7, routing.stats().broadcast());
+	}
+
+	@Test
+	public void routingVersusFanOut() throws Exception {
+		int docs = Integer.parseInt(System.getProperty("routing.docs", "5000"));
+		TimeValue duration = TimeValue.parseTimeValue(System.getProperty("routing.duration"), TimeValue.timeValueSeconds(2));
+		TimeValue warmup = TimeValue.parseTimeValue(System.getProperty("routing.warmup"), TimeValue.timeValueSeconds(1));
+		int rounds = Integer.parseInt(System.getProperty("routing.rounds", "2"));
+		int concurrency = Integer.parseInt(System.getProperty("routing.concurrency", "8"));
+		File file = new File("target/routing/routing.csv");
+
+		// Brand searches only: the traffic routing is for
+		QueryMix mix = new QueryMix()
+				.add("term_heineken", 1, QueryBuilders.termQuery("brand", "heineken"))
+				.add("term_grimbergen", 1, QueryBuilders.termQuery("brand", "grimbergen"))
+				.add("term_kriek", 1, QueryBuilders.termQuery("brand", "kriek"))
+				.add("bool_text_and_range", 1, QueryBuilders.boolQuery()
+						.must(QueryBuilders.matchQuery("brand", "HEINEKEN"))
+						.must(QueryBuilders.rangeQuery("price").from(5).to(10)));
+		RoutingClient routing = RoutingClient.builder(node.client()).index(ROUTED).build();
+
+		for (String value : System.getProperty("routing.shards", "1,2,4,8").split(",")) {
+			int shards = Integer.parseInt(value.trim());
+			load(shards, docs);
+			// Both indices get the same warm-up: JIT, filter cache and file system cache
+			for (boolean routed : new boolean[] { false, true }) {
+				run(routed ? routing : node.client(), routed ? ROUTED : NOT_ROUTED, mix, concurrency, warmup);
+			}
+			double[] qps = new double[2];
+			for (int round = 0; round < rounds; round++) {
+				// Odd rounds measure the routed index first, so neither mode always comes second
+				for (int i = 0; i < 2; i++) {
+					boolean routed = (round + i) % 2 == 1;
+					SearchLoadDriver.Result result = run(routed ? routing : node.client(), routed ? ROUTED : NOT_ROUTED, mix, concurrency, duration);
+					double roundQps = result.all().count() / (duration.millis() / 1000.0);
+					qps[routed ? 1 : 0] += roundQps / rounds;
+					logger.info("[{}] shards, round [{}], routing [{}]: {} searches/s, {}", shards, round, routed, (long) roundQps, result);
+					BenchmarkCsv.append(file, "shards,round,routing,docs,search_qps,mean_ms,p50_ms,p99_ms",
+							BenchmarkCsv.row("%d,%d,%b,%d,%.1f,%.3f,%.3f,%.3f", shards, round, routed, docs, roundQps,
+									result.all().mean() / 1000000.0, result.all().percentileMillis(50), result.all().percentileMillis(99)));
+				}
+			}
+			logger.info("[{}] shards: fan-out [{}] searches/s, routed [{}] searches/s", shards, (long) qps[0], (long) qps[1]);
+			tearDown();
+		}
+		Assert.assertEquals(0, routing.stats().broadcast());
+	}
+
+	private static SearchLoadDriver.Result run(Client client, String index, QueryMix mix, int concurrency, TimeValue duration)
+			throws InterruptedException {
+		SearchLoadDriver.Result result = SearchLoadDriver.builder(client, index).mix(mix).rate(0).concurrency(concurrency)
+				.duration(duration).build().run();
+		Assert.assertEquals(0, result.errors());
+		return result;
+	}
+
+	/**
+	 * @return beers by colour, as "colour=count" strings
+	 */
+	private static List<String> counts(SearchResponse response) {
+		List<String> counts = new ArrayList<String>();
+		for (TermsFacet.Entry entry : response.getFacets().<TermsFacet> facet("bycolour")) {
+			counts.add(entry.getTerm().string() + "=" + entry.getCount());
+		}
+		Collections.sort(counts);
+		return counts;
+	}
+
+	/**
+	 * Index the same beers in both indices
+	 */
+	private void load(int shards, int docs) throws Exception {
+		for (String index : new String[] { ROUTED, NOT_ROUTED }) {
+			node.client().admin().indices().prepareCreate(index)
+					.setSettings("index.number_of_shards", shards, "index.number_of_replicas", 0)
+					.execute().actionGet();
+			node.client().admin().cluster().prepareHealth(index).setWaitForGreenStatus().execute().actionGet();
+			BeerBulkIndexer indexer = BeerBulkIndexer.builder(node.client(), index, "beer").routeByBrand(ROUTED.equals(index)).build();
+			indexer.addAll("beer_", BeerGenerator.builder(42).build().iterator(0, docs));
+			indexer.close();
+			Assert.assertEquals(0, indexer.stats().failures());
+			node.client().admin().indices().prepareRefresh(index).execute().actionGet();
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package org.elasticsearchfr.handson.routing;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionFuture;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.search.MultiSearchAction;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.client.AdminClient;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.internal.InternalClient;
+import org.elasticsearch.client.support.AbstractClient;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * A {@link Client} which adds the brand routing to searches on indices where beers are routed by brand
+ * (see {@link org.elasticsearchfr.handson.bulk.BeerBulkIndexer.Builder#routeByBrand(boolean)}).
+ * <br>A search, alone or in a multi search, gets a routing when:
+ * <ul>
+ * <li>it searches only routed indices (aliases are not resolved: give concrete index names)
+ * <li>it has no routing yet
+ * <li>its query can only match some brands, see {@link BrandRouting#routing(SearchRequest)}
+ * </ul>
+ * Other searches, and other actions, are sent as they are.
+ * <br>The routing is set on the caller's request.
+ * <br>Usage:
+ * <pre>
+ * RoutingClient client = RoutingClient.builder(node.client()).index("meal").build();
+ * client.prepareSearch("meal").setQuery(QueryBuilders.termQuery("brand", "heineken")).execute().actionGet();
+ * client.stats().routed();
+ * </pre>
+ */
+public class RoutingClient extends AbstractClient {
+	private static final ESLogger logger = ESLoggerFactory.getLogger(RoutingClient.class.getName());
+
+	private final InternalClient client;
+	private final Set<String> indices;
+	private final RoutingStats stats = new RoutingStats();
+
+	private RoutingClient(Builder builder) {
+		this.client = (InternalClient) builder.client;
+		this.indices = new HashSet<String>(builder.indices);
+	}
+
+	/**
+	 * @param client Client to wrap. Clients from a node or a TransportClient can be wrapped.
+	 */
+	public static Builder builder(Client client) {
+		return new Builder(client);
+	}
+
+	/**
+	 * @return number of searches routed and sent to all shards
+	 */
+	public RoutingStats stats() {
+		return stats;
+	}
+
+	@Override
+	public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> ActionFuture<Response> execute(
+			Action<Request, Response, RequestBuilder> action, Request request) {
+		PlainActionFuture<Response> future = PlainActionFuture.newFuture();
+		execute(action, request, future);
+		return future;
+	}
+
+	@Override
+	public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void execute(
+			Action<Request, Response, RequestBuilder> action, Request request, ActionListener<Response> listener) {
+		if (action == SearchAction.INSTANCE) {
+			route((SearchRequest) request);
+		} else if (action == MultiSearchAction.INSTANCE) {
+			// Each search of a multi search is routed on its own, as SearchBatcher sends them
+			for (SearchRequest search : ((MultiSearchRequest) request).requests()) {
+				route(search);
+			}
+		}
+		client.execute(action, request, listener);
+	}
+
+	private void route(SearchRequest request) {
+		if (request.routing() != null) return;
+		String routing = routed(request.indices()) ? BrandRouting.routing(request) : null;
+		if (routing == null) {
+			stats.onBroadcast();
+			return;
+		}
+		request.routing(routing);
+		stats.onRouted();
+		logger.trace("search routed to [{}]", routing);
+	}
+
+	/**
+	 * @return true if all searched indices are routed by brand
+	 */
+	private boolean routed(String[] searched) {
+		if (searched == null || searched.length == 0) return false;
+		for (String index : searched) {
+			if (!indices.contains(index)) return false;
+		}
+		return true;
+	}
+
+	@Override
+	public ThreadPool threadPool() {
+		return client.threadPool();
+	}
+
+	@Override
+	public Settings settings() {
+		return client.settings();
+	}
+
+	@Override
+	public AdminClient admin() {
+		return client.admin();
+	}
+
+	/**
+	 * The wrapped client is not closed
+	 */
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * Searches with the brand routing, and searches sent to all shards
+	 */
+	public static class RoutingStats {
+		private final CounterMetric routed = new CounterMetric();
+		private final CounterMetric broadcast = new CounterMetric();
+
+		void onRouted() {
+			routed.inc();
+		}
+
+		void onBroadcast() {
+			broadcast.inc();
+		}
+
+		/**
+		 * @return Number of searches we added a routing to
+		 */
+		public long routed() {
+			return routed.count();
+		}
+
+		/**
+		 * @return Number of searches without routing: sent to all shards
+		 */
+		public long broadcast() {
+			return broadcast.count();
+		}
+
+		@Override
+		public String toString() {
+			return "routed [" + routed() + "], broadcast [" + broadcast() + "]";
+		}
+	}
+
+	public static class Builder {
+		private final Client client;
+		private final Set<String> indices = new HashSet<String>();
+
+		private Builder(Client client) {
+			this.client = client;
+		}
+
+		/**
+		 * @param indices Indices where beers are routed by brand. Can be called several times.
+		 */
+		public Builder index(String... indices) {
+			for (String index : indices) {
+				this.indices.add(index);
+			}
+			return this;
+		}
+
+		public RoutingClient build() {
+			return new RoutingClient(this);
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package org.elasticsearchfr.handson.warmer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.action.admin.indices.warmer.get.GetWarmersResponse;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.collect.ImmutableList;
+import org.elasticsearch.common.hppc.cursors.ObjectObjectCursor;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.index.query.FilterBuilder;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.warmer.WarmerStats;
+import org.elasticsearch.search.facet.FacetBuilders;
+import org.elasticsearch.search.warmer.IndexWarmersMetaData;
+
+/**
+ * Registers the facets and filters of <code>FacetTest</code> and <code>SearchTest</code> as index warmers.
+ * <br>Elasticsearch runs warmers on new segments before a refresh makes them visible, so the first
+ * facet after a refresh doesn't pay for loading field data and the first filter finds its segments
+ * in the filter cache.
+ * <br>Default warmers:
+ * <ul>
+ * <li><code>brand_terms</code>, <code>colour_terms</code>: terms facets, load brand and colour field data
+ * <li><code>price_ranges</code>: range facet on price (&lt; 3, 3 to 6, &gt;= 6), loads price field data
+ * <li><code>brand_filter</code>, <code>price_filter</code>, <code>size_filter</code>: filters of the
+ * SearchTest queries (Heineken, price 5 to 10, size over 1), fill the filter cache
+ * </ul>
+ * The brand filter uses <code>heineken</code>, the term indexed with the dynamic mapping.
+ * <br>Elasticsearch parses warmers when they are put: the index must already have a beer mapping
+ * with brand, colour, price and size.
+ * <br>Warmers are stored in the index metadata: they are lost when the index is dropped,
+ * for example by {@link org.elasticsearchfr.handson.IndexFixture#reset()}. Register them again after.
+ * <br>Usage:
+ * <pre>
+ * BeerWarmers warmers = BeerWarmers.builder(client, "meal").build();
+ * warmers.register();
+ * </pre>
+ */
+public class BeerWarmers {
+	private static final ESLogger logger = ESLoggerFactory.getLogger(BeerWarmers.class.getName());
+
+	private final Client client;
+	private final String index;
+	private final Map<String, SearchRequestBuilder> warmers;
+
+	private BeerWarmers(Builder builder) {
+		this.client = builder.client;
+		this.index = builder.index;
+		this.warmers = new LinkedHashMap<String, SearchRequestBuilder>();
+		if (builder.defaults) {
+			addDefaults();
+		}
+		this.warmers.putAll(builder.warmers);
+	}
+
+	/**
+	 * @param client Client to use
+	 * @param index Index to warm, for example "meal"
+	 * @return a builder with the default warmers
+	 */
+	public static Builder builder(Client client, String index) {
+		return new Builder(client, index);
+	}
+
+	private void addDefaults() {
+		warmers.put("brand_terms", search().addFacet(FacetBuilders.termsFacet("bybrand").field("brand")));
+		warmers.put("colour_terms", search().addFacet(FacetBuilders.termsFacet("bycolour").field("colour")));
+		warmers.put("price_ranges", search().addFacet(FacetBuilders.rangeFacet("byprice").field("price")
+				.addUnboundedFrom(3).addRange(3, 6).addUnboundedTo(6)));
+		warmers.put("brand_filter", filtered(FilterBuilders.termFilter("brand", "heineken")));
+		warmers.put("price_filter", filtered(FilterBuilders.rangeFilter("price").gt(5).lt(10)));
+		warmers.put("size_filter", filtered(FilterBuilders.rangeFilter("size").gt(1)));
+	}
+
+	private SearchRequestBuilder search() {
+		return client.prepareSearch(index).setSize(0).setQuery(QueryBuilders.matchAllQuery());
+	}
+
+	private SearchRequestBuilder filtered(FilterBuilder filter) {
+		return search().setQuery(QueryBuilders.filteredQuery(QueryBuilders.matchAllQuery(), filter));
+	}
+
+	/**
+	 * @return names of the warmers this registry puts
+	 */
+	public List<String> names() {
+		return new ArrayList<String>(warmers.keySet());
+	}
+
+	/**
+	 * Put all warmers on the index. Existing warmers with the same names are replaced.
+	 */
+	public void register() {
+		for (Map.Entry<String, SearchRequestBuilder> warmer : warmers.entrySet()) {
+			client.admin().indices().preparePutWarmer(warmer.getKey()).setSearchRequest(warmer.getValue()).execute().actionGet();
+		}
+		logger.debug("[{}] warmers registered on [{}]", warmers.size(), index);
+	}
+
+	/**
+	 * Delete the warmers of this registry from the index. Other warmers are kept.
+	 */
+	public void unregister() {
+		client.admin().indices().prepareDeleteWarmer().setIndices(index)
+				.setNames(warmers.keySet().toArray(new String[warmers.size()])).execute().actionGet();
+	}
+
+	/**
+	 * @return names of all warmers registered on the index, ours and others
+	 */
+	public List<String> registered() {
+		GetWarmersResponse response = client.admin().indices().prepareGetWarmers(index).execute().actionGet();
+		List<String> names = new ArrayList<String>();
+		for (ObjectObjectCursor<String, ImmutableList<IndexWarmersMetaData.Entry>> cursor : response.getWarmers()) {
+			for (IndexWarmersMetaData.Entry entry : cursor.value) {
+				names.add(entry.name());
+			}
+		}
+		Collections.sort(names);
+		return names;
+	}
+
+	/**
+	 * @return number of times the index was warmed, and time spent warming
+	 */
+	public WarmerStats stats() {
+		return client.admin().indices().prepareStats(index).clear().setWarmer(true).execute().actionGet()
+				.getTotal().getWarmer();
+	}
+
+	public static class Builder {
+		private final Client client;
+		private final String index;
+		private final Map<String, SearchRequestBuilder> warmers = new LinkedHashMap<String, SearchRequestBuilder>();
+		private boolean defaults = true;
+
+		private Builder(Client client, String index) {
+			this.client = client;
+			this.index = index;
+		}
+
+		/**
+		 * @param defaults false to register only the warmers added with {@link #add(String, SearchRequestBuilder)}
+		 */
+		public Builder defaults(boolean defaults) {
+			this.defaults = defaults;
+			return this;
+		}
+
+		/**
+		 * @param name Warmer name. A default warmer with the same name is replaced.
+		 * @param search Search to run on new segments. Use size 0: hits are not needed.
+		 */
+		public Builder add(String name, SearchRequestBuilder search) {
+			this.warmers.put(name, search);
+			return this;
+		}
+
+		public BeerWarmers build() {
+			return new BeerWarmers(this);
+		}
+	}
+}
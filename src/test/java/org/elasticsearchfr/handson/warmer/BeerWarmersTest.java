@@ -0,0 +1,152 @@
+package org.elasticsearchfr.handson.warmer;
+
+import java.io.File;
+import java.util.Locale;
+
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.facet.FacetBuilders;
+import org.elasticsearchfr.handson.BenchmarkCsv;
+import org.elasticsearchfr.handson.StartNode;
+import org.elasticsearchfr.handson.beans.BeerGenerator;
+import org.elasticsearchfr.handson.bulk.BeerBulkIndexer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * We index the same beers in two indices, one with warmers and one without, and compare the first
+ * facet query after each refresh.
+ * <br>{@link #firstQueryAfterRefresh()} checks that warmers run on each refresh of warmer_on only, and
+ * writes latencies in target/warmer/warmer.csv. Each round changes which index is measured first.
+ * You can change the runs with system properties:
+ * <ul>
+ * <li>warmer.rounds: number of index then refresh rounds (default to 5)
+ * <li>warmer.docs: beers indexed in each round (default to 2000)
+ * </ul>
+ */
+public class BeerWarmersTest extends StartNode {
+	private static final ESLogger logger = ESLoggerFactory.getLogger(BeerWarmersTest.class.getName());
+
+	@Before
+	public void setUp() throws Exception {
+		for (String index : new String[] { "warmer_on", "warmer_off" }) {
+			// We refresh ourselves, so we know when new segments are searched.
+			// Elasticsearch warms new segments even without registered warmers: warmer_off does not warm at all
+			node.client().admin().indices().prepareCreate(index)
+					.setSettings("index.refresh_interval", -1, "index.warmer.enabled", "warmer_on".equals(index))
+					.addMapping("beer", mapping()).execute().actionGet();
+		}
+		node.client().admin().cluster().prepareHealth("warmer_on", "warmer_off").setWaitForYellowStatus().execute().actionGet();
+	}
+
+	@After
+	public void tearDown() {
+		node.client().admin().indices().prepareDelete("warmer_on", "warmer_off").execute().actionGet();
+	}
+
+	@Test
+	public void warmersAreRegistered() throws Exception {
+		BeerWarmers warmers = BeerWarmers.builder(node.client(), "warmer_on")
+				.add("colour_filter", node.client().prepareSearch("warmer_on").setSize(0)
+						.setQuery(QueryBuilders.filteredQuery(QueryBuilders.matchAllQuery(), FilterBuilders.termFilter("colour", "pale"))))
+				.build();
+		warmers.register();
+		Assert.assertEquals(7, warmers.names().size());
+		Assert.assertEquals(7, warmers.registered().size());
+		Assert.assertTrue(warmers.registered().contains("brand_terms"));
+
+		long before = warmers.stats().total();
+		index("warmer_on", 0, 100);
+		Assert.assertTrue(warmers.stats().total() > before);
+
+		warmers.unregister();
+		Assert.assertTrue(warmers.registered().isEmpty());
+	}
+
+	@Test
+	public void firstQueryAfterRefresh() throws Exception {
+		int rounds = Integer.parseInt(System.getProperty("warmer.rounds", "5"));
+		int docs = Integer.parseInt(System.getProperty("warmer.docs", "2000"));
+		BeerWarmers warmers = BeerWarmers.builder(node.client(), "warmer_on").build();
+		warmers.register();
+
+		double[] first = new double[2];
+		for (int round = 0; round < rounds; round++) {
+			// Odd rounds measure the index without warmers first, so neither index always comes second
+			for (int i = 0; i < 2; i++) {
+				boolean warmed = (round + i) % 2 == 0;
+				String index = warmed ? "warmer_on" : "warmer_off";
+				long before = warmers(index);
+				index(index, round * docs, docs);
+				long after = warmers(index);
+				if (warmed) {
+					Assert.assertTrue("round " + round + ": warmers did not run", after > before);
+				} else {
+					Assert.assertEquals("round " + round + ": warmers ran", 0, after);
+				}
+
+				long start = System.nanoTime();
+				facets(index).execute().actionGet();
+				double firstMillis = (System.nanoTime() - start) / 1000000.0;
+				start = System.nanoTime();
+				facets(index).execute().actionGet();
+				double secondMillis = (System.nanoTime() - start) / 1000000.0;
+
+				logger.info("[{}] round [{}]: first query [{}ms], second query [{}ms]", index, round,
+						String.format(Locale.ROOT, "%.2f", firstMillis), String.format(Locale.ROOT, "%.2f", secondMillis));
+				BenchmarkCsv.append(new File("target/warmer/warmer.csv"), "warmers,round,docs,first_query_ms,second_query_ms",
+						BenchmarkCsv.row("%b,%d,%d,%.2f,%.2f", warmed, round, docs, firstMillis, secondMillis));
+				first[warmed ? 0 : 1] += firstMillis / rounds;
+			}
+		}
+		logger.info("mean first query after refresh: with warmers [{}ms], without [{}ms]",
+				String.format(Locale.ROOT, "%.2f", first[0]), String.format(Locale.ROOT, "%.2f", first[1]));
+	}
+
+	/**
+	 * @return warmer runs on this index since it was created
+	 */
+	private long warmers(String index) {
+		return node.client().admin().indices().prepareStats(index).clear().setWarmer(true).execute().actionGet()
+				.getTotal().getWarmer().total();
+	}
+
+	/**
+	 * What the dynamic mapping gives, so field data is loaded in memory like in FacetTest
+	 */
+	private static XContentBuilder mapping() throws Exception {
+		return XContentFactory.jsonBuilder().startObject().startObject("beer").startObject("properties")
+				.startObject("brand").field("type", "string").endObject()
+				.startObject("colour").field("type", "string").endObject()
+				.startObject("price").field("type", "double").endObject()
+				.startObject("size").field("type", "double").endObject()
+				.endObject().endObject().endObject();
+	}
+
+	/**
+	 * Index beers then refresh: new segments are warmed before the refresh returns
+	 */
+	private void index(String index, int from, int docs) throws Exception {
+		BeerBulkIndexer indexer = BeerBulkIndexer.builder(node.client(), index, "beer").build();
+		indexer.addAll("beer_", BeerGenerator.builder(42).build().iterator(from, from + docs));
+		indexer.close();
+		node.client().admin().indices().prepareRefresh(index).execute().actionGet();
+	}
+
+	/**
+	 * The FacetTest shapes: brand terms on Heineken beers, and price ranges
+	 */
+	private SearchRequestBuilder facets(String index) {
+		return node.client().prepareSearch(index).setSize(0)
+				.setQuery(QueryBuilders.filteredQuery(QueryBuilders.matchAllQuery(), FilterBuilders.termFilter("brand", "heineken")))
+				.addFacet(FacetBuilders.termsFacet("bybrand").field("brand"))
+				.addFacet(FacetBuilders.rangeFacet("byprice").field("price").addUnboundedFrom(3).addRange(3, 6).addUnboundedTo(6));
+	}
+}